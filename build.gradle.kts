@@ -63,6 +63,12 @@ dependencies {
 }
 
 
+// The SHA-256 of the method names model is bundled with the plugin, the model is verified against it when installed.
+// The model is downloaded once to compute it, pass -PmodelSha256=<checksum> to skip the download.
+val modelLink = "https://www.dropbox.com/s/j2ydkxq3js33d93/model.zip?dl=1"
+val modelChecksumDir = file("$buildDir/generated/modelChecksum")
+sourceSets["main"].resources.srcDir(modelChecksumDir)
+
 // Configure gradle-intellij-plugin plugin.
 // Read more: https://github.com/JetBrains/gradle-intellij-plugin
 intellij {
@@ -129,11 +135,37 @@ tasks {
         jvmArgs = listOf("-Xmx8G")
     }
 
+    register("generateModelChecksum") {
+        val checksumFile = modelChecksumDir.resolve("org/jetbrains/astrid/model.zip.sha256")
+        inputs.property("modelLink", modelLink)
+        inputs.property("modelSha256", project.findProperty("modelSha256") ?: "")
+        outputs.file(checksumFile)
+        doLast {
+            val sha256 = project.findProperty("modelSha256") as String? ?: java.net.URL(modelLink).openStream().use {
+                val digest = java.security.MessageDigest.getInstance("SHA-256")
+                val buffer = ByteArray(1 shl 20)
+                var read = it.read(buffer)
+                while (read >= 0) {
+                    digest.update(buffer, 0, read)
+                    read = it.read(buffer)
+                }
+                digest.digest().joinToString("") { byte -> "%02x".format(byte) }
+            }
+            checksumFile.parentFile.mkdirs()
+            checksumFile.writeText(sha256)
+        }
+    }
+
+    processResources {
+        dependsOn("generateModelChecksum")
+    }
+
 //    varMiner part
 //    runIde {
 //        val dataset: String? by project
 //        val saveDir: String? by project
-//        args = listOfNotNull("varMiner", dataset, saveDir)
+//        val format: String? by project
+//        args = listOfNotNull("varMiner", dataset, saveDir, format)
 //        jvmArgs = listOf("-Djava.awt.headless=true")
 //        maxHeapSize = "8g"
 //    }
@@ -142,7 +174,9 @@ tasks {
 //    runIde {
 //        val dataset: String? by project
 //        val outputPrefix: String? by project
-//        args = listOfNotNull("graphVarMiner", dataset, outputPrefix)
+//        val threads: String? by project
+//        val format: String? by project
+//        args = listOfNotNull("graphVarMiner", dataset, outputPrefix, threads, format)
 //        jvmArgs = listOf("-Djava.awt.headless=true")
 //        maxHeapSize = "8g"
 //    }
@@ -153,7 +187,31 @@ tasks {
 //        val dataset: String? by project
 //        val saveDir: String? by project
 //        val ngramContributorType: String? by project
-//        args = listOfNotNull(evaluatorToUse, dataset, saveDir, ngramContributorType)
+//        val threads: String? by project
+//        val server: String? by project
+//        args = listOfNotNull(evaluatorToUse, dataset, saveDir, ngramContributorType, threads, server)
+//        jvmArgs = listOf("-Djava.awt.headless=true")
+//        maxHeapSize = "8g"
+//    }
+
+//    nGramTrainingTime part
+//    runIde {
+//        val dataset: String? by project
+//        val saveDir: String? by project
+//        val threads: String? by project
+//        val counters: String? by project
+//        val modes: String? by project
+//        args = listOfNotNull("nGramTrainingTime", dataset, saveDir, threads, counters, modes)
+//        jvmArgs = listOf("-Djava.awt.headless=true")
+//        maxHeapSize = "8g"
+//    }
+
+//    astridLatency part
+//    runIde {
+//        val dataset: String? by project
+//        val saveDir: String? by project
+//        val sessionConfigs: String? by project
+//        args = listOfNotNull("astridLatency", dataset, saveDir, sessionConfigs)
 //        jvmArgs = listOf("-Djava.awt.headless=true")
 //        maxHeapSize = "8g"
 //    }
@@ -1,55 +1,71 @@
 package org.jetbrains.astrid.helpers;
 
+import org.jetbrains.annotations.NotNull;
 import org.tensorflow.Tensor;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 
+/**
+ * Decodes beam search output tensors of shape [batch, subtokens, beam width] into {@link BeamPredictions}.
+ * Buffers are reused between calls, so one converter must not be shared between threads
+ * and the returned predictions are valid only until the next call of {@link #decode}.
+ */
 public class TensorConverter {
+    private final BeamPredictions myPredictions = new BeamPredictions();
 
-    public static List<List> parsePredictions(Tensor tensor) {
-        int predictionsCount = 10;
-        int maxSubtokenCount = (int) tensor.shape()[1];
-        int[][][] predictionsMatrix = new int[(int) tensor.shape()[0]][maxSubtokenCount][(int) tensor.shape()[2]];
-        tensor.copyTo(predictionsMatrix);
+    public @NotNull BeamPredictions decode(@NotNull Tensor<?> subtokensTensor, @NotNull Tensor<?> scoresTensor) {
+        long[] shape = subtokensTensor.shape();
+        int subtokenCount = (int) shape[1];
+        int beamWidth = (int) shape[2];
+        myPredictions.reset(subtokenCount, beamWidth, (int) (shape[0] * subtokenCount * beamWidth));
+        // Only the first element of the batch is used, and it is at the beginning of both tensors.
+        subtokensTensor.writeTo(myPredictions.mySubtokens);
+        scoresTensor.writeTo(myPredictions.myScores);
+        return myPredictions;
+    }
 
-        List<List> predictions = new ArrayList<>(maxSubtokenCount);
-        for (int i = 0; i < maxSubtokenCount; i++) {
-            predictions.add(Collections.singletonList(predictionsMatrix[0][i]));
-        }
+    /**
+     * Primitive view of beam search results: subtoken indices and log-scores laid out as [subtoken][beam].
+     */
+    public static class BeamPredictions {
+        private IntBuffer mySubtokens = IntBuffer.allocate(0);
+        private FloatBuffer myScores = FloatBuffer.allocate(0);
+        private int mySubtokenCount;
+        private int myBeamWidth;
 
-        List<List> listsOfIndexes = new ArrayList<>();
-        for (int i = 0; i < predictionsCount; i++) {
-            List subtokenIndexes = new ArrayList();
-            for (int z = 0; z < maxSubtokenCount; z++) {
-                subtokenIndexes.add(((int[]) predictions.get(z).get(0))[i]);
+        private void reset(int subtokenCount, int beamWidth, int size) {
+            mySubtokenCount = subtokenCount;
+            myBeamWidth = beamWidth;
+            if (mySubtokens.capacity() < size) {
+                mySubtokens = IntBuffer.allocate(size);
+                myScores = FloatBuffer.allocate(size);
             }
-            listsOfIndexes.add(subtokenIndexes);
+            mySubtokens.clear();
+            myScores.clear();
         }
-        return listsOfIndexes;
-    }
 
-    public static List<Double> parseScores(Tensor tensor) {
-        int scoresCount = 10;
-        int maxSubtokenCount = (int) tensor.shape()[1];
-        float[][][] predictionsMatrix = new float[(int) tensor.shape()[0]][maxSubtokenCount][(int) tensor.shape()[2]];
-        tensor.copyTo(predictionsMatrix);
+        public int getBeamWidth() {
+            return myBeamWidth;
+        }
 
-        List<List> listOfSubtokenScores = new ArrayList<>(maxSubtokenCount);
-        for (int i = 0; i < maxSubtokenCount; i++) {
-            listOfSubtokenScores.add(Collections.singletonList(predictionsMatrix[0][i]));
+        public int getSubtokenCount() {
+            return mySubtokenCount;
         }
 
-        List<Double> listsOfScores = new ArrayList<>();
-        for (int i = 0; i < scoresCount; i++) {
+        public int getSubtoken(int beam, int position) {
+            return mySubtokens.get(position * myBeamWidth + beam);
+        }
+
+        /**
+         * @return probability of the whole name, i.e. exponent of the summed subtoken log-scores.
+         */
+        public double getScore(int beam) {
             double score = 0.0;
-            for (int z = 0; z < maxSubtokenCount; z++) {
-                score += ((float[]) listOfSubtokenScores.get(z).get(0))[i];
+            for (int position = 0; position < mySubtokenCount; position++) {
+                score += myScores.get(position * myBeamWidth + beam);
             }
-            listsOfScores.add(Math.exp(score));
+            return Math.exp(score);
         }
-        return listsOfScores;
     }
-
 }
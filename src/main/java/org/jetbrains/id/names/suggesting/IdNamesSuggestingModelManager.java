@@ -2,6 +2,7 @@ package org.jetbrains.id.names.suggesting;
 
 import com.intellij.openapi.components.ServiceManager;
 import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.Task;
 import com.intellij.openapi.project.Project;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -13,58 +14,179 @@ import org.jetbrains.id.names.suggesting.contributors.ProjectVariableNamesContri
 import org.jetbrains.id.names.suggesting.impl.IdNamesNGramModelRunner;
 import org.jetbrains.id.names.suggesting.utils.NotificationsUtil;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class IdNamesSuggestingModelManager {
-    private final Map<String, IdNamesSuggestingModelRunner> myModelRunners = new HashMap<>();
+    private final Map<String, IdNamesSuggestingModelRunner> myModelRunners = new ConcurrentHashMap<>();
+    /**
+     * If the global model was loaded or saved and didn't change since, so it may be evicted and loaded again.
+     */
+    private volatile boolean myIsGlobalModelSaved = false;
+    private volatile boolean myIsGlobalModelEvicted = false;
+    private final AtomicBoolean myIsGlobalModelLoading = new AtomicBoolean();
+    /**
+     * Guards replacing of the global model and its flags. Held while the model is loaded or saved, never across
+     * read actions, eviction skips the model meanwhile instead of waiting.
+     */
+    private final ReentrantLock myGlobalModelLock = new ReentrantLock();
+    /**
+     * Serializes trainings of the global model, which isn't thread-safe. Held across the read actions of training,
+     * so it's never taken in a read action or under {@link #myGlobalModelLock}.
+     */
+    private final ReentrantLock myGlobalTrainingLock = new ReentrantLock();
+    /**
+     * If the global model is being trained or saved, it's newer than the saved one then. Guarded by {@link #myGlobalModelLock}.
+     */
+    private boolean myIsGlobalModelTraining = false;
 
     public IdNamesSuggestingModelManager() {
         IdNamesNGramModelRunner modelRunner = new IdNamesNGramModelRunner(NGramVariableNamesContributor.SUPPORTED_TYPES, true);
         putModelRunner(GlobalVariableNamesContributor.class, modelRunner);
+        MemoryBudgetManager.getInstance().register("global model", MemoryBudgetManager.GLOBAL_MODEL,
+                new MemoryBudgetManager.Component() {
+                    @Override
+                    public long estimateSize() {
+                        return myIsGlobalModelEvicted ? 0 : getGlobalModelRunner().estimateSize();
+                    }
+
+                    @Override
+                    public boolean evict() {
+                        return evictGlobalModel();
+                    }
+                });
     }
 
     public static IdNamesSuggestingModelManager getInstance() {
         return ServiceManager.getService(IdNamesSuggestingModelManager.class);
     }
 
+    /**
+     * An evicted global model is loaded in background, meanwhile an empty model is returned.
+     */
     public IdNamesSuggestingModelRunner getModelRunner(Class<? extends VariableNamesContributor> name) {
+        if (name == GlobalVariableNamesContributor.class && myIsGlobalModelEvicted
+                && myIsGlobalModelLoading.compareAndSet(false, true)) {
+            new Task.Backgroundable(null, IdNamesSuggestingBundle.message("loading.global.model")) {
+                @Override
+                public void run(@NotNull ProgressIndicator progressIndicator) {
+                    loadGlobalModel(progressIndicator);
+                }
+
+                @Override
+                public void onFinished() {
+                    myIsGlobalModelLoading.set(false);
+                }
+            }.queue();
+        }
         return myModelRunners.get(name.getName());
     }
 
+    private @NotNull IdNamesNGramModelRunner getGlobalModelRunner() {
+        return (IdNamesNGramModelRunner) myModelRunners.get(GlobalVariableNamesContributor.class.getName());
+    }
+
+    /**
+     * Replaces the global model with the saved one unless the model is being trained. Doesn't need a read action.
+     */
+    public void loadGlobalModel(@Nullable ProgressIndicator progressIndicator) {
+        myGlobalModelLock.lock();
+        try {
+            if (myIsGlobalModelTraining) return;
+            IdNamesNGramModelRunner modelRunner = new IdNamesNGramModelRunner(NGramVariableNamesContributor.SUPPORTED_TYPES, true);
+            modelRunner.load(progressIndicator);
+            putModelRunner(GlobalVariableNamesContributor.class, modelRunner);
+            myIsGlobalModelSaved = true;
+            myIsGlobalModelEvicted = false;
+        } finally {
+            myGlobalModelLock.unlock();
+        }
+    }
+
+    private boolean evictGlobalModel() {
+        if (!myGlobalModelLock.tryLock()) return false;
+        try {
+            if (!myIsGlobalModelSaved || myIsGlobalModelEvicted) return false;
+            putModelRunner(GlobalVariableNamesContributor.class,
+                    new IdNamesNGramModelRunner(NGramVariableNamesContributor.SUPPORTED_TYPES, true));
+            myIsGlobalModelEvicted = true;
+            return true;
+        } finally {
+            myGlobalModelLock.unlock();
+        }
+    }
+
     public void putModelRunner(Class<? extends VariableNamesContributor> name, IdNamesSuggestingModelRunner modelRunner) {
         myModelRunners.put(name.getName(), modelRunner);
     }
 
-    public IdNamesSuggestingModelRunner getModelRunner(Class<? extends VariableNamesContributor> className, Project project) {
-        IdNamesSuggestingModelRunner modelRunner = myModelRunners.get(String.join("_", className.getName(), project.getLocationHash()));
-        if (modelRunner != null){
-            return modelRunner;
+    /**
+     * @return the project model of {@link ProjectModelStore} for {@link ProjectVariableNamesContributor},
+     * {@code null} while it isn't trained or is being loaded, so the project contributors suggest nothing meanwhile,
+     * otherwise the model of {@code className}.
+     */
+    public @Nullable IdNamesSuggestingModelRunner getModelRunner(Class<? extends VariableNamesContributor> className,
+                                                                 Project project) {
+        if (className == ProjectVariableNamesContributor.class) {
+            return ProjectModelStore.getInstance(project).getModelRunner();
         }
         return getModelRunner(className);
     }
 
-    public void putModelRunner(Class<? extends VariableNamesContributor> className, Project project, IdNamesSuggestingModelRunner modelRunner) {
-        myModelRunners.put(String.join("_", className.getName(), project.getLocationHash()), modelRunner);
-    }
-
-    public void trainProjectNGramModel(@NotNull Project project, @Nullable ProgressIndicator progressIndicator) {
-        IdNamesNGramModelRunner modelRunner = new IdNamesNGramModelRunner(NGramVariableNamesContributor.SUPPORTED_TYPES, true);
-        modelRunner.learnProject(project, progressIndicator);
-        putModelRunner(ProjectVariableNamesContributor.class, project, modelRunner);
+    public void trainProjectNGramModel(@NotNull Project project, @Nullable ProgressIndicator progressIndicator, boolean save) {
+        ProjectModelStore.getInstance(project).train(progressIndicator, save);
     }
 
+    /**
+     * Adds the project to the global model, an evicted global model is loaded first.
+     * The model isn't evicted or reloaded while it's trained. Must not be called in a read action.
+     */
     public void trainGlobalNGramModel(@NotNull Project project, @Nullable ProgressIndicator progressIndicator, boolean save) {
-        IdNamesNGramModelRunner modelRunner = (IdNamesNGramModelRunner) IdNamesSuggestingModelManager.getInstance()
-                .getModelRunner(GlobalVariableNamesContributor.class);
-        modelRunner.learnProject(project, progressIndicator);
-        if (save) {
-            double size = modelRunner.save(progressIndicator);
-            NotificationsUtil.notify(project,
-                    "Global model size",
-                    String.format("is %.3f Mb",
-                            size));
-            System.out.printf("Global model size is %.3f Mb.\n", size);
+        myGlobalTrainingLock.lock();
+        try {
+            IdNamesNGramModelRunner modelRunner;
+            myGlobalModelLock.lock();
+            try {
+                if (myIsGlobalModelEvicted) {
+                    loadGlobalModel(progressIndicator);
+                }
+                modelRunner = getGlobalModelRunner();
+                myIsGlobalModelSaved = false;
+                myIsGlobalModelTraining = true;
+            } finally {
+                myGlobalModelLock.unlock();
+            }
+            double size = 0;
+            try {
+                modelRunner.learnProjectFromIndex(project, progressIndicator);
+                if (save) {
+                    myGlobalModelLock.lock();
+                    try {
+                        size = modelRunner.save(progressIndicator);
+                        myIsGlobalModelSaved = true;
+                    } finally {
+                        myGlobalModelLock.unlock();
+                    }
+                }
+            } finally {
+                myGlobalModelLock.lock();
+                try {
+                    myIsGlobalModelTraining = false;
+                } finally {
+                    myGlobalModelLock.unlock();
+                }
+            }
+            if (save) {
+                NotificationsUtil.notify(project,
+                        "Global model size",
+                        String.format("is %.3f Mb",
+                                size));
+                System.out.printf("Global model size is %.3f Mb.\n", size);
+            }
+        } finally {
+            myGlobalTrainingLock.unlock();
         }
     }
 }
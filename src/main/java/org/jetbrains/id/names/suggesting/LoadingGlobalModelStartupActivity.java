@@ -1,14 +1,11 @@
 package org.jetbrains.id.names.suggesting;
 
-import com.intellij.openapi.application.ReadAction;
 import com.intellij.openapi.progress.ProgressIndicator;
 import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.progress.Task;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.startup.StartupActivity;
 import org.jetbrains.annotations.NotNull;
-import org.jetbrains.id.names.suggesting.contributors.GlobalVariableNamesContributor;
-import org.jetbrains.id.names.suggesting.impl.IdNamesNGramModelRunner;
 
 public class LoadingGlobalModelStartupActivity implements StartupActivity {
     @Override
@@ -16,10 +13,8 @@ public class LoadingGlobalModelStartupActivity implements StartupActivity {
         ProgressManager.getInstance().run(new Task.Backgroundable(project, IdNamesSuggestingBundle.message("loading.global.model")) {
             @Override
             public void run(@NotNull ProgressIndicator progressIndicator) {
-                ReadAction.nonBlocking(() -> ((IdNamesNGramModelRunner) IdNamesSuggestingModelManager.getInstance()
-                        .getModelRunner(GlobalVariableNamesContributor.class)).load(progressIndicator))
-                        .inSmartMode(project)
-                        .executeSynchronously();
+                // Loading reads the saved files only, so it runs out of read actions
+                IdNamesSuggestingModelManager.getInstance().loadGlobalModel(progressIndicator);
             }
         });
     }
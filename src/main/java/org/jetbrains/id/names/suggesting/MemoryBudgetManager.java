@@ -0,0 +1,140 @@
+package org.jetbrains.id.names.suggesting;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.components.ServiceManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.Disposer;
+import com.intellij.openapi.util.LowMemoryWatcher;
+import com.intellij.openapi.util.registry.Registry;
+import com.intellij.util.containers.ContainerUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps track of the estimated memory footprint of the models and caches of the plugin. When the platform reports
+ * low memory after a GC, caches are dropped, then other components are evicted in order of their priority,
+ * the largest first, until the footprint fits into the budget of {@code id.names.suggesting.memory.budget.percent}
+ * of the maximum heap. Evicted components are loaded again on demand.
+ */
+public class MemoryBudgetManager implements Disposable {
+    public static final int CACHE = 0;
+    public static final int PROJECT_MODEL = 1;
+    public static final int INFERENCE_MODEL = 2;
+    public static final int GLOBAL_MODEL = 3;
+
+    private static final Logger log = Logger.getInstance(MemoryBudgetManager.class);
+
+    private final List<Registration> myComponents = ContainerUtil.createLockFreeCopyOnWriteList();
+
+    public MemoryBudgetManager() {
+        LowMemoryWatcher.register(this::onLowMemory, LowMemoryWatcher.LowMemoryWatcherType.ONLY_AFTER_GC, this);
+    }
+
+    public static MemoryBudgetManager getInstance() {
+        return ServiceManager.getService(MemoryBudgetManager.class);
+    }
+
+    public interface Component {
+        /**
+         * @return estimated number of bytes held by the component, 0 if it's evicted.
+         */
+        long estimateSize();
+
+        /**
+         * @return if anything was released, a component which can't be loaded again keeps its data.
+         */
+        boolean evict();
+    }
+
+    public void register(@NotNull String name, int priority, @NotNull Component component) {
+        register(name, priority, component, this);
+    }
+
+    /**
+     * The component is tracked until {@code parent} is disposed.
+     */
+    public void register(@NotNull String name, int priority, @NotNull Component component, @NotNull Disposable parent) {
+        Registration registration = new Registration(name, priority, component);
+        myComponents.add(registration);
+        Disposer.register(parent, () -> myComponents.remove(registration));
+    }
+
+    /**
+     * Registers a map of cached values, which is cleared on low memory.
+     *
+     * @param bytesPerEntry rough estimate of the heap taken by an entry: the key and the cached value.
+     */
+    public void registerCache(@NotNull String name, @NotNull Map<?, ?> cache, long bytesPerEntry) {
+        register(name, CACHE, new Component() {
+            @Override
+            public long estimateSize() {
+                return cache.size() * bytesPerEntry;
+            }
+
+            @Override
+            public boolean evict() {
+                cache.clear();
+                return true;
+            }
+        });
+    }
+
+    public long getBudget() {
+        return Runtime.getRuntime().maxMemory() / 100 * Registry.intValue("id.names.suggesting.memory.budget.percent");
+    }
+
+    public long estimateSize() {
+        long size = 0;
+        for (Registration registration : myComponents) {
+            size += registration.component.estimateSize();
+        }
+        return size;
+    }
+
+    private void onLowMemory() {
+        List<Registration> components = new ArrayList<>(myComponents);
+        long[] sizes = new long[components.size()];
+        for (int i = 0; i < components.size(); i++) {
+            sizes[i] = components.get(i).component.estimateSize();
+        }
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < components.size(); i++) {
+            order.add(i);
+        }
+        order.sort(Comparator.<Integer>comparingInt(i -> components.get(i).priority)
+                .thenComparingLong(i -> -sizes[i]));
+
+        long size = 0;
+        for (long componentSize : sizes) {
+            size += componentSize;
+        }
+        long budget = getBudget();
+        for (int i : order) {
+            Registration registration = components.get(i);
+            if (registration.priority != CACHE && size <= budget) break;
+            if (sizes[i] == 0 || !registration.component.evict()) continue;
+            size -= sizes[i];
+            log.info(String.format("Evicted %s of about %d MB on low memory", registration.name, sizes[i] >> 20));
+        }
+    }
+
+    @Override
+    public void dispose() {
+    }
+
+    private static class Registration {
+        final String name;
+        final int priority;
+        final Component component;
+
+        Registration(@NotNull String name, int priority, @NotNull Component component) {
+            this.name = name;
+            this.priority = priority;
+            this.component = component;
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package org.jetbrains.id.names.suggesting;
+
+import com.intellij.ide.highlighter.JavaFileType;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.components.ServiceManager;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.search.FileTypeIndex;
+import com.intellij.psi.search.GlobalSearchScope;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.id.names.suggesting.contributors.NGramVariableNamesContributor;
+import org.jetbrains.id.names.suggesting.impl.IdNamesNGramModelRunner;
+
+import java.io.*;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Project n-gram model of a project. The model is saved under the system directory of the project
+ * with time stamps of the files it was trained on and is loaded in background on first use after a restart
+ * or an eviction. While it is loading, {@link #getModelRunner()} returns {@code null}.
+ * <p>
+ * A loaded model catches up with the files which were changed or added since it was saved by learning them
+ * from the index. Counts of the old contents of changed and removed files can't be forgotten, so the number of
+ * such stale files is saved with the model and accumulates over catch ups. Once more than
+ * {@link #MAX_STALE_FRACTION} of the files are stale, the model is retrained instead.
+ * <p>
+ * The model is released when the project closes and, if it's saved, evicted by {@link MemoryBudgetManager}
+ * when the IDE runs low on memory.
+ */
+public class ProjectModelStore implements Disposable {
+    private static final double MAX_STALE_FRACTION = 0.2;
+    private static final String TIME_STAMPS_FILE = "timeStamps.ser";
+
+    private final Project myProject;
+    private final Path myDirectory;
+    private final AtomicBoolean myIsLoading = new AtomicBoolean();
+    private volatile @Nullable IdNamesNGramModelRunner myModelRunner;
+    /**
+     * If the model is the same as the saved one, so it may be evicted and loaded again.
+     */
+    private volatile boolean myIsModelSaved;
+
+    public ProjectModelStore(@NotNull Project project) {
+        myProject = project;
+        myDirectory = Paths.get(PathManager.getSystemPath(), "id-names-suggesting", "projects", project.getLocationHash());
+        MemoryBudgetManager.getInstance().register("project model of " + project.getName(),
+                MemoryBudgetManager.PROJECT_MODEL, new MemoryBudgetManager.Component() {
+                    @Override
+                    public long estimateSize() {
+                        IdNamesNGramModelRunner modelRunner = myModelRunner;
+                        return modelRunner == null ? 0 : modelRunner.estimateSize();
+                    }
+
+                    @Override
+                    public boolean evict() {
+                        synchronized (ProjectModelStore.this) {
+                            if (!myIsModelSaved || myModelRunner == null) return false;
+                            unload();
+                            return true;
+                        }
+                    }
+                }, this);
+    }
+
+    public static ProjectModelStore getInstance(@NotNull Project project) {
+        return ServiceManager.getService(project, ProjectModelStore.class);
+    }
+
+    /**
+     * @return the model or {@code null} if it isn't trained or is being loaded.
+     */
+    public @Nullable IdNamesNGramModelRunner getModelRunner() {
+        IdNamesNGramModelRunner modelRunner = myModelRunner;
+        if (modelRunner == null && isSaved() && myIsLoading.compareAndSet(false, true)) {
+            new Task.Backgroundable(myProject, IdNamesSuggestingBundle.message("loading.project.model")) {
+                @Override
+                public void run(@NotNull ProgressIndicator progressIndicator) {
+                    IdNamesNGramModelRunner loaded = loadAndCatchUp(progressIndicator);
+                    synchronized (ProjectModelStore.this) {
+                        // A model trained meanwhile is newer than the loaded one
+                        if (myModelRunner == null) {
+                            myModelRunner = loaded;
+                            myIsModelSaved = true;
+                        }
+                    }
+                }
+
+                @Override
+                public void onFinished() {
+                    myIsLoading.set(false);
+                }
+            }.queue();
+        }
+        return modelRunner;
+    }
+
+    /**
+     * Trains a new model on the project, replaces the current one with it and saves it if {@code save}.
+     * Must not be called in a write action.
+     */
+    public void train(@Nullable ProgressIndicator progressIndicator, boolean save) {
+        // Taken before training, so files changed during it are learned again on the next catch up
+        Map<String, Long> timeStamps = getTimeStamps(getFiles());
+        IdNamesNGramModelRunner modelRunner = new IdNamesNGramModelRunner(NGramVariableNamesContributor.SUPPORTED_TYPES, true);
+        modelRunner.learnProjectFromIndex(myProject, progressIndicator);
+        synchronized (this) {
+            myModelRunner = modelRunner;
+            myIsModelSaved = false;
+        }
+        if (save) {
+            save(modelRunner, timeStamps, 0, progressIndicator);
+            synchronized (this) {
+                myIsModelSaved = myModelRunner == modelRunner;
+            }
+        }
+    }
+
+    /**
+     * Releases the model, a saved model will be loaded again on next use.
+     */
+    public void unload() {
+        myModelRunner = null;
+    }
+
+    @Override
+    public void dispose() {
+        unload();
+    }
+
+    private boolean isSaved() {
+        return myDirectory.resolve(TIME_STAMPS_FILE).toFile().exists();
+    }
+
+    private @NotNull IdNamesNGramModelRunner loadAndCatchUp(@NotNull ProgressIndicator progressIndicator) {
+        IdNamesNGramModelRunner modelRunner = new IdNamesNGramModelRunner(NGramVariableNamesContributor.SUPPORTED_TYPES, true);
+        modelRunner.load(myDirectory, progressIndicator);
+        SavedState saved = readSavedState();
+        List<VirtualFile> files = getFiles();
+        Map<String, Long> timeStamps = getTimeStamps(files);
+        if (saved == null) {
+            // Unknown contents were learned, so the whole model is stale
+            modelRunner = new IdNamesNGramModelRunner(NGramVariableNamesContributor.SUPPORTED_TYPES, true);
+            modelRunner.learnFilesFromIndex(myProject, files, progressIndicator);
+            save(modelRunner, timeStamps, 0, progressIndicator);
+            return modelRunner;
+        }
+        Map<String, Long> savedTimeStamps = saved.timeStamps;
+        List<VirtualFile> changedFiles = new ArrayList<>();
+        int staleFiles = saved.staleFiles;
+        for (VirtualFile file : files) {
+            Long savedTimeStamp = savedTimeStamps.get(file.getUrl());
+            if (!timeStamps.get(file.getUrl()).equals(savedTimeStamp)) {
+                changedFiles.add(file);
+                // Counts of the saved content stay in the model, a new file has none
+                if (savedTimeStamp != null) staleFiles++;
+            }
+        }
+        staleFiles += (int) savedTimeStamps.keySet().stream().filter(url -> !timeStamps.containsKey(url)).count();
+        if (staleFiles == saved.staleFiles && changedFiles.isEmpty()) {
+            return modelRunner;
+        }
+        if (staleFiles > MAX_STALE_FRACTION * Math.max(files.size(), savedTimeStamps.size())) {
+            modelRunner = new IdNamesNGramModelRunner(NGramVariableNamesContributor.SUPPORTED_TYPES, true);
+            modelRunner.learnFilesFromIndex(myProject, files, progressIndicator);
+            staleFiles = 0;
+        } else {
+            modelRunner.learnFilesFromIndex(myProject, changedFiles, progressIndicator);
+        }
+        save(modelRunner, timeStamps, staleFiles, progressIndicator);
+        return modelRunner;
+    }
+
+    private @NotNull List<VirtualFile> getFiles() {
+        return new ArrayList<>(IdNamesNGramModelRunner.readInSmartMode(myProject,
+                () -> FileTypeIndex.getFiles(JavaFileType.INSTANCE, GlobalSearchScope.projectScope(myProject))));
+    }
+
+    private static @NotNull Map<String, Long> getTimeStamps(@NotNull List<VirtualFile> files) {
+        Map<String, Long> timeStamps = new HashMap<>();
+        for (VirtualFile file : files) {
+            timeStamps.put(file.getUrl(), file.getTimeStamp());
+        }
+        return timeStamps;
+    }
+
+    /**
+     * Time stamps are written after the model, so a model which wasn't saved completely isn't loaded.
+     *
+     * @param staleFiles number of files whose old contents the model learned and which were changed or removed since.
+     */
+    private void save(@NotNull IdNamesNGramModelRunner modelRunner,
+                      @NotNull Map<String, Long> timeStamps,
+                      int staleFiles,
+                      @Nullable ProgressIndicator progressIndicator) {
+        File timeStampsFile = myDirectory.resolve(TIME_STAMPS_FILE).toFile();
+        FileUtil.delete(timeStampsFile);
+        myDirectory.toFile().mkdirs();
+        modelRunner.save(myDirectory, progressIndicator);
+        try (ObjectOutputStream objectOutputStream = new ObjectOutputStream(new FileOutputStream(timeStampsFile))) {
+            objectOutputStream.writeObject(new HashMap<>(timeStamps));
+            objectOutputStream.writeInt(staleFiles);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private @Nullable SavedState readSavedState() {
+        try (ObjectInputStream objectInputStream = new ObjectInputStream(new FileInputStream(myDirectory.resolve(TIME_STAMPS_FILE).toFile()))) {
+            Map<String, Long> timeStamps = (HashMap<String, Long>) objectInputStream.readObject();
+            return new SavedState(timeStamps, objectInputStream.readInt());
+        } catch (IOException | ClassNotFoundException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private static class SavedState {
+        final Map<String, Long> timeStamps;
+        final int staleFiles;
+
+        SavedState(@NotNull Map<String, Long> timeStamps, int staleFiles) {
+            this.timeStamps = timeStamps;
+            this.staleFiles = staleFiles;
+        }
+    }
+}
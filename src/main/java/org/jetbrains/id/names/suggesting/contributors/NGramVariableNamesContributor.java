@@ -11,6 +11,7 @@ import org.jetbrains.id.names.suggesting.VarNamePrediction;
 import org.jetbrains.id.names.suggesting.api.VariableNamesContributor;
 import org.jetbrains.id.names.suggesting.impl.IdNamesNGramModelRunner;
 import org.jetbrains.id.names.suggesting.utils.PsiUtils;
+import org.jetbrains.id.names.suggesting.utils.ResolvedIdentifiers;
 
 import java.util.ArrayList;
 import java.util.Comparator;
@@ -21,7 +22,6 @@ import java.util.stream.Stream;
 
 import static java.lang.Integer.max;
 import static org.jetbrains.id.names.suggesting.utils.PsiUtils.findReferences;
-import static org.jetbrains.id.names.suggesting.utils.PsiUtils.isVariableOrReference;
 
 public abstract class NGramVariableNamesContributor implements VariableNamesContributor {
     public static final List<Class<? extends PsiNameIdentifierOwner>> SUPPORTED_TYPES = new ArrayList<>();
@@ -30,16 +30,14 @@ public abstract class NGramVariableNamesContributor implements VariableNamesCont
         SUPPORTED_TYPES.add(PsiVariable.class);
     }
 
-    private int modelOrder;
-
     @Override
     public int contribute(@NotNull PsiVariable variable, @NotNull List<VarNamePrediction> predictionList, boolean forgetUsages) {
         IdNamesNGramModelRunner modelRunner = getModelRunnerToContribute(variable);
         if (modelRunner == null || !isSupported(variable)) {
             return 0;
         }
-        modelOrder = modelRunner.getOrder();
-        predictionList.addAll(modelRunner.suggestNames(variable.getClass(), findUsageNGrams(variable), forgetUsages));
+        predictionList.addAll(modelRunner.suggestNames(variable.getClass(),
+                findUsageNGrams(variable, modelRunner.getOrder()), forgetUsages));
         return modelRunner.getModelPriority();
     }
 
@@ -49,8 +47,7 @@ public abstract class NGramVariableNamesContributor implements VariableNamesCont
         if (modelRunner == null || !isSupported(variable)) {
             return new Pair<>(0.0, 0);
         }
-        modelOrder = modelRunner.getOrder();
-        return modelRunner.getProbability(findUsageNGrams(variable), forgetUsages);
+        return modelRunner.getProbability(findUsageNGrams(variable, modelRunner.getOrder()), forgetUsages);
     }
 
     public abstract @Nullable IdNamesNGramModelRunner getModelRunnerToContribute(@NotNull PsiVariable variable);
@@ -59,26 +56,26 @@ public abstract class NGramVariableNamesContributor implements VariableNamesCont
         return SUPPORTED_TYPES.stream().anyMatch(type -> type.isInstance(identifierOwner));
     }
 
-    private List<List<String>> findUsageNGrams(PsiVariable variable) {
+    private List<List<String>> findUsageNGrams(PsiVariable variable, int order) {
         Stream<PsiReference> elementUsages = findReferences(variable, variable.getContainingFile());
         return Stream.concat(Stream.of(variable), elementUsages)
                 .map(PsiUtils::getIdentifier)
                 .filter(Objects::nonNull)
                 .sorted(Comparator.comparing(PsiElement::getTextOffset))
-                .map(identifier -> getNGram(identifier, variable))
+                .map(identifier -> getNGram(identifier, variable, order))
                 .collect(Collectors.toList());
     }
 
-    private List<String> getNGram(@NotNull PsiElement element, @NotNull PsiVariable variable) {
-        int order = modelOrder;
+    private List<String> getNGram(@NotNull PsiElement element, @NotNull PsiVariable variable, int order) {
         final List<String> tokens = new ArrayList<>();
+        ResolvedIdentifiers resolvedIdentifiers = ResolvedIdentifiers.getInstance(element.getContainingFile());
         for (PsiElement token : SyntaxTraverser
                 .revPsiTraverser()
                 .withRoot(element.getContainingFile())
                 .onRange(new TextRange(0, max(0, element.getTextOffset())))
                 .forceIgnore(node -> node instanceof PsiComment)
                 .filter(PsiUtils::shouldLex)) {
-            tokens.add(processToken(token, variable));
+            tokens.add(processToken(token, variable, resolvedIdentifiers));
             if (--order < 1) {
                 break;
             }
@@ -86,8 +83,8 @@ public abstract class NGramVariableNamesContributor implements VariableNamesCont
         return Lists.reverse(tokens);
     }
 
-    public static String processToken(@NotNull PsiElement token, @NotNull PsiVariable variable) {
-        if (isVariableOrReference(variable, token)) {
+    public static String processToken(@NotNull PsiElement token, @NotNull PsiVariable variable, @NotNull ResolvedIdentifiers resolvedIdentifiers) {
+        if (resolvedIdentifiers.isVariableOrReference(variable, token)) {
             return Vocabulary.unknownCharacter;
         }
         return token.getText();
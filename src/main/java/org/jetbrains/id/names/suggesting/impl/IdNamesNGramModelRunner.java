@@ -7,14 +7,22 @@ import com.intellij.completion.ngram.slp.modeling.ngram.NGramModel;
 import com.intellij.completion.ngram.slp.translating.Vocabulary;
 import com.intellij.completion.ngram.slp.translating.VocabularyRunner;
 import com.intellij.ide.highlighter.JavaFileType;
+import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.fileEditor.impl.LoadTextUtil;
+import com.intellij.openapi.fileTypes.FileTypeRegistry;
 import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ProjectFileIndex;
+import com.intellij.openapi.util.Computable;
 import com.intellij.openapi.util.TextRange;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.psi.*;
 import com.intellij.psi.search.FileTypeIndex;
 import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.util.ConcurrencyUtil;
 import com.intellij.util.ObjectUtils;
 import kotlin.Pair;
 import org.jetbrains.annotations.NotNull;
@@ -24,6 +32,7 @@ import org.jetbrains.id.names.suggesting.IdNamesSuggestingService;
 import org.jetbrains.id.names.suggesting.VarNamePrediction;
 import org.jetbrains.id.names.suggesting.VocabularyManager;
 import org.jetbrains.id.names.suggesting.api.IdNamesSuggestingModelRunner;
+import org.jetbrains.id.names.suggesting.utils.JavaTokens;
 import org.jetbrains.id.names.suggesting.utils.NotificationsUtil;
 import org.jetbrains.id.names.suggesting.utils.PsiUtils;
 
@@ -33,6 +42,12 @@ import java.nio.file.Paths;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
@@ -76,6 +91,13 @@ public class IdNamesNGramModelRunner implements IdNamesSuggestingModelRunner {
         }
     }
 
+    /**
+     * Rough estimate of the heap taken by the model: n-gram counts grow with the number of learned tokens.
+     */
+    public long estimateSize() {
+        return (long) myModel.getCounter().getCount() * BYTES_PER_TOKEN + (long) myVocabulary.size() * BYTES_PER_WORD;
+    }
+
     public int getModelPriority() {
         return myVocabulary.size();
     }
@@ -151,8 +173,19 @@ public class IdNamesNGramModelRunner implements IdNamesSuggestingModelRunner {
                 .collect(Collectors.toList());
     }
 
+    /**
+     * The vocabulary stores unknown tokens, so predictions made at once on the same model look it up one at a time.
+     */
     private @NotNull List<List<Integer>> nGramToIndices(@NotNull List<List<String>> usageNGrams) {
-        return usageNGrams.stream().map(myVocabulary::toIndices).collect(Collectors.toList());
+        synchronized (myVocabulary) {
+            return usageNGrams.stream().map(myVocabulary::toIndices).collect(Collectors.toList());
+        }
+    }
+
+    private @NotNull String toWord(int index) {
+        synchronized (myVocabulary) {
+            return myVocabulary.toWord(index);
+        }
     }
 
     private int predictUsageName(@NotNull List<VarNamePrediction> predictionList,
@@ -163,7 +196,7 @@ public class IdNamesNGramModelRunner implements IdNamesSuggestingModelRunner {
                 .entrySet()
                 .stream()
                 .filter(idTypeFilter)
-                .map(e -> new VarNamePrediction(myVocabulary.toWord(e.getKey()),
+                .map(e -> new VarNamePrediction(toWord(e.getKey()),
                         toProb(e.getValue()),
                         usagePriority))
                 .sorted((pred1, pred2) -> -Double.compare(pred1.getProbability(), pred2.getProbability()))
@@ -266,6 +299,203 @@ public class IdNamesNGramModelRunner implements IdNamesSuggestingModelRunner {
         System.out.printf("Vocabulary size: %d\n", myVocabulary.size());
     }
 
+    /**
+     * Trains the model on the project like {@link #learnProject(Project, ProgressIndicator)}, but files are lexed
+     * by {@code threads} workers, each file in its own read action. Must not be called in a read action.
+     *
+     * @return number of learned tokens.
+     */
+    public long learnProject(@NotNull Project project, @Nullable ProgressIndicator progressIndicator, int threads) {
+        List<VirtualFile> files = new ArrayList<>(ReadAction.compute(() -> FileTypeIndex.getFiles(JavaFileType.INSTANCE,
+                GlobalSearchScope.projectScope(project))));
+        PsiManager psiManager = PsiManager.getInstance(project);
+        return learnFiles(project, files, file -> ReadAction.compute(() -> {
+            PsiFile psiFile = psiManager.findFile(file);
+            return psiFile == null ? LexedFile.EMPTY : lex(psiFile);
+        }), progressIndicator, threads);
+    }
+
+    /**
+     * Trains the model on the Java files of the project content without building PSI: texts of the files are
+     * tokenized by the Java lexer and names of variables are guessed by {@link JavaTokens#lex}. Indices are not used
+     * either, so training does not wait for indexing. Must not be called in a read action.
+     *
+     * @return number of learned tokens.
+     */
+    public long learnProjectByLexer(@NotNull Project project, @Nullable ProgressIndicator progressIndicator, int threads) {
+        List<VirtualFile> files = new ArrayList<>();
+        FileTypeRegistry fileTypeRegistry = FileTypeRegistry.getInstance();
+        ReadAction.run(() -> ProjectFileIndex.getInstance(project).iterateContent(file -> {
+            if (!file.isDirectory() && fileTypeRegistry.isFileOfType(file, JavaFileType.INSTANCE)) {
+                files.add(file);
+            }
+            return true;
+        }));
+        Class<? extends PsiNameIdentifierOwner> variableClass = getSupportedParentClass(PsiVariable.class);
+        return learnFiles(project, files, file -> toLexedFile(JavaTokens.lex(LoadTextUtil.loadText(file)), variableClass),
+                progressIndicator, threads);
+    }
+
+    /**
+     * Trains the model on the token streams of the Java files of the project stored in {@link JavaTokensIndex},
+     * so no file is lexed.
+     * <p>
+     * Streams are read in chunks of {@link #CHUNK_MILLIS}, each in its own non-blocking read action in smart mode,
+     * and learned out of read actions. A write action cancels only the read of the current chunk, which is restarted
+     * from its first file, while the learned chunks stay in the counter. If the caller holds the read access already,
+     * chunks are read in place.
+     *
+     * @return number of learned tokens.
+     */
+    public long learnProjectFromIndex(@NotNull Project project, @Nullable ProgressIndicator progressIndicator) {
+        List<VirtualFile> files = new ArrayList<>(readInSmartMode(project, () -> FileTypeIndex.getFiles(JavaFileType.INSTANCE,
+                GlobalSearchScope.projectScope(project))));
+        Instant start = Instant.now();
+        long tokens = learnFilesFromIndex(project, files, progressIndicator);
+        NotificationsUtil.notify(project,
+                "NGram model training is completed.",
+                String.format("Time of training on %s: %d ms.",
+                        project.getName(),
+                        Duration.between(start, Instant.now()).toMillis()));
+        return tokens;
+    }
+
+    /**
+     * Trains the model on the indexed token streams of the files like {@link #learnProjectFromIndex}.
+     *
+     * @return number of learned tokens.
+     */
+    public long learnFilesFromIndex(@NotNull Project project,
+                                    @NotNull List<VirtualFile> files,
+                                    @Nullable ProgressIndicator progressIndicator) {
+        if (progressIndicator != null) {
+            progressIndicator.setIndeterminate(false);
+        }
+        Class<? extends PsiNameIdentifierOwner> variableClass = getSupportedParentClass(PsiVariable.class);
+        final int total = files.size();
+        int done = 0;
+        long tokens = 0;
+        System.out.printf("Training NGram model on %s from index...\n", project.getName());
+        Instant start = Instant.now();
+        while (done < total) {
+            if (progressIndicator != null) {
+                progressIndicator.checkCanceled();
+            }
+            int from = done;
+            List<JavaTokens> chunk = readInSmartMode(project, () -> readIndexedChunk(project, files, from));
+            for (JavaTokens indexed : chunk) {
+                if (indexed != null) {
+                    learn(toLexedFile(indexed, variableClass));
+                    tokens += indexed.getTokens().size();
+                }
+            }
+            done += chunk.size();
+            double fraction = done / (double) total;
+            System.out.printf("Status:\t%.0f%%\r", fraction * 100.);
+            if (progressIndicator != null) {
+                progressIndicator.setText2(files.get(done - 1).getPath());
+                progressIndicator.setFraction(fraction);
+            }
+        }
+        System.out.printf("Done in %s\n", Duration.between(start, Instant.now()));
+        System.out.printf("Vocabulary size: %d\n", myVocabulary.size());
+        return tokens;
+    }
+
+    /**
+     * Reads indexed streams of the files starting from {@code from} until {@link #CHUNK_MILLIS} pass, at least one.
+     * Doesn't touch the model, so a cancelled read may be restarted.
+     *
+     * @return streams of the read files, {@code null} for files which aren't indexed.
+     */
+    private static @NotNull List<JavaTokens> readIndexedChunk(@NotNull Project project,
+                                                              @NotNull List<VirtualFile> files,
+                                                              int from) {
+        List<JavaTokens> chunk = new ArrayList<>();
+        long deadline = System.currentTimeMillis() + CHUNK_MILLIS;
+        for (int i = from; i < files.size() && (chunk.isEmpty() || System.currentTimeMillis() < deadline); i++) {
+            ProgressManager.checkCanceled();
+            VirtualFile file = files.get(i);
+            chunk.add(file.isValid() ? JavaTokensIndex.getTokens(project, file) : null);
+        }
+        return chunk;
+    }
+
+    /**
+     * Computes {@code read} in a non-blocking read action in smart mode, which the platform restarts if a write
+     * action cancels it, or in place if the caller holds the read access already.
+     */
+    public static <T> T readInSmartMode(@NotNull Project project, @NotNull Computable<T> read) {
+        if (ApplicationManager.getApplication().isReadAccessAllowed()) {
+            return read.compute();
+        }
+        return ReadAction.nonBlocking(read::compute)
+                .inSmartMode(project)
+                .expireWith(project)
+                .executeSynchronously();
+    }
+
+    /**
+     * Files are lexed by {@code threads} workers. The model is not thread-safe, so lexed files are learned
+     * by the calling thread in the order they are ready.
+     */
+    private long learnFiles(@NotNull Project project,
+                            @NotNull List<VirtualFile> files,
+                            @NotNull Function<VirtualFile, LexedFile> lexer,
+                            @Nullable ProgressIndicator progressIndicator,
+                            int threads) {
+        if (progressIndicator != null) {
+            progressIndicator.setIndeterminate(false);
+        }
+        BlockingQueue<LexedFile> lexedFiles = new ArrayBlockingQueue<>(threads * 4);
+        AtomicInteger nextFile = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads, ConcurrencyUtil.newNamedThreadFactory("NGram Lexer"));
+        for (int i = 0; i < threads; i++) {
+            executor.execute(() -> {
+                for (int index = nextFile.getAndIncrement(); index < files.size(); index = nextFile.getAndIncrement()) {
+                    LexedFile lexed;
+                    try {
+                        lexed = lexer.apply(files.get(index));
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                        lexed = LexedFile.EMPTY;
+                    }
+                    try {
+                        lexedFiles.put(lexed);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            });
+        }
+        final int total = files.size();
+        long tokens = 0;
+        System.out.printf("Training NGram model on %s with %d threads...\n", project.getName(), threads);
+        Instant start = Instant.now();
+        try {
+            for (int progress = 1; progress <= total; progress++) {
+                LexedFile lexed = lexedFiles.take();
+                learn(lexed);
+                tokens += lexed.tokens.size();
+                double fraction = progress / (double) total;
+                if (total < 10 || progress % (total / 10) == 0) {
+                    System.out.printf("Status:\t%.0f%%\r", fraction * 100.);
+                }
+                if (progressIndicator != null) {
+                    progressIndicator.checkCanceled();
+                    progressIndicator.setFraction(fraction);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+        System.out.printf("Done in %s\n", Duration.between(start, Instant.now()));
+        System.out.printf("Vocabulary size: %d\n", myVocabulary.size());
+        return tokens;
+    }
+
     @Override
     public void learnPsiFile(@NotNull PsiFile file) {
         myModel.learn(myVocabulary.toIndices(lexPsiFile(file)));
@@ -276,27 +506,99 @@ public class IdNamesNGramModelRunner implements IdNamesSuggestingModelRunner {
         myModel.forget(myVocabulary.toIndices(lexPsiFile(file)));
     }
 
+    /**
+     * @return indices of the tokens of the file, which {@link #forgetTokens} and {@link #learnTokens} take,
+     * so the file may be forgotten and learned back without reading its PSI again.
+     */
+    public @NotNull List<Integer> lexToIndices(@NotNull PsiFile file) {
+        return myVocabulary.toIndices(lexPsiFile(file));
+    }
+
+    public void learnTokens(@NotNull List<Integer> tokenIndices) {
+        myModel.learn(tokenIndices);
+    }
+
+    public void forgetTokens(@NotNull List<Integer> tokenIndices) {
+        myModel.forget(tokenIndices);
+    }
+
     private @NotNull List<String> lexPsiFile(@NotNull PsiFile file) {
+        return lexTokens(file).stream()
+                .peek(this::rememberIdName)
+                .map(PsiElement::getText)
+                .collect(Collectors.toList());
+    }
+
+    public static @NotNull List<PsiElement> lexTokens(@NotNull PsiFile file) {
         return SyntaxTraverser.psiTraverser()
                 .withRoot(file)
                 .onRange(new TextRange(0, 64 * 1024)) // first 128 KB of chars
                 .forceIgnore(node -> node instanceof PsiComment)
                 .filter(PsiUtils::shouldLex)
-                .toList()
-                .stream()
-                .peek(this::rememberIdName)
-                .map(PsiElement::getText)
-                .collect(Collectors.toList());
+                .toList();
     }
 
-    private void rememberIdName(PsiElement element) {
-        if (element instanceof PsiIdentifier && element.getParent() instanceof PsiNameIdentifierOwner) {
-            PsiNameIdentifierOwner parent = (PsiNameIdentifierOwner) element.getParent();
-            Class<? extends PsiNameIdentifierOwner> parentClass = getSupportedParentClass(parent.getClass());
+    /**
+     * Lexes the file without touching the model, so files may be lexed concurrently.
+     */
+    private @NotNull LexedFile lex(@NotNull PsiFile file) {
+        List<String> tokens = new ArrayList<>();
+        List<Pair<Class<? extends PsiNameIdentifierOwner>, String>> identifiers = new ArrayList<>();
+        for (PsiElement token : lexTokens(file)) {
+            tokens.add(token.getText());
+            Class<? extends PsiNameIdentifierOwner> parentClass = getRememberedClass(token);
             if (parentClass != null) {
-                myRememberedIdentifiers.get(parentClass).add(myVocabulary.toIndex(element.getText()));
+                identifiers.add(new Pair<>(parentClass, token.getText()));
             }
         }
+        return new LexedFile(tokens, identifiers);
+    }
+
+    private static @NotNull LexedFile toLexedFile(@NotNull JavaTokens tokens,
+                                                  @Nullable Class<? extends PsiNameIdentifierOwner> variableClass) {
+        List<Pair<Class<? extends PsiNameIdentifierOwner>, String>> identifiers = new ArrayList<>();
+        if (variableClass != null) {
+            for (String name : tokens.getVariableDeclarations()) {
+                identifiers.add(new Pair<>(variableClass, name));
+            }
+        }
+        return new LexedFile(tokens.getTokens(), identifiers);
+    }
+
+    private void learn(@NotNull LexedFile file) {
+        for (Pair<Class<? extends PsiNameIdentifierOwner>, String> identifier : file.identifiers) {
+            myRememberedIdentifiers.get(identifier.getFirst()).add(myVocabulary.toIndex(identifier.getSecond()));
+        }
+        myModel.learn(myVocabulary.toIndices(file.tokens));
+    }
+
+    private void rememberIdName(PsiElement element) {
+        Class<? extends PsiNameIdentifierOwner> parentClass = getRememberedClass(element);
+        if (parentClass != null) {
+            myRememberedIdentifiers.get(parentClass).add(myVocabulary.toIndex(element.getText()));
+        }
+    }
+
+    private @Nullable Class<? extends PsiNameIdentifierOwner> getRememberedClass(PsiElement element) {
+        if (element instanceof PsiIdentifier && element.getParent() instanceof PsiNameIdentifierOwner) {
+            return getSupportedParentClass(((PsiNameIdentifierOwner) element.getParent()).getClass());
+        }
+        return null;
+    }
+
+    private static class LexedFile {
+        static final LexedFile EMPTY = new LexedFile(Collections.emptyList(), Collections.emptyList());
+
+        final List<String> tokens;
+        /**
+         * Identifiers which the model remembers with classes of their declarations.
+         */
+        final List<Pair<Class<? extends PsiNameIdentifierOwner>, String>> identifiers;
+
+        LexedFile(List<String> tokens, List<Pair<Class<? extends PsiNameIdentifierOwner>, String>> identifiers) {
+            this.tokens = tokens;
+            this.identifiers = identifiers;
+        }
     }
 
     private double toProb(@NotNull Pair<Double, Double> probConf) {
@@ -305,6 +607,9 @@ public class IdNamesNGramModelRunner implements IdNamesSuggestingModelRunner {
         return prob * conf + (1 - conf) / myVocabulary.size();
     }
 
+    private static final long CHUNK_MILLIS = 50;
+    private static final long BYTES_PER_TOKEN = 64;
+    private static final long BYTES_PER_WORD = 96;
     private static final Path MODEL_DIRECTORY = Paths.get(PathManager.getSystemPath(), "org/jetbrains/astrid/model");
 
     public double save(@Nullable ProgressIndicator progressIndicator) {
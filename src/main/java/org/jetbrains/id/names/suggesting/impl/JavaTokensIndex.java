@@ -0,0 +1,139 @@
+package org.jetbrains.id.names.suggesting.impl;
+
+import com.intellij.ide.highlighter.JavaFileType;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.util.indexing.*;
+import com.intellij.util.io.DataExternalizer;
+import com.intellij.util.io.DataInputOutputUtil;
+import com.intellij.util.io.IOUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.id.names.suggesting.utils.JavaTokens;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Token stream and positions of declared variables of each Java file, as the n-gram models learn them.
+ * Values are collected from the light AST of the file, so they are the same as the PSI lexing gives.
+ * The platform keeps the index up to date, so models are trained from it without building PSI.
+ * <p>
+ * A value is stored as a table of the distinct tokens of the file which aren't in {@link #COMMON_TOKENS},
+ * followed by the token stream as ids and by the deltas of the declaration positions, all numbers are varints.
+ * Ids below the size of {@link #COMMON_TOKENS} refer to it, others refer to the table of the file.
+ */
+public class JavaTokensIndex extends SingleEntryFileBasedIndexExtension<JavaTokens> implements PsiDependentIndex {
+    public static final ID<Integer, JavaTokens> NAME = ID.create("id.names.suggesting.java.tokens");
+    /**
+     * Keywords and operators which most files contain, they aren't stored in the tables of the files.
+     * Changing the list changes the stored format.
+     */
+    private static final String[] COMMON_TOKENS = {
+            "(", ")", "{", "}", "[", "]", ";", ",", ".", "=", "<", ">", "!", "?", ":", "@", "+", "-", "*", "/",
+            "==", "!=", "<=", ">=", "&&", "||", "++", "--", "+=", "-=", "->", "::", "...",
+            "abstract", "boolean", "break", "byte", "case", "catch", "char", "class", "continue", "default", "do",
+            "double", "else", "enum", "extends", "final", "finally", "float", "for", "if", "implements", "import",
+            "instanceof", "int", "interface", "long", "new", "null", "package", "private", "protected", "public",
+            "return", "short", "static", "super", "switch", "synchronized", "this", "throw", "throws", "true",
+            "false", "try", "void", "while", "String", "Override", "0", "1"
+    };
+    private static final Map<String, Integer> COMMON_IDS = new HashMap<>();
+
+    static {
+        for (String token : COMMON_TOKENS) {
+            COMMON_IDS.put(token, COMMON_IDS.size());
+        }
+    }
+
+    /**
+     * @return indexed tokens of the file or {@code null} if the file isn't indexed. Must be called in a read action
+     * in smart mode.
+     */
+    public static @Nullable JavaTokens getTokens(@NotNull Project project, @NotNull VirtualFile file) {
+        List<JavaTokens> values = FileBasedIndex.getInstance()
+                .getValues(NAME, FileBasedIndex.getFileId(file), GlobalSearchScope.fileScope(project, file));
+        return values.isEmpty() ? null : values.get(0);
+    }
+
+    @Override
+    public @NotNull ID<Integer, JavaTokens> getName() {
+        return NAME;
+    }
+
+    @Override
+    public @NotNull SingleEntryIndexer<JavaTokens> getIndexer() {
+        return new SingleEntryIndexer<JavaTokens>(false) {
+            @Override
+            protected @Nullable JavaTokens computeValue(@NotNull FileContent inputData) {
+                return JavaTokens.fromLighterAST(((PsiDependentFileContent) inputData).getLighterAST(),
+                        inputData.getContentAsText());
+            }
+        };
+    }
+
+    @Override
+    public @NotNull DataExternalizer<JavaTokens> getValueExternalizer() {
+        return new DataExternalizer<JavaTokens>() {
+            @Override
+            public void save(@NotNull DataOutput out, JavaTokens value) throws IOException {
+                Map<String, Integer> table = new LinkedHashMap<>();
+                for (String token : value.getTokens()) {
+                    if (!COMMON_IDS.containsKey(token)) {
+                        table.putIfAbsent(token, COMMON_TOKENS.length + table.size());
+                    }
+                }
+                DataInputOutputUtil.writeINT(out, table.size());
+                for (String token : table.keySet()) {
+                    IOUtil.writeUTF(out, token);
+                }
+                DataInputOutputUtil.writeINT(out, value.getTokens().size());
+                for (String token : value.getTokens()) {
+                    Integer id = COMMON_IDS.get(token);
+                    DataInputOutputUtil.writeINT(out, id != null ? id : table.get(token));
+                }
+                int[] declarations = value.getDeclarationIndices();
+                DataInputOutputUtil.writeINT(out, declarations.length);
+                int previous = 0;
+                for (int declaration : declarations) {
+                    DataInputOutputUtil.writeINT(out, declaration - previous);
+                    previous = declaration;
+                }
+            }
+
+            @Override
+            public JavaTokens read(@NotNull DataInput in) throws IOException {
+                String[] table = new String[DataInputOutputUtil.readINT(in)];
+                for (int i = 0; i < table.length; i++) {
+                    table[i] = IOUtil.readUTF(in);
+                }
+                int size = DataInputOutputUtil.readINT(in);
+                List<String> tokens = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    int id = DataInputOutputUtil.readINT(in);
+                    tokens.add(id < COMMON_TOKENS.length ? COMMON_TOKENS[id] : table[id - COMMON_TOKENS.length]);
+                }
+                int[] declarations = new int[DataInputOutputUtil.readINT(in)];
+                int previous = 0;
+                for (int i = 0; i < declarations.length; i++) {
+                    previous += DataInputOutputUtil.readINT(in);
+                    declarations[i] = previous;
+                }
+                return new JavaTokens(tokens, declarations);
+            }
+        };
+    }
+
+    @Override
+    public int getVersion() {
+        return 2;
+    }
+
+    @Override
+    public @NotNull FileBasedIndex.InputFilter getInputFilter() {
+        return new DefaultFileTypeSpecificInputFilter(JavaFileType.INSTANCE);
+    }
+}
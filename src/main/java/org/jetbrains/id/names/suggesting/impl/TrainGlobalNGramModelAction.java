@@ -2,7 +2,6 @@ package org.jetbrains.id.names.suggesting.impl;
 
 import com.intellij.ide.highlighter.JavaFileType;
 import com.intellij.openapi.actionSystem.AnActionEvent;
-import com.intellij.openapi.application.ReadAction;
 import com.intellij.openapi.progress.ProgressIndicator;
 import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.progress.Task;
@@ -24,9 +23,8 @@ public class TrainGlobalNGramModelAction extends AbstractTrainModelAction {
             @Override
             public void run(@NotNull ProgressIndicator progressIndicator) {
                 progressIndicator.setText(IdNamesSuggestingBundle.message("global.training.progress.indicator.text", project.getName()));
-                ReadAction.nonBlocking(() -> modelManager.trainGlobalNGramModel(project, progressIndicator, true))
-                        .inSmartMode(project)
-                        .executeSynchronously();
+                // Training reads the index in short read actions itself, so typing doesn't restart it from the beginning
+                modelManager.trainGlobalNGramModel(project, progressIndicator, true);
             }
         });
     }
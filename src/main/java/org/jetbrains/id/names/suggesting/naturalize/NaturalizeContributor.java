@@ -9,13 +9,13 @@ import org.jetbrains.id.names.suggesting.VarNamePrediction;
 import org.jetbrains.id.names.suggesting.api.VariableNamesContributor;
 import org.jetbrains.id.names.suggesting.impl.IdNamesNGramModelRunner;
 import org.jetbrains.id.names.suggesting.utils.PsiUtils;
+import org.jetbrains.id.names.suggesting.utils.ResolvedIdentifiers;
 
 import java.util.*;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import static org.jetbrains.id.names.suggesting.utils.PsiUtils.findReferences;
-import static org.jetbrains.id.names.suggesting.utils.PsiUtils.isVariableOrReference;
 
 public abstract class NaturalizeContributor implements VariableNamesContributor {
     public static final List<Class<? extends PsiNameIdentifierOwner>> SUPPORTED_TYPES = new ArrayList<>();
@@ -66,9 +66,10 @@ public abstract class NaturalizeContributor implements VariableNamesContributor
                 .filter(PsiUtils::shouldLex)
                 .toList();
         List<String> tokens = new ArrayList<>();
+        ResolvedIdentifiers resolvedIdentifiers = ResolvedIdentifiers.getInstance(variable.getContainingFile());
         for (int i = 0; i < elements.size(); i++) {
             PsiElement element = elements.get(i);
-            if (isVariableOrReference(variable, element)) {
+            if (resolvedIdentifiers.isVariableOrReference(variable, element)) {
                 varIdxs.add(i);
                 tokens.add(changeToUnknown ? Vocabulary.unknownCharacter : element.getText());
             } else {
@@ -92,6 +92,12 @@ public class NaturalizeModelRunner {
         return predictionList;
     }
 
+    private @NotNull String toWord(int index) {
+        synchronized (myVocabulary) {
+            return myVocabulary.toWord(index);
+        }
+    }
+
     private @NotNull List<VarNamePrediction> rankCandidates(@NotNull Set<Integer> candidates, @NotNull IntContext intContext) {
         List<Integer> cs = new ArrayList<>();
         List<Double> logits = new ArrayList<>();
@@ -103,7 +109,7 @@ public class NaturalizeModelRunner {
         List<Double> probs = softmax(logits, 6);
         List<VarNamePrediction> predictions = new ArrayList<>();
         for (int i = 0; i < cs.size(); i++) {
-            predictions.add(new VarNamePrediction(myVocabulary.toWord(cs.get(i)),
+            predictions.add(new VarNamePrediction(toWord(cs.get(i)),
                     probs.get(i),
                     getModelPriority()));
         }
@@ -269,7 +275,12 @@ class IntContext {
         return new IntContext(newTokens, varIdxs);
     }
 
+    /**
+     * The vocabulary stores unknown tokens and is shared with the n-gram model runner, which locks it the same way.
+     */
     public static IntContext fromContext(Context context, Vocabulary vocabulary) {
-        return new IntContext(vocabulary.toIndices(context.tokens), context.varIdxs);
+        synchronized (vocabulary) {
+            return new IntContext(vocabulary.toIndices(context.tokens), context.varIdxs);
+        }
     }
 }
@@ -0,0 +1,162 @@
+package org.jetbrains.id.names.suggesting.utils;
+
+import com.intellij.lang.LighterAST;
+import com.intellij.lang.LighterASTNode;
+import com.intellij.lang.java.lexer.JavaLexer;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.pom.java.LanguageLevel;
+import com.intellij.psi.JavaTokenType;
+import com.intellij.psi.impl.source.tree.ElementType;
+import com.intellij.psi.impl.source.tree.JavaElementType;
+import com.intellij.psi.tree.IElementType;
+import com.intellij.psi.tree.TokenSet;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Tokens of a Java source text and positions of the names of declared variables, as the n-gram models learn them:
+ * whitespaces and comments are skipped and only the first {@link #MAX_LEXED_CHARS} chars are lexed.
+ * <p>
+ * {@link #fromLighterAST} gives the same tokens and declarations as the PSI lexing of the models.
+ * {@link #lex} uses the Java lexer only and recognizes declarations by token patterns: an identifier which follows
+ * a type, i.e. an identifier, a primitive type, {@code ]}, {@code ...} or {@code >} closing type arguments,
+ * and which is followed by one of {@code = ; , ) : [}. Lambda parameters without types, enum constants
+ * and variables declared after a comma are not recognized, and shift operators stay split into {@code >} tokens.
+ */
+public class JavaTokens {
+    public static final int MAX_LEXED_CHARS = 64 * 1024;
+    private static final int MAX_TYPE_ARGUMENTS_TOKENS = 64;
+
+    private static final TokenSet TYPE_ENDS = TokenSet.orSet(ElementType.PRIMITIVE_TYPE_BIT_SET,
+            TokenSet.create(JavaTokenType.IDENTIFIER, JavaTokenType.RBRACKET, JavaTokenType.ELLIPSIS));
+    private static final TokenSet DECLARATION_FOLLOWERS = TokenSet.create(JavaTokenType.EQ, JavaTokenType.SEMICOLON,
+            JavaTokenType.COMMA, JavaTokenType.RPARENTH, JavaTokenType.COLON, JavaTokenType.LBRACKET);
+    /**
+     * Elements which are {@link com.intellij.psi.PsiVariable}s with an identifier.
+     */
+    private static final TokenSet VARIABLES = TokenSet.create(JavaElementType.LOCAL_VARIABLE, JavaElementType.FIELD,
+            JavaElementType.PARAMETER, JavaElementType.ENUM_CONSTANT, JavaElementType.RESOURCE_VARIABLE,
+            JavaElementType.PATTERN_VARIABLE, JavaElementType.RECORD_COMPONENT);
+    private static final TokenSet TYPE_ARGUMENTS_TOKENS = TokenSet.orSet(ElementType.PRIMITIVE_TYPE_BIT_SET,
+            TokenSet.create(JavaTokenType.IDENTIFIER, JavaTokenType.DOT, JavaTokenType.COMMA, JavaTokenType.QUEST,
+                    JavaTokenType.EXTENDS_KEYWORD, JavaTokenType.SUPER_KEYWORD, JavaTokenType.LBRACKET,
+                    JavaTokenType.RBRACKET, JavaTokenType.AND, JavaTokenType.AT));
+
+    private final List<String> myTokens;
+    private final int[] myDeclarationIndices;
+
+    /**
+     * @param declarationIndices ascending indices of the tokens which are names of declared variables.
+     */
+    public JavaTokens(@NotNull List<String> tokens, @NotNull int[] declarationIndices) {
+        myTokens = tokens;
+        myDeclarationIndices = declarationIndices;
+    }
+
+    public static @NotNull JavaTokens lex(@NotNull CharSequence text) {
+        List<IElementType> types = new ArrayList<>();
+        List<String> tokens = new ArrayList<>();
+        JavaLexer lexer = new JavaLexer(LanguageLevel.HIGHEST);
+        lexer.start(text, 0, Math.min(text.length(), MAX_LEXED_CHARS));
+        for (IElementType type = lexer.getTokenType(); type != null; lexer.advance(), type = lexer.getTokenType()) {
+            if (ElementType.JAVA_COMMENT_OR_WHITESPACE_BIT_SET.contains(type)) continue;
+            types.add(type);
+            tokens.add(text.subSequence(lexer.getTokenStart(), lexer.getTokenEnd()).toString());
+        }
+        return new JavaTokens(tokens, findVariableDeclarations(types));
+    }
+
+    /**
+     * Collects the leaves of the tree like the PSI lexing of the models does: leaves which start in the lexed
+     * range and aren't blank, skipping comments with their content, e.g. javadocs. Names of declared variables
+     * are identifiers of {@link #VARIABLES}.
+     */
+    public static @NotNull JavaTokens fromLighterAST(@NotNull LighterAST tree, @NotNull CharSequence text) {
+        List<String> tokens = new ArrayList<>();
+        List<Integer> declarations = new ArrayList<>();
+        Deque<LighterASTNode> nodes = new ArrayDeque<>();
+        nodes.push(tree.getRoot());
+        while (!nodes.isEmpty()) {
+            LighterASTNode node = nodes.pop();
+            IElementType type = node.getTokenType();
+            if (node.getStartOffset() > MAX_LEXED_CHARS || ElementType.JAVA_COMMENT_BIT_SET.contains(type)) continue;
+            List<LighterASTNode> children = tree.getChildren(node);
+            if (!children.isEmpty()) {
+                for (int i = children.size() - 1; i >= 0; i--) {
+                    nodes.push(children.get(i));
+                }
+                continue;
+            }
+            String token = text.subSequence(node.getStartOffset(), node.getEndOffset()).toString();
+            if (StringUtil.isEmptyOrSpaces(token)) continue;
+            if (type == JavaTokenType.IDENTIFIER) {
+                LighterASTNode parent = tree.getParent(node);
+                if (parent != null && VARIABLES.contains(parent.getTokenType())) {
+                    declarations.add(tokens.size());
+                }
+            }
+            tokens.add(token);
+        }
+        return new JavaTokens(tokens, declarations.stream().mapToInt(Integer::intValue).toArray());
+    }
+
+    public @NotNull List<String> getTokens() {
+        return myTokens;
+    }
+
+    public @NotNull int[] getDeclarationIndices() {
+        return myDeclarationIndices;
+    }
+
+    /**
+     * @return names of the recognized variable declarations in the order of the text.
+     */
+    public @NotNull List<String> getVariableDeclarations() {
+        List<String> names = new ArrayList<>(myDeclarationIndices.length);
+        for (int index : myDeclarationIndices) {
+            names.add(myTokens.get(index));
+        }
+        return names;
+    }
+
+    private static @NotNull int[] findVariableDeclarations(@NotNull List<IElementType> types) {
+        List<Integer> indices = new ArrayList<>();
+        for (int i = 0; i < types.size(); i++) {
+            if (isVariableDeclaration(types, i)) {
+                indices.add(i);
+            }
+        }
+        return indices.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private static boolean isVariableDeclaration(@NotNull List<IElementType> types, int index) {
+        if (types.get(index) != JavaTokenType.IDENTIFIER) return false;
+        if (index == 0 || index + 1 >= types.size()) return false;
+        if (!DECLARATION_FOLLOWERS.contains(types.get(index + 1))) return false;
+        IElementType previous = types.get(index - 1);
+        return TYPE_ENDS.contains(previous) || previous == JavaTokenType.GT && closesTypeArguments(types, index - 1);
+    }
+
+    /**
+     * Distinguishes {@code List<String> list} from {@code a > b}: the matching {@code <} follows an identifier
+     * and only tokens of types are between them.
+     */
+    private static boolean closesTypeArguments(@NotNull List<IElementType> types, int gtIndex) {
+        int depth = 0;
+        for (int i = gtIndex; i >= 0 && gtIndex - i < MAX_TYPE_ARGUMENTS_TOKENS; i--) {
+            IElementType type = types.get(i);
+            if (type == JavaTokenType.GT) {
+                depth++;
+            } else if (type == JavaTokenType.LT) {
+                if (--depth == 0) return i > 0 && types.get(i - 1) == JavaTokenType.IDENTIFIER;
+            } else if (!TYPE_ARGUMENTS_TOKENS.contains(type)) {
+                return false;
+            }
+        }
+        return false;
+    }
+}
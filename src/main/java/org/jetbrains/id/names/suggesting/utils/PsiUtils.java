@@ -16,10 +16,10 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
-import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 public class PsiUtils {
@@ -59,6 +59,11 @@ public class PsiUtils {
     public static final List<String> IntegersToLeave = Arrays.asList("0", "1", "32", "64");
 
     public static @NotNull String processToken(@NotNull PsiElement token, @NotNull PsiVariable variable) {
+        PsiFile file = token.getContainingFile();
+        return file == null ? processToken(token, variable, null) : processToken(token, variable, ResolvedIdentifiers.getInstance(file));
+    }
+
+    public static @NotNull String processToken(@NotNull PsiElement token, @NotNull PsiVariable variable, @Nullable ResolvedIdentifiers resolvedIdentifiers) {
         String text = token.getText();
         if (token.getParent() instanceof PsiLiteral) {
             String literalType = ((PsiJavaToken) token).getTokenType().toString();
@@ -68,7 +73,7 @@ public class PsiUtils {
             if (NumberTypes.contains(literalType)) {
                 return IntegersToLeave.contains(text) ? text : NUMBER_TOKEN;
             }
-        } else if (isVariableOrReference(variable, token)) {
+        } else if (resolvedIdentifiers != null ? resolvedIdentifiers.isVariableOrReference(variable, token) : isVariableOrReference(variable, token)) {
             return VARIABLE_TOKEN;
         }
         return text;
@@ -83,16 +88,23 @@ public class PsiUtils {
         return findVariableDeclaration(token) != null;
     }
 
+    /**
+     * Finds the variable which the token declares or references, using {@link ResolvedIdentifiers} of its file.
+     */
     public static @Nullable PsiVariable findVariableDeclaration(@Nullable PsiElement token) {
-        if (token instanceof PsiIdentifier) {
-            PsiElement parent = token.getParent();
-            PsiElement declaration = parent instanceof PsiReferenceExpression ?
-                    resolveReference((PsiReferenceExpression) parent) : parent;
-            if (declaration instanceof PsiVariable) {
-                return (PsiVariable) declaration;
-            }
-        }
-        return null;
+        if (!(token instanceof PsiIdentifier)) return null;
+        PsiFile file = token.getContainingFile();
+        return file == null ? resolveVariableDeclaration(token) : ResolvedIdentifiers.getInstance(file).getDeclaration(token);
+    }
+
+    /**
+     * Resolves under the progress indicator of the caller, {@link ResolvedIdentifiers} limits the time per file.
+     */
+    static @Nullable PsiVariable resolveVariableDeclaration(@Nullable PsiElement token) {
+        if (!(token instanceof PsiIdentifier)) return null;
+        PsiElement parent = token.getParent();
+        PsiElement declaration = parent instanceof PsiReferenceExpression ? ((PsiReference) parent).resolve() : parent;
+        return declaration instanceof PsiVariable ? (PsiVariable) declaration : null;
     }
 
     public static @Nullable PsiElement resolveReference(@NotNull PsiReference reference) {
@@ -135,14 +147,18 @@ public class PsiUtils {
     }
 
     public static @NotNull List<PsiIdentifier> findVarIdentifiersUnderNode(@Nullable PsiElement node) {
+        PsiFile file = node == null ? null : node.getContainingFile();
+        return file == null ? Collections.emptyList() : findVarIdentifiersUnderNode(node, ResolvedIdentifiers.getInstance(file));
+    }
+
+    public static @NotNull List<PsiIdentifier> findVarIdentifiersUnderNode(@Nullable PsiElement node, @NotNull ResolvedIdentifiers resolvedIdentifiers) {
+        if (node == null) return Collections.emptyList();
         return SyntaxTraverser.psiTraverser()
                 .withRoot(node)
                 .forceIgnore(n -> n instanceof PsiComment)
-                .filter(PsiUtils::isVariable)
-                .toList()
-                .stream()
-                .map(i -> (PsiIdentifier) i)
-                .collect(Collectors.toList());
+                .filter(PsiIdentifier.class)
+                .filter(resolvedIdentifiers::isVariable)
+                .toList();
     }
 
 
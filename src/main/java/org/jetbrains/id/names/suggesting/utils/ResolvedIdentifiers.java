@@ -0,0 +1,180 @@
+package org.jetbrains.id.names.suggesting.utils;
+
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.progress.util.AbstractProgressIndicatorBase;
+import com.intellij.psi.*;
+import com.intellij.psi.util.CachedValueProvider;
+import com.intellij.psi.util.CachedValuesManager;
+import com.intellij.psi.util.PsiModificationTracker;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * Table of variables which identifiers of a file resolve to. Every identifier is resolved at most once
+ * until any PSI changes, as references may resolve to variables of other files, declarations are numbered,
+ * so identifiers of the same variable can be compared by id. Identifiers are resolved lazily, callers which need
+ * the whole file {@link #resolveAll} in one pass.
+ * <p>
+ * Resolving of the references of a file may take {@link #RESOLVE_BUDGET_NANOS} in total, references which aren't
+ * resolved within it are reported as {@link #NO_DECLARATION} and aren't remembered. Cancellation of the caller,
+ * e.g. of its read action by a write action, isn't affected by the budget.
+ */
+public class ResolvedIdentifiers {
+    public static final int NO_DECLARATION = -1;
+    private static final long RESOLVE_BUDGET_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final PsiFile myFile;
+    private final Map<PsiElement, Integer> myDeclarationIds = new IdentityHashMap<>();
+    private final Map<PsiVariable, Integer> myVariableIds = new IdentityHashMap<>();
+    private final List<PsiVariable> myVariables = new ArrayList<>();
+    private final AtomicLong myResolveNanos = new AtomicLong();
+    private volatile boolean myIsBudgetSpent;
+
+    private ResolvedIdentifiers(@NotNull PsiFile file) {
+        myFile = file;
+    }
+
+    public static @NotNull ResolvedIdentifiers getInstance(@NotNull PsiFile file) {
+        return CachedValuesManager.getCachedValue(file,
+                () -> CachedValueProvider.Result.create(new ResolvedIdentifiers(file),
+                        PsiModificationTracker.MODIFICATION_COUNT));
+    }
+
+    public @NotNull ResolvedIdentifiers resolveAll() {
+        resolveAll((identifier, id) -> {
+        });
+        return this;
+    }
+
+    /**
+     * Resolves the identifiers of the file, except comments, in one pass and passes them with their declaration ids.
+     */
+    public void resolveAll(@NotNull ObjIntConsumer<PsiIdentifier> consumer) {
+        withinBudget(() -> SyntaxTraverser.psiTraverser()
+                .withRoot(myFile)
+                .forceIgnore(node -> node instanceof PsiComment)
+                .filter(PsiIdentifier.class)
+                .forEach(identifier -> consumer.accept(identifier, resolve(identifier))));
+    }
+
+    /**
+     * @return id of the variable which the token declares or references, or {@link #NO_DECLARATION}.
+     */
+    public int getDeclarationId(@Nullable PsiElement token) {
+        if (!(token instanceof PsiIdentifier)) return NO_DECLARATION;
+        synchronized (this) {
+            Integer id = myDeclarationIds.get(token);
+            if (id != null) return id;
+        }
+        int[] id = {NO_DECLARATION};
+        withinBudget(() -> id[0] = resolve((PsiIdentifier) token));
+        return id[0];
+    }
+
+    private int resolve(@NotNull PsiIdentifier identifier) {
+        synchronized (this) {
+            Integer id = myDeclarationIds.get(identifier);
+            if (id != null) return id;
+        }
+        if (myIsBudgetSpent) return NO_DECLARATION;
+        // Resolve outside of the lock, it may take a while
+        PsiVariable variable;
+        try {
+            variable = PsiUtils.resolveVariableDeclaration(identifier);
+        } catch (ProcessCanceledException e) {
+            onCanceled(e, ProgressManager.getGlobalProgressIndicator());
+            return NO_DECLARATION;
+        }
+        synchronized (this) {
+            int id = variable == null ? NO_DECLARATION : getVariableId(variable);
+            myDeclarationIds.put(identifier, id);
+            return id;
+        }
+    }
+
+    /**
+     * Runs the resolving under an indicator which is canceled when the budget runs out or the indicator
+     * of the caller is canceled.
+     */
+    private void withinBudget(@NotNull Runnable resolving) {
+        ProgressIndicator outer = ProgressManager.getGlobalProgressIndicator();
+        long start = System.nanoTime();
+        BudgetIndicator indicator = new BudgetIndicator(outer, start + RESOLVE_BUDGET_NANOS - myResolveNanos.get());
+        try {
+            ProgressManager.getInstance().runProcess(resolving, indicator);
+        } catch (ProcessCanceledException e) {
+            onCanceled(e, indicator);
+        } finally {
+            myResolveNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    private void onCanceled(@NotNull ProcessCanceledException e, @Nullable ProgressIndicator indicator) {
+        if (!(indicator instanceof BudgetIndicator) || ((BudgetIndicator) indicator).isOuterCanceled()) throw e;
+        myIsBudgetSpent = true;
+    }
+
+    public synchronized int getVariableId(@NotNull PsiVariable variable) {
+        Integer id = myVariableIds.get(variable);
+        if (id == null) {
+            id = myVariables.size();
+            myVariables.add(variable);
+            myVariableIds.put(variable, id);
+        }
+        return id;
+    }
+
+    public @Nullable PsiVariable getDeclaration(@Nullable PsiElement token) {
+        int id = getDeclarationId(token);
+        if (id == NO_DECLARATION) return null;
+        synchronized (this) {
+            return myVariables.get(id);
+        }
+    }
+
+    public boolean isVariable(@Nullable PsiElement token) {
+        return getDeclarationId(token) != NO_DECLARATION;
+    }
+
+    public boolean isVariableOrReference(@NotNull PsiVariable variable, @Nullable PsiElement token) {
+        int id = getDeclarationId(token);
+        if (id == NO_DECLARATION) return false;
+        if (id == getVariableId(variable)) return true;
+        // The same variable may be represented by different elements, e.g. by a source and a compiled one
+        return PsiManager.getInstance(variable.getProject()).areElementsEquivalent(variable, getDeclaration(token));
+    }
+
+    private static class BudgetIndicator extends AbstractProgressIndicatorBase {
+        private final @Nullable ProgressIndicator myOuter;
+        private final long myDeadlineNanos;
+
+        BudgetIndicator(@Nullable ProgressIndicator outer, long deadlineNanos) {
+            myOuter = outer;
+            myDeadlineNanos = deadlineNanos;
+        }
+
+        boolean isOuterCanceled() {
+            return myOuter != null && myOuter.isCanceled();
+        }
+
+        @Override
+        public boolean isCanceled() {
+            if (super.isCanceled()) return true;
+            if (isOuterCanceled() || System.nanoTime() > myDeadlineNanos) {
+                cancel();
+                return true;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package org.jetbrains.id.names.suggesting.utils;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Unsigned LEB128 varints, signed values are zigzag encoded.
+ */
+public class VarintUtils {
+    public static void writeVarint(@NotNull ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    public static void writeSignedVarint(@NotNull ByteArrayOutputStream out, int value) {
+        writeVarint(out, ((value << 1) ^ (value >> 31)) & 0xFFFFFFFFL);
+    }
+
+    public static void writeString(@NotNull ByteArrayOutputStream out, @NotNull String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    public static long readVarint(@NotNull ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+    }
+
+    public static int readSignedVarint(@NotNull ByteBuffer buffer) {
+        int value = (int) readVarint(buffer);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    public static @NotNull String readString(@NotNull ByteBuffer buffer) {
+        byte[] bytes = new byte[(int) readVarint(buffer)];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -9,6 +9,10 @@ import static org.jetbrains.id.names.suggesting.utils.PsiUtils.isBlank;
 import static org.jetbrains.id.names.suggesting.utils.PsiUtils.isLeaf;
 
 public class AstGraphCreator extends JavaRecursiveElementVisitor {
+    /**
+     * Version of the syntax edges, must be increased whenever they change.
+     */
+    public static final int VERSION = 1;
 
     public static final String CHILD_EDGE = "Child";
 
@@ -0,0 +1,176 @@
+package tools.graphVarMiner;
+
+import com.intellij.openapi.diagnostic.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import tools.graphVarMiner.GraphDatasetExtractor.SerializableVarData;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static org.jetbrains.id.names.suggesting.utils.VarintUtils.writeSignedVarint;
+import static org.jetbrains.id.names.suggesting.utils.VarintUtils.writeVarint;
+import static tools.graphVarMiner.BinarySampleFormat.*;
+
+/**
+ * Writes samples to binary chunks described by {@link BinarySampleFormat}, which can be read by {@link BinarySampleReader}.
+ * Labels, types and edge types are stored once per chunk in its string table, a chunk is closed as soon as
+ * its size reaches {@code maxChunkBytes}.
+ * <p>
+ * Not thread-safe: elements are added from one thread.
+ */
+public class BinaryChunkWriter implements DatasetWriter<SerializableVarData> {
+    private final String pathPrefix;
+    private final long maxChunkBytes;
+    private final List<Integer> chunkSizes = new ArrayList<>();
+    private final Map<String, Integer> stringIds = new HashMap<>();
+    private final List<String> strings = new ArrayList<>();
+    private final ByteArrayOutputStream sample = new ByteArrayOutputStream(64 * 1024);
+    private final ByteArrayOutputStream table = new ByteArrayOutputStream();
+    private final List<Long> sampleOffsets = new ArrayList<>();
+    private final Logger log = Logger.getInstance(BinaryChunkWriter.class);
+    private int elementCount = 0;
+
+    private DataOutputStream chunkOutput;
+
+    public BinaryChunkWriter(String pathPrefix, long maxChunkBytes) {
+        this.pathPrefix = pathPrefix;
+        this.maxChunkBytes = maxChunkBytes;
+    }
+
+    @Override
+    public void add(SerializableVarData element) {
+        try {
+            if (chunkOutput == null) {
+                openChunk();
+            }
+            sample.reset();
+            writeSample(element);
+            sampleOffsets.add((long) chunkOutput.size());
+            sample.writeTo(chunkOutput);
+            elementCount++;
+            if (chunkOutput.size() >= maxChunkBytes) {
+                closeChunk();
+            }
+        } catch (IOException e) {
+            throw new Error("Cannot write to output chunk file: " + e);
+        }
+    }
+
+    @Override
+    public int getElementCount() {
+        return elementCount;
+    }
+
+    @Override
+    public @NotNull List<Integer> getChunkSizes() {
+        return chunkSizes;
+    }
+
+    @Override
+    public void close() {
+        if (chunkOutput == null) return;
+        try {
+            closeChunk();
+        } catch (IOException e) {
+            throw new Error("Cannot write to output chunk file: " + e);
+        }
+    }
+
+    private void writeSample(@NotNull SerializableVarData varData) {
+        writeString(varData.filename);
+        writeString(varData.name);
+        writeString(varData.span);
+        List<String> types = varData.types == null ? Collections.emptyList() : varData.types;
+        writeVarint(sample, types.size());
+        types.forEach(this::writeString);
+
+        Graph.JsonSerializableGraph graph = varData.ContextGraph;
+        int nodeCount = graph.NodeLabels.keySet().stream().mapToInt(Integer::intValue).max().orElse(-1) + 1;
+        writeVarint(sample, nodeCount);
+        for (int node = 0; node < nodeCount; node++) {
+            writeString(graph.NodeLabels.get(node));
+        }
+        writeVarint(sample, graph.Edges.size());
+        for (Map.Entry<String, List<Integer[]>> entry : graph.Edges.entrySet()) {
+            writeString(entry.getKey());
+            writeAdjacencyList(entry.getValue());
+        }
+    }
+
+    /**
+     * Consecutive edges from the same source make a row, edges of {@link Graph} are already sorted by source.
+     */
+    private void writeAdjacencyList(@NotNull List<Integer[]> edges) {
+        int rowCount = 0;
+        for (int i = 0; i < edges.size(); i++) {
+            if (i == 0 || !edges.get(i)[0].equals(edges.get(i - 1)[0])) rowCount++;
+        }
+        writeVarint(sample, rowCount);
+        int previousSource = 0;
+        for (int rowStart = 0, rowEnd; rowStart < edges.size(); rowStart = rowEnd) {
+            int source = edges.get(rowStart)[0];
+            rowEnd = rowStart + 1;
+            while (rowEnd < edges.size() && edges.get(rowEnd)[0] == source) rowEnd++;
+            writeSignedVarint(sample, source - previousSource);
+            writeVarint(sample, rowEnd - rowStart);
+            int previousTarget = source;
+            for (int i = rowStart; i < rowEnd; i++) {
+                int target = edges.get(i)[1];
+                writeSignedVarint(sample, target - previousTarget);
+                previousTarget = target;
+            }
+            previousSource = source;
+        }
+    }
+
+    private void writeString(@Nullable String string) {
+        if (string == null) {
+            writeVarint(sample, 0);
+            return;
+        }
+        Integer id = stringIds.get(string);
+        if (id == null) {
+            strings.add(string);
+            id = strings.size();
+            stringIds.put(string, id);
+        }
+        writeVarint(sample, id);
+    }
+
+    private void openChunk() throws IOException {
+        int chunkIdx = chunkSizes.size();
+        log.info(String.format("Writing chunk number %d...", chunkIdx));
+        chunkOutput = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(pathPrefix + '.' + chunkIdx + EXTENSION), 64 * 1024));
+        chunkOutput.writeInt(MAGIC);
+        chunkOutput.writeInt(VERSION);
+    }
+
+    private void closeChunk() throws IOException {
+        long tableOffset = chunkOutput.size();
+        table.reset();
+        writeVarint(table, strings.size());
+        for (String string : strings) {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            writeVarint(table, bytes.length);
+            table.write(bytes, 0, bytes.length);
+        }
+        writeVarint(table, sampleOffsets.size());
+        long previousOffset = 0;
+        for (long offset : sampleOffsets) {
+            writeVarint(table, offset - previousOffset);
+            previousOffset = offset;
+        }
+        table.writeTo(chunkOutput);
+        chunkOutput.writeLong(tableOffset);
+        chunkOutput.close();
+
+        chunkSizes.add(sampleOffsets.size());
+        chunkOutput = null;
+        sampleOffsets.clear();
+        strings.clear();
+        stringIds.clear();
+    }
+}
@@ -0,0 +1,29 @@
+package tools.graphVarMiner;
+
+/**
+ * Layout of a binary chunk {@code pathPrefix.N.bin}, all numbers are unsigned LEB128 varints unless stated otherwise:
+ * <pre>
+ * header:       int32 {@link #MAGIC}, int32 {@link #VERSION}
+ * samples:      filename, name, span, typeCount, type*,
+ *               nodeCount, label[nodeCount],
+ *               edgeTypeCount, (edgeType, rowCount, (source, targetCount, target[targetCount])[rowCount])[edgeTypeCount]
+ * string table: stringCount, (byteLength, UTF-8 bytes)[stringCount]
+ * sample index: sampleCount, offset[sampleCount]
+ * footer:       int64 offset of the string table
+ * </pre>
+ * Varints are written by {@link org.jetbrains.id.names.suggesting.utils.VarintUtils}.
+ * Strings are ids in the string table of the chunk, id 0 stands for null. Sources of the rows of an edge type are
+ * zigzag deltas from the previous source, the first target of a row is a zigzag delta from the source, the others
+ * are zigzag deltas from the previous target. Offsets of samples are deltas from the previous sample.
+ * Fixed-size numbers are big-endian.
+ */
+final class BinarySampleFormat {
+    static final int MAGIC = 0x47564152;
+    static final int VERSION = 1;
+    static final String EXTENSION = ".bin";
+    static final int HEADER_SIZE = 8;
+    static final int FOOTER_SIZE = 8;
+
+    private BinarySampleFormat() {
+    }
+}
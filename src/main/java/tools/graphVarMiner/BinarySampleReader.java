@@ -0,0 +1,123 @@
+package tools.graphVarMiner;
+
+import org.jetbrains.annotations.NotNull;
+import tools.graphVarMiner.GraphDatasetExtractor.SerializableVarData;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.jetbrains.id.names.suggesting.utils.VarintUtils.readSignedVarint;
+import static org.jetbrains.id.names.suggesting.utils.VarintUtils.readVarint;
+import static tools.graphVarMiner.BinarySampleFormat.*;
+
+/**
+ * Reads samples of a binary chunk written by {@link BinaryChunkWriter}. The chunk is mapped into memory,
+ * only the string table and the sample index are decoded when it is opened, samples are decoded on demand,
+ * so any sample can be read without reading the preceding ones. Reads may be done from several threads.
+ */
+public class BinarySampleReader implements Closeable {
+    private final FileChannel myChannel;
+    private final MappedByteBuffer myBuffer;
+    private final String[] myStrings;
+    private final int[] mySampleOffsets;
+
+    public BinarySampleReader(@NotNull Path chunk) throws IOException {
+        myChannel = FileChannel.open(chunk, StandardOpenOption.READ);
+        try {
+            myBuffer = myChannel.map(FileChannel.MapMode.READ_ONLY, 0, myChannel.size());
+            if (myBuffer.limit() < HEADER_SIZE + FOOTER_SIZE || myBuffer.getInt(0) != MAGIC) {
+                throw new IOException("Not a binary chunk: " + chunk);
+            }
+            if (myBuffer.getInt(4) != VERSION) {
+                throw new IOException("Unsupported version " + myBuffer.getInt(4) + " of binary chunk: " + chunk);
+            }
+            ByteBuffer table = myBuffer.duplicate();
+            table.position((int) myBuffer.getLong(myBuffer.limit() - FOOTER_SIZE));
+            myStrings = new String[(int) readVarint(table) + 1];
+            for (int i = 1; i < myStrings.length; i++) {
+                byte[] bytes = new byte[(int) readVarint(table)];
+                table.get(bytes);
+                myStrings[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+            mySampleOffsets = new int[(int) readVarint(table)];
+            int offset = 0;
+            for (int i = 0; i < mySampleOffsets.length; i++) {
+                offset += (int) readVarint(table);
+                mySampleOffsets[i] = offset;
+            }
+        } catch (IOException | RuntimeException e) {
+            myChannel.close();
+            throw e;
+        }
+    }
+
+    public int size() {
+        return mySampleOffsets.length;
+    }
+
+    public @NotNull SerializableVarData read(int index) {
+        ByteBuffer buffer = myBuffer.duplicate();
+        buffer.position(mySampleOffsets[index]);
+        SerializableVarData varData = new SerializableVarData();
+        varData.filename = readString(buffer);
+        varData.name = readString(buffer);
+        varData.span = readString(buffer);
+        String[] types = new String[(int) readVarint(buffer)];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = readString(buffer);
+        }
+        varData.types = Arrays.asList(types);
+
+        Graph.JsonSerializableGraph graph = new Graph.JsonSerializableGraph();
+        int nodeCount = (int) readVarint(buffer);
+        for (int node = 0; node < nodeCount; node++) {
+            String label = readString(buffer);
+            if (label != null) graph.NodeLabels.put(node, label);
+        }
+        int edgeTypeCount = (int) readVarint(buffer);
+        for (int type = 0; type < edgeTypeCount; type++) {
+            String edgeType = readString(buffer);
+            int rowCount = (int) readVarint(buffer);
+            List<Integer[]> edges = new ArrayList<>();
+            int source = 0;
+            for (int row = 0; row < rowCount; row++) {
+                source += readSignedVarint(buffer);
+                int targetCount = (int) readVarint(buffer);
+                int target = source;
+                for (int i = 0; i < targetCount; i++) {
+                    target += readSignedVarint(buffer);
+                    edges.add(new Integer[]{source, target});
+                }
+            }
+            graph.Edges.put(edgeType, edges);
+        }
+        varData.ContextGraph = graph;
+        return varData;
+    }
+
+    public @NotNull List<SerializableVarData> readAll() {
+        List<SerializableVarData> samples = new ArrayList<>(size());
+        for (int i = 0; i < size(); i++) {
+            samples.add(read(i));
+        }
+        return samples;
+    }
+
+    private String readString(@NotNull ByteBuffer buffer) {
+        return myStrings[(int) readVarint(buffer)];
+    }
+
+    @Override
+    public void close() throws IOException {
+        myChannel.close();
+    }
+}
@@ -2,60 +2,160 @@ package tools.graphVarMiner;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.stream.JsonWriter;
 import com.intellij.openapi.diagnostic.Logger;
+import org.jetbrains.annotations.NotNull;
 
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.GZIPOutputStream;
 
-public class ChunkWriter<T> {
+/**
+ * Writes elements to gzipped JSON arrays {@code pathPrefix.N.json.gz}. Elements are serialized and compressed
+ * on a background thread as they arrive, a chunk is closed as soon as the compressed output written to its file
+ * reaches {@code maxChunkBytes}. The writer isn't flushed after every element, so a chunk exceeds the limit
+ * by what is still buffered by the writer and the compressor, at most a few dozen KB.
+ * At most {@link #QUEUE_CAPACITY} elements wait for the background thread, {@link #add} blocks when it falls behind.
+ * <p>
+ * Elements must not be modified after they are added. Not thread-safe: elements are added from one thread.
+ */
+public class ChunkWriter<T> implements DatasetWriter<T> {
+    private static final int QUEUE_CAPACITY = 256;
+    private static final Object END = new Object();
+
     private final String pathPrefix;
-    private int currentChunkIdx = 0;
-    private final int maxChunkSize;
-    private final List<T> unwrittenElements = new ArrayList<>();
+    private final long maxChunkBytes;
+    private final Gson gson = new GsonBuilder().create();
+    private final BlockingQueue<Object> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final Thread flusher;
+    private final List<Integer> chunkSizes = new ArrayList<>();
     private final Logger log = Logger.getInstance(ChunkWriter.class);
+    private volatile Throwable error;
+    private int elementCount = 0;
+
+    private CountingOutputStream chunkOutput;
+    private JsonWriter chunkWriter;
+    private int chunkSize;
 
-    public ChunkWriter(String pathPrefix, int maxChunkSize) {
+    public ChunkWriter(String pathPrefix, long maxChunkBytes) {
         this.pathPrefix = pathPrefix;
-        this.maxChunkSize = maxChunkSize;
+        this.maxChunkBytes = maxChunkBytes;
+        flusher = new Thread(this::flush, "Chunk Writer " + new File(pathPrefix).getName());
+        flusher.setDaemon(true);
+        flusher.start();
     }
 
+    @Override
     public void add(T element) {
-        unwrittenElements.add(element);
-        if (unwrittenElements.size() >= maxChunkSize) {
-            try {
-                writeChunk();
-            } catch (IOException e) {
-                throw new Error("Cannot write to output chunk file: " + e);
+        try {
+            while (!queue.offer(element, 1, TimeUnit.SECONDS)) {
+                checkError();
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new Error("Interrupted while writing to output chunk file");
         }
+        checkError();
+        elementCount++;
+    }
+
+    @Override
+    public int getElementCount() {
+        return elementCount;
+    }
+
+    @Override
+    public @NotNull List<Integer> getChunkSizes() {
+        return chunkSizes;
     }
 
-    private void writeChunk() throws IOException {
-        log.info(String.format("Writing chunk number %d...", currentChunkIdx));
-        FileOutputStream output = new FileOutputStream(pathPrefix + '.' + currentChunkIdx + ".json.gz");
-        Gson gson = new GsonBuilder().create();
+    @Override
+    public void close() {
         try {
-            Writer writer = new OutputStreamWriter(new GZIPOutputStream(output), "UTF-8");
-            writer.write(gson.toJson(unwrittenElements));
-            writer.close();
-        } finally {
-            output.close();
+            while (!queue.offer(END, 1, TimeUnit.SECONDS)) {
+                checkError();
+            }
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new Error("Interrupted while writing to output chunk file");
         }
+        checkError();
+    }
 
-        currentChunkIdx++;
-        unwrittenElements.clear();
+    private void checkError() {
+        if (error != null) {
+            throw new Error("Cannot write to output chunk file: " + error);
+        }
     }
 
-    public void close() {
+    private void flush() {
         try {
-            writeChunk();
-        } catch (IOException e) {
-            throw new Error("Cannot write to output chunk file: " + e);
+            for (Object element = queue.take(); element != END; element = queue.take()) {
+                if (chunkWriter == null) {
+                    openChunk();
+                }
+                gson.toJson(element, element.getClass(), chunkWriter);
+                chunkSize++;
+                if (chunkOutput.getCount() >= maxChunkBytes) {
+                    closeChunk();
+                }
+            }
+            if (chunkWriter != null) {
+                closeChunk();
+            }
+        } catch (Throwable e) {
+            error = e;
+            log.error("Cannot write to output chunk file", e);
+            // Unblock the producer, it rethrows the error
+            queue.clear();
+        }
+    }
+
+    private void openChunk() throws IOException {
+        int chunkIdx = chunkSizes.size();
+        log.info(String.format("Writing chunk number %d...", chunkIdx));
+        chunkOutput = new CountingOutputStream(new FileOutputStream(pathPrefix + '.' + chunkIdx + ".json.gz"));
+        chunkWriter = new JsonWriter(new BufferedWriter(new OutputStreamWriter(
+                new GZIPOutputStream(chunkOutput, 64 * 1024), StandardCharsets.UTF_8)));
+        chunkWriter.beginArray();
+        chunkSize = 0;
+    }
+
+    private void closeChunk() throws IOException {
+        chunkWriter.endArray();
+        chunkWriter.close();
+        chunkSizes.add(chunkSize);
+        chunkWriter = null;
+        chunkOutput = null;
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count = 0;
+
+        CountingOutputStream(@NotNull OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(@NotNull byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        long getCount() {
+            return count;
         }
     }
-}
\ No newline at end of file
+}
@@ -1,19 +1,30 @@
 package tools.graphVarMiner;
 
 import com.intellij.psi.*;
+import com.intellij.psi.util.PsiTreeUtil;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
-import org.jetbrains.id.names.suggesting.utils.PsiUtils;
+import org.jetbrains.id.names.suggesting.utils.ResolvedIdentifiers;
 
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 import static org.jetbrains.id.names.suggesting.utils.PsiUtils.*;
 
+/**
+ * Adds data-flow edges to the graph walking the AST in the order of execution.
+ * Identifiers of variables are numbered as they are met, {@link VarState} keeps last uses and writes as bitsets
+ * over these numbers, and loops are iterated until the state at their head reaches a fixed point.
+ */
 public class DataflowGraphExtractor extends JavaElementVisitor implements PsiRecursiveVisitor {
+    /**
+     * Version of the data-flow edges, must be increased whenever they change.
+     */
+    public static final int VERSION = 1;
+
     public static final String LAST_USE = "LastUse";
     public static final String LAST_WRITE = "LastWrite";
     public static final String COMPUTED_FROM = "ComputedFrom";
@@ -23,10 +34,17 @@ public class DataflowGraphExtractor extends JavaElementVisitor implements PsiRec
     private static final String GUARDED_BY_NEGATION = "GuardedByNegation";
 
     private final Graph<PsiElement> graph;
+    private final ResolvedIdentifiers resolvedIdentifiers;
+    private final PsiElement scope;
+    private final List<PsiIdentifier> identifiers = new ArrayList<>();
+    private final IdentityHashMap<PsiIdentifier, Integer> identifierIds = new IdentityHashMap<>();
+    private final IdentityHashMap<PsiVariable, IntList> variableOccurrences = new IdentityHashMap<>();
     private VarState varState = new VarState();
 
-    public DataflowGraphExtractor(Graph<PsiElement> graph) {
+    public DataflowGraphExtractor(Graph<PsiElement> graph, ResolvedIdentifiers resolvedIdentifiers, PsiElement scope) {
         this.graph = graph;
+        this.resolvedIdentifiers = resolvedIdentifiers;
+        this.scope = scope;
     }
 
     @Override
@@ -37,15 +55,14 @@ public class DataflowGraphExtractor extends JavaElementVisitor implements PsiRec
     @Override
     public void visitVariable(PsiVariable variable) {
 //        System.out.print("visitVariable\r");
-        if (!(variable instanceof PsiLocalVariable) && varState.contains(variable)) return;
-        varState.init(variable);
+        if (!(variable instanceof PsiLocalVariable) && variableOccurrences.containsKey(variable)) return;
+        IntList occurrences = getOccurrences(variable);
         acceptIfNotNull(variable.getInitializer());
         acceptIfNotNull(variable.getNameIdentifier());
         if (variable instanceof PsiParameter || variable.hasInitializer()) {
             PsiIdentifier identifier = variable.getNameIdentifier();
             if (identifier == null) return;
-            varState.getLastWrite(variable).clear();
-            varState.getLastWrite(variable).add(identifier);
+            varState.write(getIdentifierId(identifier, occurrences), occurrences);
 
             addEdgesFromIdToNodeIds(identifier, variable.getInitializer(), COMPUTED_FROM, null);
         }
@@ -59,26 +76,20 @@ public class DataflowGraphExtractor extends JavaElementVisitor implements PsiRec
     @Override
     public void visitIdentifier(PsiIdentifier identifier) {
 //        System.out.print("visitIdentifier\r");
-        PsiVariable declaration = findVariableDeclaration(identifier);
+        PsiVariable declaration = resolvedIdentifiers.getDeclaration(identifier);
         if (declaration == null) {
             return;
         }
-        if (!varState.contains(declaration)) {
-            declaration.accept(this);
-        }
+        visitDeclaration(declaration);
+        IntList occurrences = getOccurrences(declaration);
+        int identifierId = getIdentifierId(identifier, occurrences);
 
 //        Add LastUse edges
-        Collection<PsiIdentifier> lastUses = varState.getLastUse(declaration);
-        for (PsiIdentifier lastUse : lastUses) {
-            graph.addEdge(identifier, lastUse, LAST_USE, true);
-        }
-        lastUses.clear();
-        lastUses.add(identifier);
+        varState.forEachLastUse(occurrences, lastUse -> graph.addEdge(identifier, identifiers.get(lastUse), LAST_USE, true));
+        varState.use(identifierId, occurrences);
 
 //        Add LastWrite edges
-        for (PsiIdentifier lastWrite : varState.getLastWrite(declaration)) {
-            graph.addEdge(identifier, lastWrite, LAST_WRITE, true);
-        }
+        varState.forEachLastWrite(occurrences, lastWrite -> graph.addEdge(identifier, identifiers.get(lastWrite), LAST_WRITE, true));
     }
 
     @Override
@@ -94,13 +105,7 @@ public class DataflowGraphExtractor extends JavaElementVisitor implements PsiRec
 
         PsiIdentifier identifier = getIdentifier(lExpr);
         if (identifier == null) return;
-        PsiVariable variable = findVariableDeclaration(identifier);
-        if (variable == null) return;
-        if (!varState.contains(variable)) {
-            variable.accept(this);
-        }
-        varState.getLastWrite(variable).clear();
-        varState.getLastWrite(variable).add(identifier);
+        writeVariable(identifier);
 
         addEdgesFromIdToNodeIds(identifier, rExpr, COMPUTED_FROM, null);
 
@@ -113,13 +118,44 @@ public class DataflowGraphExtractor extends JavaElementVisitor implements PsiRec
         super.visitUnaryExpression(expression);
         PsiIdentifier identifier = getIdentifier(expression.getOperand());
         if (identifier == null) return;
-        PsiVariable variable = findVariableDeclaration(identifier);
+        writeVariable(identifier);
+    }
+
+    private void writeVariable(@NotNull PsiIdentifier identifier) {
+        PsiVariable variable = resolvedIdentifiers.getDeclaration(identifier);
         if (variable == null) return;
-        if (!varState.contains(variable)) {
-            variable.accept(this);
+        visitDeclaration(variable);
+        IntList occurrences = getOccurrences(variable);
+        varState.write(getIdentifierId(identifier, occurrences), occurrences);
+    }
+
+    private void visitDeclaration(@NotNull PsiVariable declaration) {
+        if (variableOccurrences.containsKey(declaration)) return;
+        if (PsiTreeUtil.isAncestor(scope, declaration, false)) {
+            declaration.accept(this);
+            return;
+        }
+//        Declarations outside of the scope, e.g. fields used by a method, are only linked by the write of their name
+        IntList occurrences = getOccurrences(declaration);
+        PsiIdentifier identifier = declaration.getNameIdentifier();
+        if (identifier != null && (declaration instanceof PsiParameter || declaration.hasInitializer())) {
+            varState.write(getIdentifierId(identifier, occurrences), occurrences);
+        }
+    }
+
+    private @NotNull IntList getOccurrences(@NotNull PsiVariable variable) {
+        return variableOccurrences.computeIfAbsent(variable, v -> new IntList(4));
+    }
+
+    private int getIdentifierId(@NotNull PsiIdentifier identifier, @NotNull IntList occurrences) {
+        Integer id = identifierIds.get(identifier);
+        if (id == null) {
+            id = identifiers.size();
+            identifiers.add(identifier);
+            identifierIds.put(identifier, id);
+            occurrences.add(id);
         }
-        varState.getLastWrite(variable).clear();
-        varState.getLastWrite(variable).add(identifier);
+        return id;
     }
 
     @Override
@@ -163,32 +199,32 @@ public class DataflowGraphExtractor extends JavaElementVisitor implements PsiRec
         VarState conditionState = varState.copy();
 
         acceptIfNotNull(statement.getThenBranch());
-        VarState postThenState = varState.copy();
+        VarState postThenState = varState;
         varState = conditionState;
 
         acceptIfNotNull(statement.getElseBranch());
         varState.mergeWith(postThenState);
 
 //        Add GuardedBy and GuardedByNegation edges
-        List<PsiVariable> includeOnly = findVarIdentifiersUnderNode(statement.getCondition())
+        List<PsiVariable> includeOnly = findVarIdentifiersUnderNode(statement.getCondition(), resolvedIdentifiers)
                 .stream()
-                .map(PsiUtils::findVariableDeclaration)
+                .map(resolvedIdentifiers::getDeclaration)
                 .collect(Collectors.toList());
         addEdgesFromNodeIdsToId(statement.getThenBranch(), statement.getCondition(), GUARDED_BY, includeOnly);
         addEdgesFromNodeIdsToId(statement.getElseBranch(), statement.getCondition(), GUARDED_BY_NEGATION, includeOnly);
     }
 
     private void addEdgesFromNodeIdsToId(PsiElement underNode, PsiElement toElement, @NotNull String edgeName, @Nullable List<PsiVariable> includeOnly) {
-        for (PsiIdentifier identifier : findVarIdentifiersUnderNode(underNode)) {
-            if (includeOnly == null || includeOnly.contains(findVariableDeclaration(identifier))) {
+        for (PsiIdentifier identifier : findVarIdentifiersUnderNode(underNode, resolvedIdentifiers)) {
+            if (includeOnly == null || includeOnly.contains(resolvedIdentifiers.getDeclaration(identifier))) {
                 graph.addEdge(identifier, toElement, edgeName, true);
             }
         }
     }
 
     private void addEdgesFromIdToNodeIds(PsiElement fromElement, PsiElement node, @NotNull String edgeName, @Nullable List<PsiVariable> includeOnly) {
-        for (PsiIdentifier identifier : findVarIdentifiersUnderNode(node)) {
-            if (includeOnly == null || includeOnly.contains(findVariableDeclaration(identifier))) {
+        for (PsiIdentifier identifier : findVarIdentifiersUnderNode(node, resolvedIdentifiers)) {
+            if (includeOnly == null || includeOnly.contains(resolvedIdentifiers.getDeclaration(identifier))) {
                 graph.addEdge(fromElement, identifier, edgeName, true);
             }
         }
@@ -202,6 +238,7 @@ public class DataflowGraphExtractor extends JavaElementVisitor implements PsiRec
 //        System.out.print("visitBreakStatement\r");
         addState(statement.findExitedStatement(), varState.copy(), breakStatesMap);
         super.visitBreakStatement(statement);
+        varState.clear();
     }
 
     @Override
@@ -209,6 +246,15 @@ public class DataflowGraphExtractor extends JavaElementVisitor implements PsiRec
 //        System.out.print("visitContinueStatement\r");
         addState(statement.findContinuedStatement(), varState.copy(), continueStatesMap);
         super.visitContinueStatement(statement);
+        varState.clear();
+    }
+
+    @Override
+    public void visitLabeledStatement(PsiLabeledStatement statement) {
+        super.visitLabeledStatement(statement);
+//        Breaks out of labeled blocks aren't consumed by loops and switches
+        updateVarStateWithStatementState(statement, breakStatesMap);
+        updateVarStateWithStatementState(statement.getStatement(), breakStatesMap);
     }
 
     @Override
@@ -218,26 +264,33 @@ public class DataflowGraphExtractor extends JavaElementVisitor implements PsiRec
 
         PsiCodeBlock body = statement.getBody();
         if (body != null) {
-            VarState defaultState = varState.copy();
-            List<VarState> states = new ArrayList<>();
-            int i = 0;
+            VarState expressionState = varState;
+            List<VarState> ruleStates = new ArrayList<>();
+            boolean hasDefault = false;
+            varState = new VarState();
             for (PsiStatement child : body.getStatements()) {
+                if (child instanceof PsiSwitchLabelStatementBase) {
+                    hasDefault |= ((PsiSwitchLabelStatementBase) child).isDefaultCase();
+                }
+                if (child instanceof PsiSwitchLabeledRuleStatement) {
+                    varState = expressionState.copy();
+                    child.accept(this);
+                    ruleStates.add(varState);
+                    varState = new VarState();
+                    continue;
+                }
                 if (child instanceof PsiSwitchLabelStatement) {
-                    if (i++ != 0) {
-                        states.add(varState.copy());
-                    }
-                    varState = defaultState.copy();
-                    if (!((PsiSwitchLabelStatement) child).isDefaultCase()) {
-                        varState.mergeWith(states, false);
-                        varState.subtract(breakStatesMap.get(statement));
-                        varState.distinct();
-                    }
+//                    Either jump to the label or fall through from the previous case
+                    varState.mergeWith(expressionState);
                 }
                 child.accept(this);
             }
-            varState.mergeWith(states);
-            breakStatesMap.remove(statement);
+            varState.mergeWith(ruleStates);
+            if (!hasDefault) {
+                varState.mergeWith(expressionState);
+            }
         }
+        updateVarStateWithStatementState(statement, breakStatesMap);
 //        TODO: Add GuardedBy and GuardedByNegation edges
     }
 
@@ -246,17 +299,17 @@ public class DataflowGraphExtractor extends JavaElementVisitor implements PsiRec
 //        System.out.print("visitTryStatement\r");
         VarState beforeTryState = varState.copy();
         acceptIfNotNull(statement.getTryBlock());
-        VarState afterTryState = varState.copy();
+        VarState afterTryState = varState;
 
-        varState = beforeTryState;
-        Collection<VarState> states = new ArrayList<>();
-        states.add(varState.copy());
+//        An exception can be thrown anywhere in the try block
+        VarState catchState = beforeTryState;
+        catchState.mergeWith(afterTryState);
         for (PsiCatchSection catchSection : statement.getCatchSections()) {
+            varState = catchState.copy();
             catchSection.accept(this);
-            states.add(varState.copy());
-            varState.mergeWith(states);
+            afterTryState.mergeWith(varState);
         }
-        varState.mergeWith(afterTryState);
+        varState = afterTryState;
 
         acceptIfNotNull(statement.getFinallyBlock());
     }
@@ -264,26 +317,17 @@ public class DataflowGraphExtractor extends JavaElementVisitor implements PsiRec
     @Override
     public void visitWhileStatement(PsiWhileStatement statement) {
 //        System.out.print("visitWhileStatement\r");
-        acceptIfNotNull(statement.getCondition());
-
-        VarState noBodyExecutionState = varState.copy();
-
-        // Unfold twice
-        acceptIfNotNull(statement.getBody());
-        updateVarStateWithStatementState(statement, continueStatesMap);
-        acceptIfNotNull(statement.getCondition());
-        acceptIfNotNull(statement.getBody());
-        updateVarStateWithStatementState(statement, continueStatesMap);
-        updateVarStateWithStatementState(statement, breakStatesMap);
-
-        varState.mergeWith(noBodyExecutionState);
-        continueStatesMap.remove(statement);
-        breakStatesMap.remove(statement);
+        iterateLoop(statement, () -> {
+            acceptIfNotNull(statement.getCondition());
+            VarState exitState = varState.copy();
+            acceptIfNotNull(statement.getBody());
+            return exitState;
+        });
 
 //        Add GuardedBy edges
-        List<PsiVariable> includeOnly = findVarIdentifiersUnderNode(statement.getCondition())
+        List<PsiVariable> includeOnly = findVarIdentifiersUnderNode(statement.getCondition(), resolvedIdentifiers)
                 .stream()
-                .map(PsiUtils::findVariableDeclaration)
+                .map(resolvedIdentifiers::getDeclaration)
                 .collect(Collectors.toList());
         addEdgesFromNodeIdsToId(statement.getBody(), statement.getCondition(), GUARDED_BY, includeOnly);
     }
@@ -291,22 +335,17 @@ public class DataflowGraphExtractor extends JavaElementVisitor implements PsiRec
     @Override
     public void visitDoWhileStatement(PsiDoWhileStatement statement) {
 //        System.out.print("visitDoWhileStatement\r");
-        // Unfold twice
-        acceptIfNotNull(statement.getBody());
-        updateVarStateWithStatementState(statement, continueStatesMap);
-        acceptIfNotNull(statement.getCondition());
-        acceptIfNotNull(statement.getBody());
-        updateVarStateWithStatementState(statement, continueStatesMap);
-        acceptIfNotNull(statement.getCondition());
-        updateVarStateWithStatementState(statement, breakStatesMap);
-
-        continueStatesMap.remove(statement);
-        breakStatesMap.remove(statement);
+        iterateLoop(statement, () -> {
+            acceptIfNotNull(statement.getBody());
+            updateVarStateWithStatementState(statement, continueStatesMap);
+            acceptIfNotNull(statement.getCondition());
+            return varState.copy();
+        });
 
         //        Add GuardedBy edges
-        List<PsiVariable> includeOnly = findVarIdentifiersUnderNode(statement.getCondition())
+        List<PsiVariable> includeOnly = findVarIdentifiersUnderNode(statement.getCondition(), resolvedIdentifiers)
                 .stream()
-                .map(PsiUtils::findVariableDeclaration)
+                .map(resolvedIdentifiers::getDeclaration)
                 .collect(Collectors.toList());
         addEdgesFromNodeIdsToId(statement.getBody(), statement.getCondition(), GUARDED_BY, includeOnly);
     }
@@ -315,27 +354,19 @@ public class DataflowGraphExtractor extends JavaElementVisitor implements PsiRec
     public void visitForStatement(PsiForStatement statement) {
 //        System.out.print("visitForStatement\r");
         acceptIfNotNull(statement.getInitialization());
-        acceptIfNotNull(statement.getCondition());
-
-        VarState noBodyExecutionState = varState.copy();
-
-        for (int i = 0; i < 2; i++) {  // Unfold twice
+        iterateLoop(statement, () -> {
+            acceptIfNotNull(statement.getCondition());
+            VarState exitState = varState.copy();
             acceptIfNotNull(statement.getBody());
             updateVarStateWithStatementState(statement, continueStatesMap);
             acceptIfNotNull(statement.getUpdate());
-            acceptIfNotNull(statement.getCondition());
-        }
-        updateVarStateWithStatementState(statement, breakStatesMap);
-
-        varState.mergeWith(noBodyExecutionState);
-
-        continueStatesMap.remove(statement);
-        breakStatesMap.remove(statement);
+            return exitState;
+        });
 
         //        Add GuardedBy edges
-        List<PsiVariable> includeOnly = findVarIdentifiersUnderNode(statement.getCondition())
+        List<PsiVariable> includeOnly = findVarIdentifiersUnderNode(statement.getCondition(), resolvedIdentifiers)
                 .stream()
-                .map(PsiUtils::findVariableDeclaration)
+                .map(resolvedIdentifiers::getDeclaration)
                 .collect(Collectors.toList());
         addEdgesFromNodeIdsToId(statement.getBody(), statement.getCondition(), GUARDED_BY, includeOnly);
     }
@@ -344,32 +375,51 @@ public class DataflowGraphExtractor extends JavaElementVisitor implements PsiRec
     public void visitForeachStatement(PsiForeachStatement statement) {
 //        System.out.print("visitForeachStatement\r");
         acceptIfNotNull(statement.getIteratedValue());
-        VarState noBodyExecutionState = varState.copy();
-        for (int i = 0; i < 2; i++) {  // Unfold twice
+        iterateLoop(statement, () -> {
+            VarState exitState = varState.copy();
             acceptIfNotNull(statement.getIterationParameter());
             acceptIfNotNull(statement.getBody());
-            updateVarStateWithStatementState(statement, continueStatesMap);
+            return exitState;
+        });
+    }
+
+    /**
+     * Visits iterations of the loop until the state at its head stops changing.
+     * The state at the head is the state before the loop merged with the states at the ends of iterations
+     * and at {@code continue} statements. Uses and writes only kill and generate identifiers,
+     * so the second iteration usually confirms the fixed point.
+     *
+     * @param iteration visits one iteration starting from the head state in {@link #varState}
+     *                  and returns the state in which the loop exits by its condition.
+     */
+    private void iterateLoop(@NotNull PsiStatement loop, @NotNull Supplier<VarState> iteration) {
+        VarState headState = varState.copy();
+        VarState exitState;
+        while (true) {
+            breakStatesMap.remove(loop);
+            varState = headState.copy();
+            exitState = iteration.get();
+            updateVarStateWithStatementState(loop, continueStatesMap);
+            VarState nextHeadState = headState.copy();
+            nextHeadState.mergeWith(varState);
+            if (nextHeadState.equals(headState)) break;
+            headState = nextHeadState;
         }
-        updateVarStateWithStatementState(statement, breakStatesMap);
-        varState.mergeWith(noBodyExecutionState);
-        continueStatesMap.remove(statement);
-        breakStatesMap.remove(statement);
+        varState = exitState;
+        updateVarStateWithStatementState(loop, breakStatesMap);
     }
 
     private void addState(PsiStatement statement, VarState state, IdentityHashMap<PsiStatement, List<VarState>> toMap) {
-        toMap.putIfAbsent(statement, new ArrayList<>());
-        toMap.get(statement).add(state);
+        toMap.computeIfAbsent(statement, k -> new ArrayList<>()).add(state);
     }
 
-    private void updateVarStateWithStatementState(PsiStatement statement, IdentityHashMap<PsiStatement, List<VarState>> continueStatesMap) {
-        continueStatesMap.computeIfPresent(statement, (k, v) -> {
-            varState.mergeWith(v);
-            return new ArrayList<>();
-        });
+    private void updateVarStateWithStatementState(@Nullable PsiStatement statement, IdentityHashMap<PsiStatement, List<VarState>> statesMap) {
+        if (statement == null) return;
+        varState.mergeWith(statesMap.remove(statement));
     }
 
     private void acceptIfNotNull(PsiElement element) {
         if (element == null) return;
         element.accept(this);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,24 @@
+package tools.graphVarMiner;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+
+/**
+ * Writes samples of a dataset shard to a sequence of chunk files {@code pathPrefix.N.<extension>}.
+ */
+public interface DatasetWriter<T> {
+    void add(T element);
+
+    /**
+     * @return number of elements added so far, i.e. index of the next element among all elements of all chunks.
+     */
+    int getElementCount();
+
+    /**
+     * @return numbers of elements in the written chunks, complete after {@link #close()}.
+     */
+    @NotNull List<Integer> getChunkSizes();
+
+    void close();
+}
@@ -0,0 +1,53 @@
+package tools.graphVarMiner;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Interns edge type names into small int ids shared by all graphs.
+ * An edge type and its reversed type are interned together, so that {@code reverse(id) == id ^ 1}.
+ */
+public final class EdgeTypes {
+    private static final String REVERSED_PREFIX = "reversed";
+    private static final Map<String, Integer> ourIds = new ConcurrentHashMap<>();
+    private static final List<String> ourNames = new CopyOnWriteArrayList<>();
+
+    private EdgeTypes() {
+    }
+
+    public static int id(@NotNull String name) {
+        Integer id = ourIds.get(name);
+        return id != null ? id : register(name);
+    }
+
+    private static synchronized int register(@NotNull String name) {
+        Integer id = ourIds.get(name);
+        if (id != null) return id;
+        String forward = name.startsWith(REVERSED_PREFIX) ? name.substring(REVERSED_PREFIX.length()) : name;
+        int forwardId = ourNames.size();
+        ourNames.add(forward);
+        ourNames.add(REVERSED_PREFIX + forward);
+        ourIds.put(forward, forwardId);
+        ourIds.put(REVERSED_PREFIX + forward, forwardId + 1);
+        return ourIds.get(name);
+    }
+
+    public static @NotNull String name(int id) {
+        return ourNames.get(id);
+    }
+
+    public static int reverse(int id) {
+        return id ^ 1;
+    }
+
+    /**
+     * @return upper bound of ids which are interned at the moment.
+     */
+    public static int count() {
+        return ourNames.size();
+    }
+}
@@ -6,127 +6,204 @@ import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.util.*;
-import java.util.Map.Entry;
 import java.util.function.Function;
+import java.util.function.IntConsumer;
 
-import static tools.graphVarMiner.MapUtils.copyMap;
+/**
+ * Graph which is built by appending edges and is frozen into compressed sparse rows on the first read.
+ * Edges are kept per interned edge type as primitive int arrays: while building as a list of (from, to) pairs,
+ * after {@link #freeze()} as sorted rows without duplicates. A frozen graph can't be modified,
+ * per-variable edits go to an {@link #overlay()} which shares the rows of this graph.
+ */
+public class Graph<T> implements GraphView<T> {
+    protected final List<T> nodeLabels = new ArrayList<>();
+    protected final Map<T, Integer> nodeToIdx = new IdentityHashMap<>();
+    private IntList[] myEdgeSources = new IntList[0];
+    private IntList[] myEdgeTargets = new IntList[0];
+    private int[][] myOffsets;
+    private int[][] myTargets;
 
-public class Graph<T> {
-    protected List<T> NodeLabels = new ArrayList<T>();
-    protected Map<T, Integer> nodeToIdx = new IdentityHashMap<>();
-    protected Map<String, Map<Integer, Set<Integer>>> edges = new HashMap<>();
-    private final HashSet<T> visitedNodes = new HashSet<>();
+    public int getNodeId(@NotNull T node) {
+        Integer idx = nodeToIdx.get(node);
+        if (idx != null) return idx;
+        checkNotFrozen();
+        idx = nodeLabels.size();
+        nodeLabels.add(node);
+        nodeToIdx.put(node, idx);
+        return idx;
+    }
+
+    @Override
+    public int findNodeId(@NotNull T node) {
+        Integer idx = nodeToIdx.get(node);
+        return idx == null ? -1 : idx;
+    }
 
-    public int getNodeId(T node) {
-        return nodeToIdx.computeIfAbsent(node, n -> {
-            int idx = NodeLabels.size();
-            NodeLabels.add(n);
-            nodeToIdx.put(n, idx);
-            return idx;
-        });
+    @Override
+    public @NotNull T getNodeLabel(int nodeId) {
+        return nodeLabels.get(nodeId);
     }
 
-    public boolean containsNode(T node) {
-        return nodeToIdx.containsKey(node);
+    @Override
+    public int getNodeCount() {
+        return nodeLabels.size();
     }
 
     public void addEdge(@Nullable T from, @Nullable T to, @NotNull String edgeType, boolean withReversed) {
-        if (from == null || to == null) return;
-        addEdge(from, to, edgeType);
-        if (withReversed) addEdge(to, from, reverseEdgeType(edgeType));
+        addEdge(from, to, EdgeTypes.id(edgeType), withReversed);
     }
 
-    private void addEdge(@NotNull T from, @NotNull T to, @NotNull String edgeType) {
+    public void addEdge(@Nullable T from, @Nullable T to, int edgeType, boolean withReversed) {
+        if (from == null || to == null) return;
         int fromIdx = getNodeId(from);
         int toIdx = getNodeId(to);
         addEdge(fromIdx, toIdx, edgeType);
+        if (withReversed) addEdge(toIdx, fromIdx, EdgeTypes.reverse(edgeType));
     }
 
-    private void addEdge(int fromIdx, int toIdx, @NotNull String edgeType) {
-        if (!edges.containsKey(edgeType)) {
-            edges.put(edgeType, new HashMap<>());
+    private void addEdge(int fromIdx, int toIdx, int edgeType) {
+        checkNotFrozen();
+        if (edgeType >= myEdgeSources.length) {
+            int length = Math.max(edgeType + 1, EdgeTypes.count());
+            myEdgeSources = Arrays.copyOf(myEdgeSources, length);
+            myEdgeTargets = Arrays.copyOf(myEdgeTargets, length);
+        }
+        if (myEdgeSources[edgeType] == null) {
+            myEdgeSources[edgeType] = new IntList();
+            myEdgeTargets[edgeType] = new IntList();
         }
+        myEdgeSources[edgeType].add(fromIdx);
+        myEdgeTargets[edgeType].add(toIdx);
+    }
+
+    public boolean isFrozen() {
+        return myOffsets != null;
+    }
+
+    private void checkNotFrozen() {
+        if (isFrozen()) throw new IllegalStateException("Graph is frozen, use an overlay to modify it");
+    }
+
+    /**
+     * Turns the collected edges into compressed sparse rows: for every edge type
+     * targets of node {@code n} are {@code targets[offsets[n]..offsets[n + 1])}, sorted and unique.
+     * Called implicitly by all reading methods.
+     */
+    public void freeze() {
+        if (isFrozen()) return;
+        int nodeCount = nodeLabels.size();
+        int typeCount = myEdgeSources.length;
+        int[][] allOffsets = new int[typeCount][];
+        int[][] allTargets = new int[typeCount][];
+        for (int type = 0; type < typeCount; type++) {
+            IntList sources = myEdgeSources[type];
+            if (sources == null) continue;
+            IntList edgeTargets = myEdgeTargets[type];
+            int edgeCount = sources.size();
+
+            int[] offsets = new int[nodeCount + 1];
+            for (int i = 0; i < edgeCount; i++) {
+                offsets[sources.get(i) + 1]++;
+            }
+            for (int node = 0; node < nodeCount; node++) {
+                offsets[node + 1] += offsets[node];
+            }
+            int[] targets = new int[edgeCount];
+            int[] fill = Arrays.copyOf(offsets, nodeCount);
+            for (int i = 0; i < edgeCount; i++) {
+                targets[fill[sources.get(i)]++] = edgeTargets.get(i);
+            }
 
-        Map<Integer, Set<Integer>> outEdges = edges.get(edgeType);
-        if (!outEdges.containsKey(fromIdx)) {
-            outEdges.put(fromIdx, new HashSet<>());
+            // Sort every row and drop duplicate edges, compacting the rows to the left.
+            int size = 0;
+            int start = offsets[0];
+            for (int node = 0; node < nodeCount; node++) {
+                int end = offsets[node + 1];
+                Arrays.sort(targets, start, end);
+                offsets[node] = size;
+                for (int i = start; i < end; i++) {
+                    if (i == start || targets[i] != targets[i - 1]) {
+                        targets[size++] = targets[i];
+                    }
+                }
+                start = end;
+            }
+            offsets[nodeCount] = size;
+            allOffsets[type] = offsets;
+            allTargets[type] = size == edgeCount ? targets : Arrays.copyOf(targets, size);
         }
-        Set<Integer> targetNodes = outEdges.get(fromIdx);
-        targetNodes.add(toIdx);
+        myTargets = allTargets;
+        myOffsets = allOffsets;
+        myEdgeSources = null;
+        myEdgeTargets = null;
     }
 
-    public void removeEdge(@Nullable T from, @Nullable T to, @NotNull String edgeType, boolean withReversed) {
-        if (from == null || to == null) return;
-        removeEdge(from, to, edgeType);
-        if (withReversed) removeEdge(to, from, reverseEdgeType(edgeType));
+    @Override
+    public int getEdgeTypeCount() {
+        freeze();
+        return myOffsets.length;
     }
 
-    private void removeEdge(@NotNull T from, @NotNull T to, @NotNull String edgeType) {
-        if (!edges.containsKey(edgeType)) return;
-        Integer fromIdx = nodeToIdx.get(from);
-        Integer toIdx = nodeToIdx.get(to);
-        if (fromIdx == null || toIdx == null) return;
-        removeEdge(fromIdx, toIdx, edgeType);
+    int rowStart(int fromId, int edgeType) {
+        freeze();
+        if (edgeType >= myOffsets.length || myOffsets[edgeType] == null) return 0;
+        return myOffsets[edgeType][fromId];
     }
 
-    private void removeEdge(int fromIdx, int toIdx, @NotNull String edgeType) {
-        Map<Integer, Set<Integer>> outEdges = edges.get(edgeType);
-        if (!outEdges.containsKey(fromIdx)) return;
-        Set<Integer> targetNodes = outEdges.get(fromIdx);
-        targetNodes.remove(toIdx);
-        if (targetNodes.size() == 0) {
-            outEdges.remove(fromIdx);
-        }
+    int rowEnd(int fromId, int edgeType) {
+        freeze();
+        if (edgeType >= myOffsets.length || myOffsets[edgeType] == null) return 0;
+        return myOffsets[edgeType][fromId + 1];
     }
 
-    private static String reverseEdgeType(String edgeType) {
-        if (edgeType.startsWith("reversed")) {
-            return edgeType.substring(8);
+    int targetAt(int edgeType, int position) {
+        return myTargets[edgeType][position];
+    }
+
+    @Override
+    public void forEachTarget(int fromId, int edgeType, @NotNull IntConsumer consumer) {
+        for (int i = rowStart(fromId, edgeType), end = rowEnd(fromId, edgeType); i < end; i++) {
+            consumer.accept(myTargets[edgeType][i]);
         }
-        return "reversed" + edgeType;
     }
 
-    public @Nullable T getFirstChild(@Nullable T node, @NotNull String edgeType) {
-        if (node == null || !edges.containsKey(edgeType)) return null;
-        Map<Integer, Set<Integer>> outEdges = edges.get(edgeType);
-        Integer nodeIdx = nodeToIdx.get(node);
-        if (!outEdges.containsKey(nodeIdx)) return null;
-        Integer childIdx = outEdges.get(nodeIdx).stream().findFirst().orElse(null);
-        return childIdx == null ? null : NodeLabels.get(childIdx);
+    @Override
+    public int getFirstTarget(int fromId, int edgeType) {
+        int start = rowStart(fromId, edgeType);
+        return start < rowEnd(fromId, edgeType) ? myTargets[edgeType][start] : -1;
+    }
+
+    public boolean hasEdge(int fromId, int toId, int edgeType) {
+        int start = rowStart(fromId, edgeType);
+        int end = rowEnd(fromId, edgeType);
+        return start < end && Arrays.binarySearch(myTargets[edgeType], start, end, toId) >= 0;
+    }
+
+    /**
+     * @return copy-on-write view of this graph; edits of the view don't affect the graph.
+     */
+    public @NotNull GraphOverlay<T> overlay() {
+        freeze();
+        return new GraphOverlay<>(this);
     }
 
     public String toDot(Function<T, String> nodeLabeler) {
-        StringBuffer sb = new StringBuffer();
-        for (int i = 0; i < NodeLabels.size(); i++) {
-            sb.append(i + " [label=\"" + StringEscapeUtils.escapeJava(nodeLabeler.apply(NodeLabels.get(i))) + "\"];\n");
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < nodeLabels.size(); i++) {
+            sb.append(i).append(" [label=\"").append(StringEscapeUtils.escapeJava(nodeLabeler.apply(nodeLabels.get(i)))).append("\"];\n");
         }
 
-        for (Entry<String, Map<Integer, Set<Integer>>> edgesOfType : edges.entrySet()) {
-            for (Entry<Integer, Set<Integer>> outEdges : edgesOfType.getValue().entrySet()) {
-                for (int targetNodeIdx : outEdges.getValue()) {
-                    sb.append(outEdges.getKey() + "->" + targetNodeIdx + " [label=\"" + edgesOfType.getKey() + "\"];\n");
+        for (int type = 0; type < getEdgeTypeCount(); type++) {
+            String typeName = EdgeTypes.name(type);
+            for (int from = 0; from < nodeLabels.size(); from++) {
+                for (int i = rowStart(from, type), end = rowEnd(from, type); i < end; i++) {
+                    sb.append(from).append("->").append(myTargets[type][i]).append(" [label=\"").append(typeName).append("\"];\n");
                 }
             }
         }
         return sb.toString();
     }
 
-    public void copyEdgesFromNode(T node, Graph<T> graph, int depth) {
-        if (depth < 1 || this.visitedNodes.contains(node) || !graph.containsNode(node)) return;
-        this.visitedNodes.add(node);
-        int nodeIdx = graph.nodeToIdx.get(node);
-        for (Map.Entry<String, Map<Integer, Set<Integer>>> typeEdges : graph.edges.entrySet()) {
-            String edgeType = typeEdges.getKey();
-            Map<Integer, Set<Integer>> edgesMap = typeEdges.getValue();
-            if (!edgesMap.containsKey(nodeIdx)) continue;
-            for (int toIdx : edgesMap.get(nodeIdx)) {
-                T toNode = graph.NodeLabels.get(toIdx);
-                this.addEdge(node, toNode, edgeType, true);
-                this.copyEdgesFromNode(toNode, graph, depth - 1);
-            }
-        }
-    }
-
     public static class JsonSerializableGraph {
         public Map<Integer, String> NodeLabels = new HashMap<Integer, String>();
         public Map<String, List<Integer[]>> Edges = new HashMap<>();
@@ -134,36 +211,20 @@ public class Graph<T> {
 
     public JsonSerializableGraph toJsonSerializableObject(Function<T, String> nodeLabeler) throws IOException {
         JsonSerializableGraph graph = new JsonSerializableGraph();
-        for (int i = 0; i < this.NodeLabels.size(); i++) {
-            graph.NodeLabels.put(i, nodeLabeler.apply(this.NodeLabels.get(i)));
+        for (int i = 0; i < this.nodeLabels.size(); i++) {
+            graph.NodeLabels.put(i, nodeLabeler.apply(this.nodeLabels.get(i)));
         }
 
-        for (Entry<String, Map<Integer, Set<Integer>>> edgesOfType : this.edges.entrySet()) {
-            List<Integer[]> adjList = new ArrayList<>();
-            graph.Edges.put(edgesOfType.getKey(), adjList);
-            for (Entry<Integer, Set<Integer>> fromToEdge : edgesOfType.getValue().entrySet()) {
-                for (int targetEdge : fromToEdge.getValue()) {
-                    Integer[] edge = new Integer[]{fromToEdge.getKey(), targetEdge};
-                    adjList.add(edge);
+        for (int type = 0; type < getEdgeTypeCount(); type++) {
+            if (myTargets[type] == null || myTargets[type].length == 0) continue;
+            List<Integer[]> adjList = new ArrayList<>(myTargets[type].length);
+            graph.Edges.put(EdgeTypes.name(type), adjList);
+            for (int from = 0; from < nodeLabels.size(); from++) {
+                for (int i = rowStart(from, type), end = rowEnd(from, type); i < end; i++) {
+                    adjList.add(new Integer[]{from, myTargets[type][i]});
                 }
             }
         }
         return graph;
     }
-
-    public Graph<T> shallowCopy(String... edgesToCopy) {
-        Graph<T> copy = new Graph<>();
-        copy.edges = copyMap(this.edges, edgesToCopy);
-        copy.NodeLabels = this.NodeLabels;
-        copy.nodeToIdx = this.nodeToIdx;
-        return copy;
-    }
-
-    public Graph<T> deepCopy() {
-        Graph<T> copy = new Graph<>();
-        copy.edges = copyMap(this.edges);
-        copy.NodeLabels = new ArrayList<T>(this.NodeLabels);
-        copy.nodeToIdx = new IdentityHashMap<T, Integer>(this.nodeToIdx);
-        return copy;
-    }
-}
\ No newline at end of file
+}
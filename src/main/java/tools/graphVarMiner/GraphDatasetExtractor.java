@@ -1,26 +1,36 @@
 package tools.graphVarMiner;
 
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
 import com.intellij.ide.highlighter.JavaFileType;
 import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.application.ReadAction;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.project.Project;
-import com.intellij.openapi.util.TextRange;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.psi.*;
-import com.intellij.psi.impl.source.resolve.ResolveCache;
 import com.intellij.psi.search.FileTypeIndex;
 import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.util.ConcurrencyUtil;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.jetbrains.id.names.suggesting.utils.ContentHashUtils;
+import org.jetbrains.id.names.suggesting.utils.ResolvedIdentifiers;
 
 import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.Duration;
 import java.time.Instant;
-import java.util.Collection;
-import java.util.List;
-import java.util.Objects;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -30,59 +40,267 @@ import static org.jetbrains.id.names.suggesting.utils.PsiUtils.shouldLex;
 public class GraphDatasetExtractor {
     private static final String defaultPrefix = Paths.get(PathManager.getSystemPath(), "dataset", "graph").toString();
     private static final Logger log = Logger.getInstance(GraphDatasetExtractor.class);
+    private static final long MAX_CHUNK_BYTES = 16 * 1024 * 1024;
+    private static final long MAX_BINARY_CHUNK_BYTES = 64 * 1024 * 1024;
+    /**
+     * Version of {@link SerializableVarData} and node labels, must be increased whenever they change.
+     */
+    public static final int SAMPLE_VERSION = 1;
 
     public static void build(@NotNull Project project, @Nullable String prefix) {
-        Collection<VirtualFile> files = FileTypeIndex.getFiles(JavaFileType.INSTANCE,
-                GlobalSearchScope.projectScope(project));
-        int progress = 0;
+        build(project, prefix, Runtime.getRuntime().availableProcessors(), false);
+    }
+
+    /**
+     * Mines files of the project on a pool of workers, every worker writes its own shard of chunks
+     * {@code prefix.shardN.M.json.gz}. Shards depend on scheduling, so the order of samples is given by
+     * the manifest {@code prefix.manifest.json}, which lists files sorted by path with the position
+     * of their samples in the shards.
+     * <p>
+     * The manifest also keeps content hashes of the files and versions of the extraction stages. If the previous
+     * manifest has the same versions and format, only added and changed files are mined, to shards of the next
+     * generation {@code prefix.gG.shardN}, and the manifest refers to the old shards for the other files.
+     * Shards without referenced samples are deleted, samples of changed files stay in old shards until then,
+     * so chunks must be read through the manifest.
+     *
+     * @param binary whether to write chunks {@code prefix.shardN.M.bin} in {@link BinarySampleFormat}
+     *               instead of gzipped JSON.
+     */
+    public static void build(@NotNull Project project, @Nullable String prefix, int threads, boolean binary) {
+        List<VirtualFile> files = ReadAction.compute(() -> new ArrayList<>(FileTypeIndex.getFiles(JavaFileType.INSTANCE,
+                GlobalSearchScope.projectScope(project))));
+        files.sort(Comparator.comparing(VirtualFile::getPath));
         final int total = files.size();
         System.out.printf("Number of files to parse: %s\n", total);
         Instant start = Instant.now();
 
-        @NotNull PsiManager psiManager = PsiManager.getInstance(project);
-        ChunkWriter<SerializableVarData> writer = new ChunkWriter<>(prefix == null ? defaultPrefix : prefix,
-                2000);
-        for (VirtualFile file : files) {
-//            System.out.println(file.getCanonicalPath());
-            try {
-                long fileSize = Files.size(Paths.get(file.getPath()));
-                if (fileSize > 128 * 1024) {  // 128 KB
-                    log.info(String.format("Skip file %s with size %dB", file.getPath(), fileSize));
-                    continue;
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
+        String pathPrefix = prefix == null ? defaultPrefix : prefix;
+        PsiManager psiManager = PsiManager.getInstance(project);
+        Manifest manifest = new Manifest();
+        manifest.format = binary ? "binary" : "json";
+        manifest.versions = getStageVersions();
+        Manifest previous = readManifest(pathPrefix);
+        Map<String, ManifestEntry> previousEntries = new HashMap<>();
+        if (previous != null && manifest.format.equals(previous.format) && manifest.versions.equals(previous.versions)) {
+            manifest.generation = previous.generation + 1;
+            manifest.shards.addAll(previous.shards);
+            for (ManifestEntry entry : previous.files) {
+                previousEntries.put(entry.path, entry);
             }
+        } else if (previous != null) {
+            System.out.printf("Extraction stages changed from %s to %s, mining all files\n",
+                    previous.versions, manifest.versions);
+            deleteShards(pathPrefix, previous, previous.shards);
+        }
+        final int firstShard = manifest.shards.size();
+        final int generation = manifest.generation;
 
-            @Nullable PsiFile psiFile = psiManager.findFile(file);
-            if (psiFile != null) {
-
-                extractFromPsiFile(psiFile).forEach(writer::add);
-//                Clear resolve cache
-                ResolveCache.getInstance(project).clearCache(true);
-
-                double fraction = ++progress / (double) total;
-//                if (total < 100 || progress % (total / 100) == 0) {
-                Duration timeSpent = Duration.between(start, Instant.now());
-                Duration timeLeft = Duration.ofMillis((long) (timeSpent.toMillis() * (1 / fraction - 1)));
-                System.out.printf(
-                        "Status: %.0f%%;\tTime spent: %s;\tTime left: %s\r",
-                        fraction * 100.0,
-                        timeSpent,
-                        timeLeft
-                );
-//                }
-            } else {
-                System.out.println("PSI isn't found");
+        ManifestEntry[] entries = new ManifestEntry[total];
+        AtomicInteger nextFile = new AtomicInteger();
+        AtomicInteger progress = new AtomicInteger();
+        AtomicInteger reused = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads,
+                ConcurrencyUtil.newNamedThreadFactory("Graph Miner"));
+        try {
+            List<Future<List<Integer>>> shards = new ArrayList<>();
+            for (int shard = 0; shard < threads; shard++) {
+                final int shardIdx = firstShard + shard;
+                final String chunkPrefix = shardPrefix(pathPrefix, generation, shard);
+                shards.add(executor.submit(() -> {
+                    DatasetWriter<SerializableVarData> writer = binary
+                            ? new BinaryChunkWriter(chunkPrefix, MAX_BINARY_CHUNK_BYTES)
+                            : new ChunkWriter<>(chunkPrefix, MAX_CHUNK_BYTES);
+                    try {
+                        for (int i = nextFile.getAndIncrement(); i < total; i = nextFile.getAndIncrement()) {
+                            VirtualFile file = files.get(i);
+                            String hash = hashOrNull(file);
+                            ManifestEntry previousEntry = previousEntries.get(file.getPath());
+                            if (previousEntry != null && hash != null && hash.equals(previousEntry.hash)) {
+                                entries[i] = previousEntry;
+                                reused.incrementAndGet();
+                            } else {
+                                entries[i] = ReadAction.compute(() -> mineFile(psiManager, file, shardIdx, writer));
+                                entries[i].hash = hash;
+                            }
+                            printProgress(progress.incrementAndGet(), total, start);
+                        }
+                    } finally {
+                        writer.close();
+                    }
+                    return writer.getChunkSizes();
+                }));
+            }
+            for (int shard = 0; shard < threads; shard++) {
+                String shardName = Paths.get(shardPrefix(pathPrefix, generation, shard)).getFileName().toString();
+                manifest.shards.add(new ManifestShard(shardName, shards.get(shard).get()));
             }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException("Mining of the dataset failed", e);
+        } finally {
+            executor.shutdownNow();
+        }
+        for (ManifestEntry entry : entries) {
+            if (entry != null) manifest.files.add(entry);
         }
-        writer.close();
+        if (reused.get() > 0) {
+            System.out.printf("Samples of %d unchanged files are taken from the previous dataset\n", reused.get());
+        }
+        removeUnreferencedShards(pathPrefix, manifest);
+        writeManifest(pathPrefix, manifest);
 
         Instant end = Instant.now();
         Duration timeSpent = Duration.between(start, end);
         System.out.printf("Done in %s\n", timeSpent);
     }
 
+    /**
+     * @return versions of the stages which samples depend on, a sample is mined again if any of them is changed.
+     */
+    private static @NotNull Map<String, Integer> getStageVersions() {
+        Map<String, Integer> versions = new TreeMap<>();
+        versions.put("tokens", JavaGraphExtractor.VERSION);
+        versions.put("ast", AstGraphCreator.VERSION);
+        versions.put("dataflow", DataflowGraphExtractor.VERSION);
+        versions.put("members", MemberGraphMiner.VERSION);
+        versions.put("samples", SAMPLE_VERSION);
+        return versions;
+    }
+
+    /**
+     * @return content hash of the file or null if it cannot be read, then the file is mined in any case.
+     */
+    private static @Nullable String hashOrNull(@NotNull VirtualFile file) {
+        try {
+            return ContentHashUtils.hash(file);
+        } catch (IOException e) {
+            log.warn("Cannot read " + file.getPath(), e);
+            return null;
+        }
+    }
+
+    private static @NotNull ManifestEntry mineFile(@NotNull PsiManager psiManager, @NotNull VirtualFile file,
+                                                   int shard, @NotNull DatasetWriter<SerializableVarData> writer) {
+        ManifestEntry entry = new ManifestEntry();
+        entry.path = file.getPath();
+        entry.shard = shard;
+        entry.offset = writer.getElementCount();
+        @Nullable PsiFile psiFile = psiManager.findFile(file);
+        if (psiFile == null) {
+            System.out.println("PSI isn't found");
+            return entry;
+        }
+        extractFromPsiFile(psiFile, varData -> {
+            writer.add(varData);
+            entry.count++;
+        });
+        return entry;
+    }
+
+    private static synchronized void printProgress(int progress, int total, @NotNull Instant start) {
+        double fraction = progress / (double) total;
+        Duration timeSpent = Duration.between(start, Instant.now());
+        Duration timeLeft = Duration.ofMillis((long) (timeSpent.toMillis() * (1 / fraction - 1)));
+        System.out.printf(
+                "Status: %.0f%%;\tTime spent: %s;\tTime left: %s\r",
+                fraction * 100.0,
+                timeSpent,
+                timeLeft
+        );
+    }
+
+    private static @NotNull String shardPrefix(@NotNull String pathPrefix, int generation, int shard) {
+        return generation == 0 ? pathPrefix + ".shard" + shard : pathPrefix + ".g" + generation + ".shard" + shard;
+    }
+
+    /**
+     * Drops shards which have no samples of the listed files and renumbers the others.
+     */
+    private static void removeUnreferencedShards(@NotNull String pathPrefix, @NotNull Manifest manifest) {
+        boolean[] referenced = new boolean[manifest.shards.size()];
+        for (ManifestEntry entry : manifest.files) {
+            if (entry.count > 0) referenced[entry.shard] = true;
+        }
+        int[] newIndices = new int[referenced.length];
+        List<ManifestShard> shards = new ArrayList<>();
+        List<ManifestShard> unreferenced = new ArrayList<>();
+        for (int shard = 0; shard < referenced.length; shard++) {
+            newIndices[shard] = shards.size();
+            (referenced[shard] ? shards : unreferenced).add(manifest.shards.get(shard));
+        }
+        for (ManifestEntry entry : manifest.files) {
+            entry.shard = newIndices[entry.shard];
+        }
+        manifest.shards = shards;
+        deleteShards(pathPrefix, manifest, unreferenced);
+    }
+
+    private static void deleteShards(@NotNull String pathPrefix, @NotNull Manifest manifest,
+                                     @NotNull List<ManifestShard> shards) {
+        Path dir = Paths.get(pathPrefix).toAbsolutePath().getParent();
+        String extension = "binary".equals(manifest.format) ? BinarySampleFormat.EXTENSION : ".json.gz";
+        for (ManifestShard shard : shards) {
+            for (int chunk = 0; chunk < shard.chunkSizes.size(); chunk++) {
+                try {
+                    Files.deleteIfExists(dir.resolve(shard.prefix + '.' + chunk + extension));
+                } catch (IOException e) {
+                    log.warn("Cannot delete a chunk of the previous dataset", e);
+                }
+            }
+        }
+    }
+
+    private static @Nullable Manifest readManifest(@NotNull String pathPrefix) {
+        Path file = Paths.get(pathPrefix + ".manifest.json");
+        if (!Files.exists(file)) return null;
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            return new Gson().fromJson(reader, Manifest.class);
+        } catch (IOException | JsonParseException e) {
+            log.warn("Cannot read the manifest of the previous dataset", e);
+            return null;
+        }
+    }
+
+    private static void writeManifest(@NotNull String pathPrefix, @NotNull Manifest manifest) {
+        try (Writer writer = Files.newBufferedWriter(Paths.get(pathPrefix + ".manifest.json"), StandardCharsets.UTF_8)) {
+            new GsonBuilder().setPrettyPrinting().create().toJson(manifest, writer);
+        } catch (IOException e) {
+            throw new Error("Cannot write the manifest file: " + e);
+        }
+    }
+
+    /**
+     * Samples of a file are {@code count} consecutive elements of the shard starting from the element
+     * {@code offset}, elements of the shard are numbered through all its chunks.
+     */
+    public static class ManifestEntry {
+        String path;
+        String hash;
+        int shard;
+        int offset;
+        int count;
+    }
+
+    /**
+     * Chunks are rolled by compressed size, so the shard lists numbers of elements in its chunks.
+     */
+    public static class ManifestShard {
+        String prefix;
+        List<Integer> chunkSizes;
+
+        ManifestShard(String prefix, List<Integer> chunkSizes) {
+            this.prefix = prefix;
+            this.chunkSizes = chunkSizes;
+        }
+    }
+
+    public static class Manifest {
+        String format;
+        Map<String, Integer> versions;
+        int generation;
+        List<ManifestShard> shards = new ArrayList<>();
+        List<ManifestEntry> files = new ArrayList<>();
+    }
+
     public static class SerializableVarData {
         String filename;
         Graph.JsonSerializableGraph ContextGraph;
@@ -91,32 +309,26 @@ public class GraphDatasetExtractor {
         String span;
     }
 
-    private static @NotNull Stream<SerializableVarData> extractFromPsiFile(@NotNull PsiFile file) {
-//        Check: C:/Users/Igor/IdeaProjects/dataset/java-small/intellij-community/platform/analysis-impl/src/com/intellij/codeInspection/ex/InspectionProfileImpl.java
+    /**
+     * Streams samples of the file to the consumer as soon as each class member is mined.
+     */
+    private static void extractFromPsiFile(@NotNull PsiFile file, @NotNull Consumer<SerializableVarData> consumer) {
         try {
-            JavaGraphExtractor graphExtractor = new JavaGraphExtractor(file);
-            return SyntaxTraverser.psiTraverser()
-                    .withRoot(file)
-                    .onRange(new TextRange(0, 64 * 1024)) // first 128 KB of chars
-                    .filter(element -> element instanceof PsiVariable)
-                    .toList()
-                    .stream()
-                    .map(e -> (PsiVariable) e)
-                    .map(v -> getVarData(v, file, graphExtractor))
-                    .filter(Objects::nonNull);
+            new MemberGraphMiner(file, (variable, graph) -> {
+                SerializableVarData varData = getVarData(variable, file, graph);
+                if (varData != null) consumer.accept(varData);
+            }).mine();
         } catch (Exception e) {
             log.error(String.format("Error while extracting from file: %s\n", file.getVirtualFile().getPath()));
             log.error(e);
-            return Stream.empty();
         }
     }
 
-    public static @Nullable SerializableVarData getVarData(@NotNull PsiVariable variable, @NotNull PsiFile file, @NotNull JavaGraphExtractor graphExtractor) {
+    public static @Nullable SerializableVarData getVarData(@NotNull PsiVariable variable, @NotNull PsiFile file, @NotNull Graph<PsiElement> graph) {
         SerializableVarData varData = new SerializableVarData();
-        Graph<PsiElement> graph = graphExtractor.createGraph(variable);
-        if (graph == null) return null;
+        ResolvedIdentifiers resolvedIdentifiers = ResolvedIdentifiers.getInstance(file);
         try {
-            varData.ContextGraph = graph.toJsonSerializableObject(element -> printNode(element, variable));
+            varData.ContextGraph = graph.toJsonSerializableObject(element -> printNode(element, variable, resolvedIdentifiers));
         } catch (IOException e) {
             return null;
         }
@@ -130,9 +342,9 @@ public class GraphDatasetExtractor {
         return varData;
     }
 
-    private static String printNode(@NotNull PsiElement element, @NotNull PsiVariable variable) {
+    private static String printNode(@NotNull PsiElement element, @NotNull PsiVariable variable, @NotNull ResolvedIdentifiers resolvedIdentifiers) {
         if (shouldLex(element)) {
-            return processToken(element, variable);
+            return processToken(element, variable, resolvedIdentifiers);
         }
         String className = element.getClass().getSimpleName();
         return className.substring(3, className.length() - 4);
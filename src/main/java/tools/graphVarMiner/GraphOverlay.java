@@ -0,0 +1,124 @@
+package tools.graphVarMiner;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.IntConsumer;
+
+/**
+ * Copy-on-write view of a frozen {@link Graph}: only added and removed edges are stored,
+ * so making an overlay per variable costs nothing until it is edited. Nodes can't be added.
+ */
+public class GraphOverlay<T> implements GraphView<T> {
+    private static final int NODE_BITS = 28;
+
+    private final Graph<T> myBase;
+    private final Map<Long, IntList> myAddedTargets = new HashMap<>();
+    private final Set<Long> myRemovedEdges = new HashSet<>();
+
+    GraphOverlay(@NotNull Graph<T> base) {
+        myBase = base;
+    }
+
+    @Override
+    public int findNodeId(@NotNull T node) {
+        return myBase.findNodeId(node);
+    }
+
+    @Override
+    public @NotNull T getNodeLabel(int nodeId) {
+        return myBase.getNodeLabel(nodeId);
+    }
+
+    @Override
+    public int getNodeCount() {
+        return myBase.getNodeCount();
+    }
+
+    @Override
+    public int getEdgeTypeCount() {
+        return Math.max(myBase.getEdgeTypeCount(), EdgeTypes.count());
+    }
+
+    public void addEdge(@Nullable T from, @Nullable T to, @NotNull String edgeType, boolean withReversed) {
+        if (from == null || to == null) return;
+        int type = EdgeTypes.id(edgeType);
+        int fromId = nodeId(from);
+        int toId = nodeId(to);
+        addEdge(fromId, toId, type);
+        if (withReversed) addEdge(toId, fromId, EdgeTypes.reverse(type));
+    }
+
+    private void addEdge(int fromId, int toId, int edgeType) {
+        if (myBase.hasEdge(fromId, toId, edgeType)) {
+            myRemovedEdges.remove(edgeKey(fromId, toId, edgeType));
+            return;
+        }
+        IntList targets = myAddedTargets.computeIfAbsent(rowKey(fromId, edgeType), k -> new IntList(2));
+        if (!targets.contains(toId)) targets.add(toId);
+    }
+
+    public void removeEdge(@Nullable T from, @Nullable T to, @NotNull String edgeType, boolean withReversed) {
+        if (from == null || to == null) return;
+        int type = EdgeTypes.id(edgeType);
+        int fromId = findNodeId(from);
+        int toId = findNodeId(to);
+        if (fromId < 0 || toId < 0) return;
+        removeEdge(fromId, toId, type);
+        if (withReversed) removeEdge(toId, fromId, EdgeTypes.reverse(type));
+    }
+
+    private void removeEdge(int fromId, int toId, int edgeType) {
+        IntList targets = myAddedTargets.get(rowKey(fromId, edgeType));
+        if (targets != null && targets.removeValue(toId)) return;
+        if (myBase.hasEdge(fromId, toId, edgeType)) {
+            myRemovedEdges.add(edgeKey(fromId, toId, edgeType));
+        }
+    }
+
+    @Override
+    public void forEachTarget(int fromId, int edgeType, @NotNull IntConsumer consumer) {
+        for (int i = myBase.rowStart(fromId, edgeType), end = myBase.rowEnd(fromId, edgeType); i < end; i++) {
+            int toId = myBase.targetAt(edgeType, i);
+            if (!isRemoved(fromId, toId, edgeType)) consumer.accept(toId);
+        }
+        IntList added = myAddedTargets.get(rowKey(fromId, edgeType));
+        if (added == null) return;
+        for (int i = 0; i < added.size(); i++) {
+            consumer.accept(added.get(i));
+        }
+    }
+
+    @Override
+    public int getFirstTarget(int fromId, int edgeType) {
+        for (int i = myBase.rowStart(fromId, edgeType), end = myBase.rowEnd(fromId, edgeType); i < end; i++) {
+            int toId = myBase.targetAt(edgeType, i);
+            if (!isRemoved(fromId, toId, edgeType)) return toId;
+        }
+        IntList added = myAddedTargets.get(rowKey(fromId, edgeType));
+        return added == null || added.isEmpty() ? -1 : added.get(0);
+    }
+
+    private boolean isRemoved(int fromId, int toId, int edgeType) {
+        return !myRemovedEdges.isEmpty() && myRemovedEdges.contains(edgeKey(fromId, toId, edgeType));
+    }
+
+    private int nodeId(@NotNull T node) {
+        int id = findNodeId(node);
+        if (id < 0) throw new IllegalArgumentException("Overlay can't add nodes to the base graph");
+        return id;
+    }
+
+    private static long rowKey(int fromId, int edgeType) {
+        return ((long) edgeType << 32) | fromId;
+    }
+
+    private static long edgeKey(int fromId, int toId, int edgeType) {
+        assert fromId < (1 << NODE_BITS) && toId < (1 << NODE_BITS);
+        return ((long) edgeType << (2 * NODE_BITS)) | ((long) fromId << NODE_BITS) | toId;
+    }
+}
@@ -0,0 +1,44 @@
+package tools.graphVarMiner;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.function.IntConsumer;
+
+/**
+ * Read access to a graph whose nodes are numbered from 0 and whose edge types are {@link EdgeTypes} ids.
+ */
+public interface GraphView<T> {
+    /**
+     * @return id of the node or -1 if the graph doesn't contain it.
+     */
+    int findNodeId(@NotNull T node);
+
+    @NotNull T getNodeLabel(int nodeId);
+
+    int getNodeCount();
+
+    /**
+     * @return upper bound of edge type ids present in the graph.
+     */
+    int getEdgeTypeCount();
+
+    void forEachTarget(int fromId, int edgeType, @NotNull IntConsumer consumer);
+
+    /**
+     * @return the first target of an edge of the given type or -1 if there are none.
+     */
+    int getFirstTarget(int fromId, int edgeType);
+
+    default boolean containsNode(@NotNull T node) {
+        return findNodeId(node) >= 0;
+    }
+
+    default @Nullable T getFirstChild(@Nullable T node, @NotNull String edgeType) {
+        if (node == null) return null;
+        int nodeId = findNodeId(node);
+        if (nodeId < 0) return null;
+        int childId = getFirstTarget(nodeId, EdgeTypes.id(edgeType));
+        return childId < 0 ? null : getNodeLabel(childId);
+    }
+}
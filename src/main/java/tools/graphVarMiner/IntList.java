@@ -0,0 +1,66 @@
+package tools.graphVarMiner;
+
+import java.util.Arrays;
+
+/**
+ * Growable array of primitive ints.
+ */
+public class IntList {
+    private int[] myData;
+    private int mySize;
+
+    public IntList() {
+        this(8);
+    }
+
+    public IntList(int capacity) {
+        myData = new int[Math.max(1, capacity)];
+    }
+
+    public void add(int value) {
+        if (mySize == myData.length) {
+            myData = Arrays.copyOf(myData, mySize * 2);
+        }
+        myData[mySize++] = value;
+    }
+
+    public int get(int index) {
+        if (index >= mySize) throw new IndexOutOfBoundsException(index + " >= " + mySize);
+        return myData[index];
+    }
+
+    public boolean contains(int value) {
+        return indexOf(value) >= 0;
+    }
+
+    public int indexOf(int value) {
+        for (int i = 0; i < mySize; i++) {
+            if (myData[i] == value) return i;
+        }
+        return -1;
+    }
+
+    public boolean removeValue(int value) {
+        int index = indexOf(value);
+        if (index < 0) return false;
+        System.arraycopy(myData, index + 1, myData, index, mySize - index - 1);
+        mySize--;
+        return true;
+    }
+
+    public int size() {
+        return mySize;
+    }
+
+    public boolean isEmpty() {
+        return mySize == 0;
+    }
+
+    public void clear() {
+        mySize = 0;
+    }
+
+    public int[] toArray() {
+        return Arrays.copyOf(myData, mySize);
+    }
+}
@@ -1,31 +1,49 @@
 package tools.graphVarMiner;
 
-import com.intellij.openapi.util.TextRange;
 import com.intellij.psi.*;
+import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.jetbrains.id.names.suggesting.utils.PsiUtils;
+import org.jetbrains.id.names.suggesting.utils.ResolvedIdentifiers;
 
 import java.util.HashMap;
 import java.util.Map;
-import java.util.stream.Stream;
-
-import static org.jetbrains.id.names.suggesting.utils.PsiUtils.*;
 
+/**
+ * Builds the code graph of a scope, i.e. of a whole file or of a single class member,
+ * and extracts subgraphs of variables from it. Variables declared outside of the scope
+ * are linked only by the data-flow edges to their declarations.
+ */
 public class JavaGraphExtractor {
+    /**
+     * Version of the token edges and of the subgraph extraction, must be increased whenever they change.
+     */
+    public static final int VERSION = 1;
+
     public final static String NEXT_TOKEN = "NextToken";
     public final static String LAST_LEXICAL_USE = "LastLexicalUse";
+    private final static int SUBGRAPH_DEPTH = 8;
 
     public final Graph<PsiElement> codeGraph = new Graph<>();
     public final Map<String, PsiElement> lastLexicalUsages = new HashMap<>();
     public final PsiFile file;
+    private final ResolvedIdentifiers resolvedIdentifiers;
+    private final Map<Integer, IntList> occurrencesByDeclaration = new HashMap<>();
+    private SubgraphExtractor<PsiElement> subgraphExtractor;
 
     public JavaGraphExtractor(PsiFile file) {
+        this(file, file);
+    }
+
+    public JavaGraphExtractor(PsiFile file, PsiElement scope) {
         this.file = file;
+        // Graphs of members of a file share its table, which MemberGraphMiner resolves as a whole
+        this.resolvedIdentifiers = scope == file ?
+                ResolvedIdentifiers.getInstance(file).resolveAll() : ResolvedIdentifiers.getInstance(file);
 //         Add token-level info
         PsiElement lastToken = null;
         for (PsiElement token : SyntaxTraverser.psiTraverser()
-                .withRoot(file)
-                .onRange(new TextRange(0, 64 * 1024)) // first 128 KB of chars
+                .withRoot(scope)
                 .forceIgnore(node -> node instanceof PsiComment)
                 .filter(PsiUtils::shouldLex)) {
             if (lastToken != null) {
@@ -33,55 +51,50 @@ public class JavaGraphExtractor {
             }
             lastToken = token;
 
-            if (isVariable(token)) {
+            int declarationId = resolvedIdentifiers.getDeclarationId(token);
+            if (declarationId != ResolvedIdentifiers.NO_DECLARATION) {
                 String text = token.getText();
                 if (lastLexicalUsages.containsKey(text)) {
                     codeGraph.addEdge(token, lastLexicalUsages.get(text), LAST_LEXICAL_USE, true);
                 }
                 lastLexicalUsages.put(text, token);
+                occurrencesByDeclaration.computeIfAbsent(declarationId, id -> new IntList(4))
+                        .add(codeGraph.getNodeId(token));
             }
         }
 
 //        Now add AST-level info
-        file.accept(new AstGraphCreator(codeGraph));
+        scope.accept(new AstGraphCreator(codeGraph));
 //        Now add data-flow info
-        file.accept(new DataflowGraphExtractor(codeGraph));
+        scope.accept(new DataflowGraphExtractor(codeGraph, resolvedIdentifiers, scope));
+        codeGraph.freeze();
     }
 
-    public @Nullable Graph<PsiElement> createGraph(PsiVariable variable) {
-        PsiIdentifier identifier = variable.getNameIdentifier();
-        if (identifier == null) return null;
-        String name = identifier.getText();
-        PsiElement currentNode = lastLexicalUsages.get(name);
-        if (currentNode == null) return null;
+    /**
+     * @return subgraph of the occurrences of the variable in the scope or null if it doesn't occur there.
+     */
+    public @Nullable Graph<PsiElement> createGraph(@NotNull PsiVariable variable) {
+        Graph<PsiElement> subgraph = new Graph<>();
+        return appendGraph(variable, subgraph) ? subgraph : null;
+    }
 
-        Graph<PsiElement> graph = codeGraph.shallowCopy(LAST_LEXICAL_USE);
-        PsiElement lastRemoved = null;
-        PsiElement lastVarRemoved = null;
-        PsiElement previousNode = graph.getFirstChild(currentNode, LAST_LEXICAL_USE);
-        while (previousNode != null) {
-            boolean isPrevVar = isVariableOrReference(variable, previousNode);
-            boolean isCurVar = isVariableOrReference(variable, currentNode);
-            if (isPrevVar && !isCurVar) {
-                graph.removeEdge(currentNode, previousNode, LAST_LEXICAL_USE, true);
-                graph.addEdge(lastVarRemoved, previousNode, LAST_LEXICAL_USE, true);
-                lastRemoved = currentNode;
-            } else if (!isPrevVar && isCurVar) {
-                graph.removeEdge(currentNode, previousNode, LAST_LEXICAL_USE, true);
-                graph.addEdge(lastRemoved, previousNode, LAST_LEXICAL_USE, true);
-                lastVarRemoved = currentNode;
-            }
-            currentNode = previousNode;
-            previousNode = graph.getFirstChild(currentNode, LAST_LEXICAL_USE);
-        }
-        return createSubgraph(graph, variable);
+    /**
+     * Adds the subgraph of the occurrences of the variable in the scope to the given graph,
+     * which allows to join subgraphs of a field from several members.
+     *
+     * @return whether the variable occurs in the scope.
+     */
+    public boolean appendGraph(@NotNull PsiVariable variable, @NotNull Graph<PsiElement> subgraph) {
+        IntList occurrences = occurrencesByDeclaration.get(resolvedIdentifiers.getVariableId(variable));
+        if (occurrences == null) return false;
+        getSubgraphExtractor().extract(occurrences.toArray(), SUBGRAPH_DEPTH, subgraph);
+        return true;
     }
 
-    private Graph<PsiElement> createSubgraph(Graph<PsiElement> graph, PsiVariable variable) {
-        Graph<PsiElement> subgraph = new Graph<>();
-        Stream.concat(Stream.of(variable), findReferences(variable, this.file))
-                .map(PsiUtils::getIdentifier)
-                .forEach(identifier -> subgraph.copyEdgesFromNode(identifier, graph, 8));
-        return subgraph;
+    private SubgraphExtractor<PsiElement> getSubgraphExtractor() {
+        if (subgraphExtractor == null) {
+            subgraphExtractor = new SubgraphExtractor<>(codeGraph, LAST_LEXICAL_USE);
+        }
+        return subgraphExtractor;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,145 @@
+package tools.graphVarMiner;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.psi.*;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.id.names.suggesting.utils.ResolvedIdentifiers;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+/**
+ * Mines variable graphs of a file member by member: a code graph is built for every method, field and
+ * initializer of a named class, subgraphs of the variables declared in the member are passed to the consumer,
+ * and the member graph is released. So memory depends on the size of the largest member, not of the file.
+ * <p>
+ * Subgraphs of fields are joined from the members which use them, at most {@link #MAX_FIELD_MEMBERS} of them,
+ * and are passed to the consumer when the top-level class is mined.
+ */
+public class MemberGraphMiner {
+    /**
+     * Version of the choice of members and of joining field subgraphs, must be increased whenever they change.
+     */
+    public static final int VERSION = 1;
+
+    public static final int MAX_MEMBER_LENGTH = 64 * 1024;
+    public static final int MAX_FIELD_MEMBERS = 16;
+    private static final Logger log = Logger.getInstance(MemberGraphMiner.class);
+
+    private final PsiFile myFile;
+    private final ResolvedIdentifiers myResolvedIdentifiers;
+    private final BiConsumer<PsiVariable, Graph<PsiElement>> myConsumer;
+    private final Map<PsiField, Graph<PsiElement>> myFieldGraphs = new LinkedHashMap<>();
+    private final Map<PsiField, Integer> myFieldMembers = new LinkedHashMap<>();
+    private final Set<PsiField> myCompletedFields = new HashSet<>();
+
+    public MemberGraphMiner(@NotNull PsiFile file, @NotNull BiConsumer<PsiVariable, Graph<PsiElement>> consumer) {
+        myFile = file;
+        myResolvedIdentifiers = ResolvedIdentifiers.getInstance(file);
+        myConsumer = consumer;
+    }
+
+    public void mine() {
+        if (!(myFile instanceof PsiClassOwner)) return;
+        myResolvedIdentifiers.resolveAll();
+        for (PsiClass aClass : ((PsiClassOwner) myFile).getClasses()) {
+            mineClass(aClass);
+            flushFields();
+        }
+    }
+
+    private void mineClass(@NotNull PsiClass aClass) {
+        for (PsiElement child : aClass.getChildren()) {
+            if (child instanceof PsiClass) {
+                mineClass((PsiClass) child);
+            } else if (child instanceof PsiMethod || child instanceof PsiField || child instanceof PsiClassInitializer) {
+                mineMember((PsiMember) child);
+            }
+        }
+    }
+
+    private void mineMember(@NotNull PsiMember member) {
+        if (member.getTextLength() > MAX_MEMBER_LENGTH) {
+            log.info(String.format("Skip member at offset %d of %s with %d chars", member.getTextOffset(),
+                    myFile.getVirtualFile().getPath(), member.getTextLength()));
+            return;
+        }
+        try {
+            JavaGraphExtractor extractor = new JavaGraphExtractor(myFile, member);
+            for (PsiVariable variable : SyntaxTraverser.psiTraverser(member).filter(PsiVariable.class)) {
+                if (isClassField(variable)) continue;
+                Graph<PsiElement> graph = extractor.createGraph(variable);
+                if (graph != null) myConsumer.accept(variable, graph);
+            }
+            for (PsiField field : findUsedFields(member)) {
+                appendFieldGraph(field, extractor);
+            }
+        } catch (ProcessCanceledException e) {
+            throw e;
+        } catch (Exception e) {
+            log.error(String.format("Error while extracting from member at offset %d of %s", member.getTextOffset(),
+                    myFile.getVirtualFile().getPath()), e);
+        }
+    }
+
+    /**
+     * @return fields of named classes of the file which are declared or used in the member.
+     */
+    private @NotNull Set<PsiField> findUsedFields(@NotNull PsiMember member) {
+        Set<PsiField> fields = new HashSet<>();
+        if (member instanceof PsiField) {
+            fields.add((PsiField) member);
+        }
+        for (PsiIdentifier identifier : SyntaxTraverser.psiTraverser(member).filter(PsiIdentifier.class)) {
+            PsiVariable variable = myResolvedIdentifiers.getDeclaration(identifier);
+            if (variable != null && isClassField(variable) && variable.getContainingFile() == myFile) {
+                fields.add((PsiField) variable);
+            }
+        }
+        return fields;
+    }
+
+    private void appendFieldGraph(@NotNull PsiField field, @NotNull JavaGraphExtractor extractor) {
+        if (myCompletedFields.contains(field)) return;
+        Graph<PsiElement> graph = myFieldGraphs.computeIfAbsent(field, f -> new Graph<>());
+        if (!extractor.appendGraph(field, graph)) return;
+        int members = myFieldMembers.merge(field, 1, Integer::sum);
+        if (members >= MAX_FIELD_MEMBERS) {
+            myCompletedFields.add(field);
+            emitField(field);
+        }
+    }
+
+    private void flushFields() {
+        for (PsiField field : myFieldGraphs.keySet().toArray(PsiField.EMPTY_ARRAY)) {
+            emitField(field);
+        }
+        myCompletedFields.clear();
+    }
+
+    private void emitField(@NotNull PsiField field) {
+        Graph<PsiElement> graph = myFieldGraphs.remove(field);
+        Integer members = myFieldMembers.remove(field);
+        if (graph != null && members != null) {
+            myConsumer.accept(field, graph);
+        }
+    }
+
+    /**
+     * @return whether the variable is a field of a class which is mined member by member.
+     */
+    private static boolean isClassField(@NotNull PsiVariable variable) {
+        if (!(variable instanceof PsiField)) return false;
+        PsiClass aClass = ((PsiField) variable).getContainingClass();
+        while (aClass != null) {
+            PsiElement parent = aClass.getParent();
+            if (parent instanceof PsiFile) return true;
+            aClass = parent instanceof PsiClass ? (PsiClass) parent : null;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,126 @@
+package tools.graphVarMiner;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+
+/**
+ * Copies the neighbourhood of a variable out of a frozen code graph by a breadth-first search,
+ * so the cost of a variable depends on the size of its neighbourhood and not on the size of the file.
+ * <p>
+ * {@code LastLexicalUse} edges of the code graph link every occurrence of a name to the previous one.
+ * For the extracted variable the chain is split in two as if it was rewired: occurrences of the variable
+ * are linked to each other and all other occurrences of the same name are linked to each other.
+ * The rewiring is computed on the fly while traversing, the code graph is never modified.
+ * <p>
+ * Not thread-safe: the visited bitset and the queue are reused between variables.
+ */
+class SubgraphExtractor<T> {
+    private final Graph<T> myGraph;
+    private final int myLexicalUse;
+    private final int myReversedLexicalUse;
+    private final long[] myVisited;
+    private final IntList myQueue = new IntList();
+    private int[] myVariableNodes = new int[0];
+    private int[] mySortedVariableNodes = new int[0];
+    private int[] myChainPositions = new int[0];
+
+    SubgraphExtractor(@NotNull Graph<T> graph, @NotNull String lexicalUseEdgeType) {
+        graph.freeze();
+        myGraph = graph;
+        myLexicalUse = EdgeTypes.id(lexicalUseEdgeType);
+        myReversedLexicalUse = EdgeTypes.reverse(myLexicalUse);
+        myVisited = new long[(graph.getNodeCount() + 63) >>> 6];
+    }
+
+    /**
+     * @param variableNodes occurrences of the variable in the order of their appearance in the file,
+     *                      they are the starting points of the search.
+     * @param depth         maximal distance from an occurrence to the nodes whose edges are copied.
+     * @param subgraph      graph to copy the edges to, it must not be frozen.
+     */
+    void extract(@NotNull int[] variableNodes, int depth, @NotNull Graph<T> subgraph) {
+        setVariableNodes(variableNodes);
+        myQueue.clear();
+        for (int node : variableNodes) {
+            visit(node);
+        }
+        int levelStart = 0;
+        for (int level = 0; level < depth && levelStart < myQueue.size(); level++) {
+            int levelEnd = myQueue.size();
+            for (int i = levelStart; i < levelEnd; i++) {
+                copyEdges(myQueue.get(i), subgraph);
+            }
+            levelStart = levelEnd;
+        }
+        for (int i = 0; i < myQueue.size(); i++) {
+            int node = myQueue.get(i);
+            myVisited[node >>> 6] &= ~(1L << node);
+        }
+    }
+
+    private void copyEdges(int fromId, @NotNull Graph<T> subgraph) {
+        T from = myGraph.getNodeLabel(fromId);
+        for (int type = 0; type < myGraph.getEdgeTypeCount(); type++) {
+            if (type == myLexicalUse || type == myReversedLexicalUse) {
+                int toId = lexicalUseTarget(fromId, type);
+                if (toId >= 0) copyEdge(from, toId, type, subgraph);
+                continue;
+            }
+            for (int i = myGraph.rowStart(fromId, type), end = myGraph.rowEnd(fromId, type); i < end; i++) {
+                copyEdge(from, myGraph.targetAt(type, i), type, subgraph);
+            }
+        }
+    }
+
+    private void copyEdge(@NotNull T from, int toId, int edgeType, @NotNull Graph<T> subgraph) {
+        subgraph.addEdge(from, myGraph.getNodeLabel(toId), edgeType, true);
+        visit(toId);
+    }
+
+    private void visit(int node) {
+        long bit = 1L << node;
+        if ((myVisited[node >>> 6] & bit) != 0) return;
+        myVisited[node >>> 6] |= bit;
+        myQueue.add(node);
+    }
+
+    /**
+     * @param type {@code LastLexicalUse} to find the previous occurrence or its reversed type to find the next one.
+     * @return the neighbour of the node in the rewired chain or -1.
+     */
+    private int lexicalUseTarget(int nodeId, int type) {
+        int position = chainPosition(nodeId);
+        if (position >= 0) {
+            position += type == myLexicalUse ? -1 : 1;
+            return position >= 0 && position < myVariableNodes.length ? myVariableNodes[position] : -1;
+        }
+        // Skip occurrences of the variable, there are at most as many of them as its usages.
+        int target = myGraph.getFirstTarget(nodeId, type);
+        while (target >= 0 && chainPosition(target) >= 0) {
+            target = myGraph.getFirstTarget(target, type);
+        }
+        return target;
+    }
+
+    private int chainPosition(int nodeId) {
+        int index = Arrays.binarySearch(mySortedVariableNodes, nodeId);
+        return index < 0 ? -1 : myChainPositions[index];
+    }
+
+    private void setVariableNodes(@NotNull int[] variableNodes) {
+        myVariableNodes = variableNodes;
+        int count = variableNodes.length;
+        long[] packed = new long[count];
+        for (int i = 0; i < count; i++) {
+            packed[i] = ((long) variableNodes[i] << 32) | i;
+        }
+        Arrays.sort(packed);
+        mySortedVariableNodes = new int[count];
+        myChainPositions = new int[count];
+        for (int i = 0; i < count; i++) {
+            mySortedVariableNodes[i] = (int) (packed[i] >>> 32);
+            myChainPositions[i] = (int) packed[i];
+        }
+    }
+}
@@ -1,82 +1,94 @@
 package tools.graphVarMiner;
 
-import com.google.common.collect.HashMultiset;
-import com.google.common.collect.Multiset;
-import com.intellij.psi.PsiIdentifier;
-import com.intellij.psi.PsiVariable;
+import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.BitSet;
 import java.util.Collection;
-import java.util.IdentityHashMap;
-
-import static tools.graphVarMiner.MapUtils.*;
-
+import java.util.function.IntConsumer;
+
+/**
+ * Last uses and last writes of variables at some point of the program.
+ * Both are bitsets over identifiers numbered by {@link DataflowGraphExtractor};
+ * a use or a write of a variable kills all other occurrences of the same variable and generates itself.
+ * An empty state stands for unreachable code, so merging with it changes nothing.
+ */
 public class VarState {
-    public IdentityHashMap<PsiVariable, Multiset<PsiIdentifier>> lastUse = new IdentityHashMap<>();
-    public IdentityHashMap<PsiVariable, Multiset<PsiIdentifier>> lastWrite = new IdentityHashMap<>();
+    private final BitSet myLastUse;
+    private final BitSet myLastWrite;
+
+    public VarState() {
+        this(new BitSet(), new BitSet());
+    }
 
-    public void distinct() {
-        lastUse.replaceAll((k, v) -> HashMultiset.create(v.elementSet()));
-        lastWrite.replaceAll((k, v) -> HashMultiset.create(v.elementSet()));
+    private VarState(@NotNull BitSet lastUse, @NotNull BitSet lastWrite) {
+        myLastUse = lastUse;
+        myLastWrite = lastWrite;
     }
 
-    public VarState copy() {
-        VarState clone = new VarState();
-        clone.lastUse = copyMap(this.lastUse);
-        clone.lastWrite = copyMap(this.lastWrite);
-        return clone;
+    public @NotNull VarState copy() {
+        return new VarState((BitSet) myLastUse.clone(), (BitSet) myLastWrite.clone());
     }
 
-    public static VarState of(Collection<VarState> states) {
-        VarState res = new VarState();
-        res.mergeWith(states, true);
-        return res;
+    public void mergeWith(@Nullable VarState other) {
+        if (other == null) return;
+        myLastUse.or(other.myLastUse);
+        myLastWrite.or(other.myLastWrite);
     }
 
-    public void mergeWith(@Nullable Collection<VarState> varStates, boolean distinct) {
-        if (varStates == null) return;
-        varStates.forEach(x -> this.mergeWith(x, false));
-        if (distinct) distinct();
+    public void mergeWith(@Nullable Collection<VarState> others) {
+        if (others == null) return;
+        others.forEach(this::mergeWith);
     }
 
-    public void mergeWith(@Nullable Collection<VarState> varStates) {
-        this.mergeWith(varStates, true);
+    public void use(int identifierId, @NotNull IntList variableOccurrences) {
+        update(myLastUse, identifierId, variableOccurrences);
     }
 
-    public void mergeWith(VarState otherState, boolean distinct) {
-        mergeMapIntoFirst(this.lastUse, otherState.lastUse);
-        mergeMapIntoFirst(this.lastWrite, otherState.lastWrite);
-        if (distinct) distinct();
+    public void write(int identifierId, @NotNull IntList variableOccurrences) {
+        update(myLastWrite, identifierId, variableOccurrences);
     }
 
-    public void mergeWith(VarState otherState) {
-        this.mergeWith(otherState, true);
+    private static void update(@NotNull BitSet state, int identifierId, @NotNull IntList variableOccurrences) {
+        for (int i = 0; i < variableOccurrences.size(); i++) {
+            state.clear(variableOccurrences.get(i));
+        }
+        state.set(identifierId);
     }
 
-    public void init(PsiVariable variable) {
-        lastUse.putIfAbsent(variable, HashMultiset.create());
-        lastWrite.putIfAbsent(variable, HashMultiset.create());
+    public void forEachLastUse(@NotNull IntList variableOccurrences, @NotNull IntConsumer consumer) {
+        forEach(myLastUse, variableOccurrences, consumer);
     }
 
-    public Multiset<PsiIdentifier> getLastUse(PsiVariable variable) {
-        return lastUse.get(variable);
+    public void forEachLastWrite(@NotNull IntList variableOccurrences, @NotNull IntConsumer consumer) {
+        forEach(myLastWrite, variableOccurrences, consumer);
     }
 
-    public Multiset<PsiIdentifier> getLastWrite(PsiVariable variable) {
-        return lastWrite.get(variable);
+    private static void forEach(@NotNull BitSet state, @NotNull IntList variableOccurrences, @NotNull IntConsumer consumer) {
+        for (int i = 0; i < variableOccurrences.size(); i++) {
+            int identifierId = variableOccurrences.get(i);
+            if (state.get(identifierId)) consumer.accept(identifierId);
+        }
     }
 
-    public boolean contains(PsiVariable variable) {
-        return lastUse.containsKey(variable);
+    /**
+     * Marks the rest of the code as unreachable, e.g. after {@code break}.
+     */
+    public void clear() {
+        myLastUse.clear();
+        myLastWrite.clear();
     }
 
-    public void subtract(@Nullable Collection<VarState> subtract) {
-        if (subtract == null) return;
-        subtract.forEach(this::subtract);
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof VarState)) return false;
+        VarState other = (VarState) o;
+        return myLastUse.equals(other.myLastUse) && myLastWrite.equals(other.myLastWrite);
     }
 
-    private void subtract(VarState other) {
-        subtractMapFromFirst(this.lastUse, other.lastUse);
-        subtractMapFromFirst(this.lastWrite, other.lastWrite);
+    @Override
+    public int hashCode() {
+        return 31 * myLastUse.hashCode() + myLastWrite.hashCode();
     }
 }
@@ -13,15 +13,21 @@ import com.intellij.psi.search.FileTypeIndex;
 import com.intellij.psi.search.GlobalSearchScope;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.jetbrains.id.names.suggesting.utils.ContentHashUtils;
 import org.jetbrains.id.names.suggesting.utils.PsiUtils;
+import org.jetbrains.id.names.suggesting.utils.ResolvedIdentifiers;
 
-import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -35,6 +41,10 @@ public class DatasetExtractor {
     public static final String TOKEN_DELIMITER = "\u2581";
     public static int NGramLengthBeforeUsage = 20;
     public static int NGramLengthAfterUsage = 20;
+    /**
+     * Must be increased whenever records change, datasets built by another version are parsed again.
+     */
+    public static final int EXTRACTOR_VERSION = 1;
     private static final Path datasetDir = Paths.get(PathManager.getSystemPath(), "dataset");
 
     public static void build(@NotNull Project project, @Nullable Path saveDir) {
@@ -46,21 +56,133 @@ public class DatasetExtractor {
     }
 
     public static void build(@NotNull Project project, @Nullable Path saveDir, @Nullable ProgressIndicator progressIndicator) {
+        build(project, saveDir, progressIndicator, false);
+    }
+
+    /**
+     * Writes a record of every file to {@code <project>_dataset.jsonl} as soon as the file is parsed.
+     * Parsed files are checkpointed in {@code <project>_dataset.checkpoint}, so an interrupted build
+     * resumes from the first file which is not checkpointed.
+     * <p>
+     * A completed build leaves {@code <project>_dataset.manifest.json} with content hashes of the files.
+     * If it was written by the same {@link #EXTRACTOR_VERSION}, the next build parses only added and changed files
+     * and copies records of the others from the previous dataset, which is kept as {@code .previous} until the build
+     * is completed.
+     *
+     * @param tokenIds whether to write records to {@code <project>_dataset.ids} in the layout of {@link EncodedRecords},
+     *                 with tokens replaced by their ids in {@code vocabulary.jsonl} shared by all projects of the dataset.
+     */
+    public static void build(@NotNull Project project, @Nullable Path saveDir, @Nullable ProgressIndicator progressIndicator,
+                             boolean tokenIds) {
         Collection<VirtualFile> files = FileTypeIndex.getFiles(JavaFileType.INSTANCE,
                 GlobalSearchScope.projectScope(project));
-        HashMap<String, List<VariableFeatures>> dataset = new HashMap<>();
-        HashMap<String, Object> fileStats = new HashMap<>();
-        int progress = 0;
-        final int total = files.size();
+        Path dir = saveDir == null ? datasetDir : saveDir;
+        String name = project.getName() + (tokenIds ? "_dataset.ids" : "_dataset");
+        Path datasetFile = dir.resolve(tokenIds ? name : name + ".jsonl");
+        Path checkpointFile = dir.resolve(name + ".checkpoint");
+        Path manifestFile = dir.resolve(name + ".manifest.json");
+        Path previousFile = datasetFile.resolveSibling(datasetFile.getFileName() + ".previous");
         Instant start = Instant.now();
         @NotNull PsiManager psiManager = PsiManager.getInstance(project);
         System.out.printf("Number of files to parse: %s\n", files.size());
-        for (VirtualFile file : files) {
-            @Nullable PsiFile psiFile = psiManager.findFile(file);
-            if (psiFile != null) {
+        try {
+            Files.createDirectories(dir);
+            Map<String, DatasetManifest.Entry> previous = startIncrementalBuild(datasetFile, checkpointFile,
+                    manifestFile, previousFile);
+            build(files, psiManager, dir, datasetFile, checkpointFile, previousFile, previous, tokenIds, start,
+                    progressIndicator).write(manifestFile);
+            Files.delete(checkpointFile);
+            Files.deleteIfExists(previousFile);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        Instant end = Instant.now();
+        Duration timeSpent = Duration.between(start, end);
+        long minutes = timeSpent.toMinutes();
+        int seconds = (int) (timeSpent.toMillis() / 1000. - 60. * minutes);
+        System.out.printf("Done in %d min. %d s.\n",
+                minutes, seconds);
+    }
+
+    /**
+     * @return records of the previous dataset which may be copied, they are empty if it was built by another version.
+     */
+    private static @NotNull Map<String, DatasetManifest.Entry> startIncrementalBuild(
+            @NotNull Path datasetFile, @NotNull Path checkpointFile, @NotNull Path manifestFile, @NotNull Path previousFile)
+            throws IOException {
+        boolean interrupted = Files.exists(checkpointFile);
+        if (!interrupted && Files.exists(datasetFile)) {
+            Files.move(datasetFile, previousFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+        DatasetManifest manifest = DatasetManifest.read(manifestFile);
+        if (manifest == null || manifest.version != EXTRACTOR_VERSION || !Files.exists(previousFile)) {
+            return Collections.emptyMap();
+        }
+        return manifest.byPath();
+    }
+
+    private static @NotNull DatasetManifest build(@NotNull Collection<VirtualFile> files,
+                                                  @NotNull PsiManager psiManager,
+                                                  @NotNull Path dir,
+                                                  @NotNull Path datasetFile,
+                                                  @NotNull Path checkpointFile,
+                                                  @NotNull Path previousFile,
+                                                  @NotNull Map<String, DatasetManifest.Entry> previous,
+                                                  boolean tokenIds,
+                                                  @NotNull Instant start,
+                                                  @Nullable ProgressIndicator progressIndicator) throws IOException {
+        final int total = files.size();
+        ObjectMapper mapper = new ObjectMapper();
+        try (Vocabulary vocabulary = tokenIds ? new Vocabulary(dir.resolve("vocabulary.jsonl")) : null;
+             ExtractionCheckpoint checkpoint = new ExtractionCheckpoint(datasetFile, checkpointFile);
+             FileOutputStream output = new FileOutputStream(datasetFile.toFile(), true);
+             FileChannel previousRecords = previous.isEmpty() ? null : FileChannel.open(previousFile)) {
+            Function<List<String>, Object> ngramEncoder = vocabulary == null
+                    ? tokens -> String.join(TOKEN_DELIMITER, tokens)
+                    : vocabulary::getIds;
+            long outputLength = checkpoint.getOutputLength();
+            int progress = checkpoint.getCompletedCount();
+            int copied = 0;
+            if (progress > 0) {
+                System.out.printf("Resuming after %d parsed files\n", progress);
+            }
+            for (VirtualFile file : files) {
                 @NotNull String filePath = file.getPath();
-                dataset.put(filePath, DatasetExtractor.parsePsiFile(psiFile));
-                fileStats.put(filePath, psiFile.getTextLength());
+                if (checkpoint.isCompleted(filePath)) continue;
+                String hash = ContentHashUtils.hash(file);
+                DatasetManifest.Entry previousEntry = previous.get(filePath);
+                if (previousRecords != null && previousEntry != null && hash.equals(previousEntry.hash)) {
+                    long copiedBytes = 0;
+                    while (copiedBytes < previousEntry.length) {
+                        copiedBytes += previousRecords.transferTo(previousEntry.offset + copiedBytes,
+                                previousEntry.length - copiedBytes, output.getChannel());
+                    }
+                    outputLength += previousEntry.length;
+                    copied++;
+                } else {
+                    @Nullable PsiFile psiFile = psiManager.findFile(file);
+                    if (psiFile == null) {
+                        System.out.println("PSI isn't found");
+                        continue;
+                    }
+                    FileRecord record = new FileRecord(filePath, psiFile.getTextLength(),
+                            DatasetExtractor.parsePsiFile(psiFile, ngramEncoder));
+                    byte[] bytes;
+                    if (vocabulary == null) {
+                        bytes = mapper.writeValueAsBytes(record);
+                        output.write(bytes);
+                        output.write('\n');
+                        outputLength += bytes.length + 1;
+                    } else {
+                        bytes = EncodedRecords.encode(record, vocabulary);
+                        output.write(bytes);
+                        outputLength += bytes.length;
+                        vocabulary.flush();
+                    }
+                }
+                output.flush();
+                checkpoint.complete(filePath, hash, outputLength);
                 double fraction = ++progress / (double) total;
                 if (total < 100 || progress % (total / 100) == 0) {
                     Duration timeSpent = Duration.between(start, Instant.now());
@@ -77,20 +199,16 @@ public class DatasetExtractor {
                     progressIndicator.setText2(file.getPath());
                     progressIndicator.setFraction(progress / (double) total);
                 }
-            } else {
-                System.out.println("PSI isn't found");
             }
+            if (copied > 0) {
+                System.out.printf("Records of %d unchanged files are copied from the previous dataset\n", copied);
+            }
+            return checkpoint.toManifest(EXTRACTOR_VERSION);
         }
-        save(saveDir == null ? datasetDir : saveDir, project, dataset, fileStats);
-        Instant end = Instant.now();
-        Duration timeSpent = Duration.between(start, end);
-        long minutes = timeSpent.toMinutes();
-        int seconds = (int) (timeSpent.toMillis() / 1000. - 60. * minutes);
-        System.out.printf("Done in %d min. %d s.\n",
-                minutes, seconds);
     }
 
-    private static List<VariableFeatures> parsePsiFile(@NotNull PsiFile file) {
+    private static List<VariableFeatures> parsePsiFile(@NotNull PsiFile file, @NotNull Function<List<String>, Object> ngramEncoder) {
+        ResolvedIdentifiers.getInstance(file).resolveAll();
         return SyntaxTraverser.psiTraverser()
                 .withRoot(file)
                 .onRange(new TextRange(0, 64 * 1024)) // first 128 KB of chars
@@ -98,23 +216,33 @@ public class DatasetExtractor {
                 .toList()
                 .stream()
                 .map(e -> (PsiVariable) e)
-                .map(v -> getVariableFeatures(v, file))
+                .map(v -> getVariableFeatures(v, file, ngramEncoder))
                 .collect(Collectors.toList());
     }
 
     public static VariableFeatures getVariableFeatures(PsiVariable variable, PsiFile file) {
+        return getVariableFeatures(variable, file, tokens -> String.join(TOKEN_DELIMITER, tokens));
+    }
+
+    /**
+     * @param ngramEncoder converts tokens around a usage to its n-gram, e.g. joins them or replaces them by ids.
+     */
+    public static VariableFeatures getVariableFeatures(PsiVariable variable, PsiFile file,
+                                                       Function<List<String>, Object> ngramEncoder) {
         Stream<PsiReference> elementUsages = findReferences(variable, file);
         return new VariableFeatures(variable,
                 Stream.concat(Stream.of(variable), elementUsages)
                         .map(PsiUtils::getIdentifier)
                         .filter(Objects::nonNull)
                         .sorted(Comparator.comparing(PsiElement::getTextOffset))
-                        .map(id -> getUsageFeatures(variable, id, file))
+                        .map(id -> getUsageFeatures(variable, id, file, ngramEncoder))
                         .collect(Collectors.toList()));
     }
 
-    private static UsageFeatures getUsageFeatures(@NotNull PsiVariable variable, @NotNull PsiElement element, @NotNull PsiFile file) {
+    private static UsageFeatures getUsageFeatures(@NotNull PsiVariable variable, @NotNull PsiElement element, @NotNull PsiFile file,
+                                                  @NotNull Function<List<String>, Object> ngramEncoder) {
         List<String> tokens = new ArrayList<>();
+        ResolvedIdentifiers resolvedIdentifiers = ResolvedIdentifiers.getInstance(file);
 //        Adding tokens before usage
         int order = NGramLengthBeforeUsage;
         for (PsiElement token : SyntaxTraverser
@@ -123,7 +251,7 @@ public class DatasetExtractor {
                 .onRange(new TextRange(0, max(0, element.getTextOffset() - 1)))
                 .forceIgnore(node -> node instanceof PsiComment)
                 .filter(PsiUtils::shouldLex)) {
-            tokens.add(processToken(token, variable));
+            tokens.add(processToken(token, variable, resolvedIdentifiers));
             if (--order < 1) {
                 break;
             }
@@ -137,35 +265,29 @@ public class DatasetExtractor {
                 .onRange(new TextRange(min(element.getTextOffset(), file.getTextLength()), file.getTextLength()))
                 .forceIgnore(node -> node instanceof PsiComment)
                 .filter(PsiUtils::shouldLex)) {
-            tokens.add(processToken(token, variable));
+            tokens.add(processToken(token, variable, resolvedIdentifiers));
             if (--order < 1) {
                 break;
             }
         }
         return new UsageFeatures(
-                String.join(DatasetExtractor.TOKEN_DELIMITER, tokens),
+                ngramEncoder.apply(tokens),
                 abs(variable.getTextOffset() - element.getTextOffset())
         );
     }
 
-    private static void save(@NotNull Path saveDir, @NotNull Project project, @NotNull HashMap<String, List<VariableFeatures>> dataset) {
-        save(saveDir, project, dataset, null);
-    }
+    /**
+     * A line of the dataset: variables of the file and its length in chars.
+     */
+    public static class FileRecord {
+        public final String file;
+        public final int length;
+        public final List<VariableFeatures> variables;
 
-    private static void save(@NotNull Path saveDir, @NotNull Project project, @NotNull HashMap<String, List<VariableFeatures>> dataset, @Nullable HashMap<String, Object> fileStats) {
-        File datasetFile = saveDir.resolve(project.getName() + "_dataset.json").toFile();
-        File statsFile = saveDir.resolve(project.getName() + "_stats.json").toFile();
-        try {
-            datasetFile.getParentFile().mkdirs();
-            datasetFile.createNewFile();
-            ObjectMapper mapper = new ObjectMapper();
-            mapper.writeValue(datasetFile, dataset);
-            if (fileStats != null) {
-                statsFile.createNewFile();
-                mapper.writeValue(statsFile, fileStats);
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
+        public FileRecord(String file, int length, List<VariableFeatures> variables) {
+            this.file = file;
+            this.length = length;
+            this.variables = variables;
         }
     }
 }
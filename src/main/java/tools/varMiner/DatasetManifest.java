@@ -0,0 +1,64 @@
+package tools.varMiner;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records of a completed dataset: content hash of every file and the byte range of its record,
+ * so the next build copies records of unchanged files instead of parsing them again.
+ */
+public class DatasetManifest {
+    public int version;
+    public List<Entry> files = new ArrayList<>();
+
+    public static class Entry {
+        public String path;
+        public String hash;
+        public long offset;
+        public long length;
+
+        public Entry() {
+        }
+
+        public Entry(String path, String hash, long offset, long length) {
+            this.path = path;
+            this.hash = hash;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    public @NotNull Map<String, Entry> byPath() {
+        Map<String, Entry> entries = new HashMap<>();
+        for (Entry entry : files) {
+            entries.put(entry.path, entry);
+        }
+        return entries;
+    }
+
+    static @Nullable DatasetManifest read(@NotNull Path file) {
+        if (!Files.exists(file)) return null;
+        try {
+            return new ObjectMapper().readValue(file.toFile(), DatasetManifest.class);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    void write(@NotNull Path file) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        new ObjectMapper().writeValue(temp.toFile(), this);
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+}
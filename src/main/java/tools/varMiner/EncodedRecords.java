@@ -0,0 +1,51 @@
+package tools.varMiner;
+
+import org.jetbrains.annotations.NotNull;
+import tools.varMiner.DatasetExtractor.FileRecord;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Collection;
+
+import static org.jetbrains.id.names.suggesting.utils.VarintUtils.*;
+
+/**
+ * Binary layout of {@link FileRecord}s whose n-grams are token ids of a {@link Vocabulary}.
+ * Records follow each other, all numbers are unsigned LEB128 varints, features are zigzag encoded:
+ * <pre>
+ * record:   byteLength, path (byteLength, UTF-8 bytes), length, variableCount, variable[variableCount]
+ * variable: name, psiInterface, usageCount, (tokenCount, token[tokenCount], featureCount, feature[featureCount])[usageCount]
+ * </pre>
+ * Names, interfaces and tokens are ids in the vocabulary, the leading byte length of a record allows to skip it.
+ */
+final class EncodedRecords {
+    private EncodedRecords() {
+    }
+
+    static @NotNull byte[] encode(@NotNull FileRecord record, @NotNull Vocabulary vocabulary) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        writeString(body, record.file);
+        writeVarint(body, record.length);
+        writeVarint(body, record.variables.size());
+        for (VariableFeatures variable : record.variables) {
+            writeVarint(body, vocabulary.getId(variable.variable));
+            writeVarint(body, vocabulary.getId(variable.psiInterface));
+            writeVarint(body, variable.ngrams.size());
+            for (int i = 0; i < variable.ngrams.size(); i++) {
+                int[] tokens = (int[]) variable.ngrams.get(i);
+                writeVarint(body, tokens.length);
+                for (int token : tokens) {
+                    writeVarint(body, token);
+                }
+                Collection<?> features = (Collection<?>) variable.otherFeatures.get(i);
+                writeVarint(body, features.size());
+                for (Object feature : features) {
+                    writeSignedVarint(body, (Integer) feature);
+                }
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.size() + 5);
+        writeVarint(out, body.size());
+        out.write(body.toByteArray(), 0, body.size());
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,97 @@
+package tools.varMiner;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Checkpoint of an output file which is appended record by record. After every record the checkpoint gets a line
+ * {@code <length of the output>\t<content hash>\t<path of the file>}, so after an interruption the output is truncated
+ * to the last checkpointed length, which drops a partially written record, and checkpointed files are skipped.
+ */
+class ExtractionCheckpoint implements Closeable {
+    private final List<DatasetManifest.Entry> myEntries = new ArrayList<>();
+    private final Set<String> myCompleted = new HashSet<>();
+    private final Writer myWriter;
+    private long myOutputLength = 0;
+
+    /**
+     * Reads the checkpoint and truncates the output to its last checkpointed length. Without a checkpoint
+     * the output is started from scratch.
+     */
+    ExtractionCheckpoint(@NotNull Path output, @NotNull Path checkpoint) throws IOException {
+        if (Files.exists(checkpoint)) {
+            String content = new String(Files.readAllBytes(checkpoint), StandardCharsets.UTF_8);
+            // The last line may be incomplete, it is dropped
+            int end = content.lastIndexOf('\n') + 1;
+            for (String line : content.substring(0, end).split("\n")) {
+                String[] fields = line.split("\t", 3);
+                if (fields.length < 3) continue;
+                addEntry(fields[2], fields[1], Long.parseLong(fields[0]));
+            }
+            truncate(checkpoint, content.substring(0, end).getBytes(StandardCharsets.UTF_8).length);
+        }
+        truncate(output, myOutputLength);
+        myWriter = new OutputStreamWriter(new FileOutputStream(checkpoint.toFile(), true), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return length of the checkpointed output, i.e. the offset which the next record is written at.
+     */
+    long getOutputLength() {
+        return myOutputLength;
+    }
+
+    boolean isCompleted(@NotNull String path) {
+        return myCompleted.contains(path);
+    }
+
+    int getCompletedCount() {
+        return myCompleted.size();
+    }
+
+    /**
+     * @return manifest of the checkpointed records in the order they were written.
+     */
+    @NotNull DatasetManifest toManifest(int version) {
+        DatasetManifest manifest = new DatasetManifest();
+        manifest.version = version;
+        manifest.files.addAll(myEntries);
+        return manifest;
+    }
+
+    /**
+     * Must be called after the record is flushed to the output.
+     */
+    void complete(@NotNull String path, @NotNull String hash, long outputLength) throws IOException {
+        myWriter.write(outputLength + "\t" + hash + "\t" + path + "\n");
+        myWriter.flush();
+        addEntry(path, hash, outputLength);
+    }
+
+    private void addEntry(@NotNull String path, @NotNull String hash, long outputLength) {
+        myEntries.add(new DatasetManifest.Entry(path, hash, myOutputLength, outputLength - myOutputLength));
+        myCompleted.add(path);
+        myOutputLength = outputLength;
+    }
+
+    private static void truncate(@NotNull Path file, long length) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            channel.truncate(length);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        myWriter.close();
+    }
+}
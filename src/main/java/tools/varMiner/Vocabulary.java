@@ -0,0 +1,85 @@
+package tools.varMiner;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Vocabulary of a dataset which is shared by all its projects. The file has a JSON string per line,
+ * a token id is its line number and the line 0 is {@code null}. Tokens are only appended, so ids stay valid
+ * for datasets which were written before. New tokens must be {@link #flush() flushed} before records
+ * which use them are checkpointed.
+ */
+class Vocabulary implements Closeable {
+    static final int NULL_ID = 0;
+
+    private final ObjectMapper myMapper = new ObjectMapper();
+    private final Map<String, Integer> myIds = new HashMap<>();
+    private final List<String> myNewTokens = new ArrayList<>();
+    private final Writer myWriter;
+
+    Vocabulary(@NotNull Path file) throws IOException {
+        int size = 0;
+        if (Files.exists(file)) {
+            String content = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+            // The last line may be incomplete, it is dropped with the tokens which are not checkpointed
+            int end = content.lastIndexOf('\n') + 1;
+            for (String line : content.substring(0, end).split("\n")) {
+                if (line.isEmpty()) continue;
+                String token = myMapper.readValue(line, String.class);
+                if (token != null) myIds.put(token, size);
+                size++;
+            }
+            try (RandomAccessFile truncated = new RandomAccessFile(file.toFile(), "rw")) {
+                truncated.setLength(content.substring(0, end).getBytes(StandardCharsets.UTF_8).length);
+            }
+        }
+        myWriter = new OutputStreamWriter(new FileOutputStream(file.toFile(), true), StandardCharsets.UTF_8);
+        if (size == 0) {
+            myWriter.write("null\n");
+        }
+    }
+
+    int getId(@Nullable String token) {
+        if (token == null) return NULL_ID;
+        Integer id = myIds.get(token);
+        if (id == null) {
+            id = myIds.size() + 1;
+            myIds.put(token, id);
+            myNewTokens.add(token);
+        }
+        return id;
+    }
+
+    @NotNull int[] getIds(@NotNull List<String> tokens) {
+        int[] ids = new int[tokens.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = getId(tokens.get(i));
+        }
+        return ids;
+    }
+
+    void flush() throws IOException {
+        for (String token : myNewTokens) {
+            myWriter.write(myMapper.writeValueAsString(token));
+            myWriter.write('\n');
+        }
+        myNewTokens.clear();
+        myWriter.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        myWriter.close();
+    }
+}
@@ -14,9 +14,7 @@ import com.intellij.psi.util.PsiTreeUtil
 import org.jetbrains.astrid.downloader.Downloader
 import org.jetbrains.astrid.inspections.Suggestion
 import org.jetbrains.astrid.model.ModelFacade
-import org.jetbrains.astrid.utils.FileUtils
 import org.jetbrains.astrid.utils.PsiUtils.executeWriteAction
-import java.net.URL
 import java.nio.file.Files
 
 class SuggestionIntentionAction : IntentionAction {
@@ -28,14 +26,8 @@ class SuggestionIntentionAction : IntentionAction {
         ProgressManager.getInstance().run(object : Task.Backgroundable(project, "Method name suggestions", true) {
             override fun run(indicator: ProgressIndicator) {
                 var suggestionsList: Suggestion? = null
-                if (!Files.exists(Downloader.getModelPath())) {
-                    Downloader.getPluginPath().toFile().mkdir()
-                    Downloader.downloadArchive(URL(Downloader.modelLink), Downloader.getArchivePath(),
-                            ProgressManager.getInstance().progressIndicator)
-                    if (indicator.isCanceled) return
-                    ProgressManager.getInstance().progressIndicator.text = "Extracting archive"
-                    FileUtils.unzip(Downloader.getArchivePath().toString(), Downloader.getModelPath().toString())
-                }
+                Downloader.installModel(indicator)
+                if (!Files.exists(Downloader.getModelPath())) return
 
                 runReadAction {
                     indicator.text = "Generating method name suggestions"
@@ -0,0 +1,236 @@
+package org.jetbrains.astrid.downloader
+
+import com.intellij.openapi.progress.ProgressIndicator
+import com.intellij.openapi.util.io.FileUtil
+import java.io.IOException
+import java.io.InputStream
+import java.net.HttpURLConnection
+import java.net.URL
+import java.nio.ByteBuffer
+import java.nio.channels.Channels
+import java.nio.channels.FileChannel
+import java.nio.channels.ReadableByteChannel
+import java.nio.file.AtomicMoveNotSupportedException
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+import java.security.MessageDigest
+import java.util.zip.ZipInputStream
+
+/**
+ * Downloads a zip archive and extracts it in the same pass.
+ * Downloaded bytes are appended to a part file, so an interrupted download is resumed
+ * (with a Range request over HTTP) and the part which is already on disk is re-read for extraction.
+ * Extracted files are moved to the destination only after the SHA-256 of the archive is verified.
+ * If the archive can't be extracted, the part file is deleted, so the next attempt downloads it again.
+ * Works with any [URL] which [URL.openConnection] supports, e.g. `file://` for tests.
+ */
+class ArchiveInstaller(private val url: URL, private val sha256: String) {
+    companion object {
+        private const val BUFFER_SIZE = 1024 * 1024
+    }
+
+    @Throws(IOException::class)
+    fun install(partFile: Path, destination: Path, indicator: ProgressIndicator) {
+        Files.createDirectories(partFile.parent)
+        val staging = destination.resolveSibling(destination.fileName.toString() + ".staging")
+        FileUtil.delete(staging.toFile())
+        Files.createDirectories(staging)
+
+        val digest = MessageDigest.getInstance("SHA-256")
+        val alreadyDownloaded = if (Files.exists(partFile)) Files.size(partFile) else 0L
+        val source = openSource(alreadyDownloaded)
+        try {
+            DownloadInputStream(partFile, source, digest, indicator).use { input ->
+                val zipIn = ZipInputStream(input)
+                extract(zipIn, staging, indicator)
+                // The central directory isn't read by ZipInputStream, but it is a part of the checksum.
+                input.drain()
+                zipIn.close()
+            }
+        } catch (e: IOException) {
+            FileUtil.delete(staging.toFile())
+            // A broken archive would fail the same way on every resume, an interrupted download is resumed.
+            if (e !is DownloadException) {
+                Files.deleteIfExists(partFile)
+            }
+            throw e
+        }
+
+        val actual = digest.digest().joinToString("") { String.format("%02x", it) }
+        if (!sha256.equals(actual, ignoreCase = true)) {
+            FileUtil.delete(staging.toFile())
+            Files.deleteIfExists(partFile)
+            throw IOException("Checksum mismatch for $url: expected $sha256, got $actual")
+        }
+
+        try {
+            Files.move(staging, destination, StandardCopyOption.ATOMIC_MOVE)
+        } catch (e: AtomicMoveNotSupportedException) {
+            Files.move(staging, destination)
+        }
+        Files.deleteIfExists(partFile)
+    }
+
+    private fun extract(zipIn: ZipInputStream, destination: Path, indicator: ProgressIndicator) {
+        var entry = zipIn.nextEntry
+        while (entry != null) {
+            val path = destination.resolve(entry.name).normalize()
+            if (!path.startsWith(destination)) {
+                throw IOException("Archive entry ${entry.name} is outside of the target directory")
+            }
+            indicator.text2 = entry.name
+            if (entry.isDirectory) {
+                Files.createDirectories(path)
+            } else {
+                Files.createDirectories(path.parent)
+                Files.copy(zipIn, path, StandardCopyOption.REPLACE_EXISTING)
+            }
+            zipIn.closeEntry()
+            entry = zipIn.nextEntry
+        }
+    }
+
+    /**
+     * Failure of the connection, after which the part file is still valid.
+     */
+    private class DownloadException(cause: IOException) : IOException(cause.message, cause)
+
+    private class Source(val channel: ReadableByteChannel, val offset: Long, val totalLength: Long)
+
+    /**
+     * Opens the archive starting from [offset]. If the server can't serve a range,
+     * the returned source starts from the beginning and the part file is rewritten.
+     */
+    private fun openSource(offset: Long): Source {
+        val connection = url.openConnection()
+        if (connection is HttpURLConnection) {
+            if (offset > 0) {
+                connection.setRequestProperty("Range", "bytes=$offset-")
+            }
+            val code = connection.responseCode
+            val length = connection.contentLengthLong
+            return when {
+                code == HttpURLConnection.HTTP_PARTIAL && offset > 0 ->
+                    Source(Channels.newChannel(connection.inputStream), offset, if (length < 0) -1 else offset + length)
+                code == HttpURLConnection.HTTP_OK ->
+                    Source(Channels.newChannel(connection.inputStream), 0, length)
+                code == 416 && offset > 0 -> {
+                    // Range not satisfiable: the part file is broken, download from scratch.
+                    connection.disconnect()
+                    openSource(0)
+                }
+                else -> throw IOException("Unexpected response $code while downloading $url")
+            }
+        }
+        val stream = connection.getInputStream()
+        if (!skipFully(stream, offset)) {
+            stream.close()
+            return openSource(0)
+        }
+        return Source(Channels.newChannel(stream), offset, connection.contentLengthLong)
+    }
+
+    private fun skipFully(stream: InputStream, count: Long): Boolean {
+        var left = count
+        while (left > 0) {
+            val skipped = stream.skip(left)
+            if (skipped <= 0) {
+                if (stream.read() == -1) return false
+                left--
+            } else {
+                left -= skipped
+            }
+        }
+        return true
+    }
+
+    /**
+     * Serves the part of the archive which is already on disk and then the downloaded rest of it,
+     * appending downloaded bytes to the part file and feeding everything to the digest.
+     */
+    private class DownloadInputStream(
+            partFile: Path,
+            private val source: Source,
+            private val digest: MessageDigest,
+            private val indicator: ProgressIndicator
+    ) : InputStream() {
+        private val buffer: ByteBuffer = ByteBuffer.allocate(BUFFER_SIZE)
+        private val existing: FileChannel? = if (source.offset > 0) FileChannel.open(partFile, StandardOpenOption.READ) else null
+        private val part: FileChannel = FileChannel.open(partFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)
+        private var existingLeft = source.offset
+        private var position = 0L
+
+        init {
+            part.truncate(source.offset)
+            part.position(source.offset)
+            buffer.flip()
+            indicator.isIndeterminate = source.totalLength <= 0
+        }
+
+        override fun read(): Int {
+            if (!buffer.hasRemaining() && !refill()) return -1
+            return buffer.get().toInt() and 0xFF
+        }
+
+        override fun read(b: ByteArray, off: Int, len: Int): Int {
+            if (len == 0) return 0
+            if (!buffer.hasRemaining() && !refill()) return -1
+            val count = Math.min(len, buffer.remaining())
+            buffer.get(b, off, count)
+            return count
+        }
+
+        fun drain() {
+            while (refill()) {
+                buffer.position(buffer.limit())
+            }
+        }
+
+        private fun refill(): Boolean {
+            indicator.checkCanceled()
+            buffer.clear()
+            if (existingLeft > 0) {
+                buffer.limit(Math.min(buffer.capacity().toLong(), existingLeft).toInt())
+                val read = existing!!.read(buffer)
+                if (read <= 0) throw IOException("Part file is shorter than expected")
+                existingLeft -= read
+                buffer.flip()
+            } else {
+                var read = 0
+                try {
+                    while (read == 0) {
+                        read = source.channel.read(buffer)
+                    }
+                } catch (e: IOException) {
+                    throw DownloadException(e)
+                }
+                if (read < 0) {
+                    buffer.flip()
+                    return false
+                }
+                buffer.flip()
+                while (buffer.hasRemaining()) {
+                    part.write(buffer)
+                }
+                buffer.rewind()
+            }
+            digest.update(buffer.array(), 0, buffer.limit())
+            position += buffer.limit()
+            if (source.totalLength > 0) {
+                indicator.fraction = position.toDouble() / source.totalLength
+            }
+            return true
+        }
+
+        override fun close() {
+            try {
+                source.channel.close()
+                existing?.close()
+            } finally {
+                part.close()
+            }
+        }
+    }
+}
@@ -1,13 +1,13 @@
 package org.jetbrains.astrid.downloader
 
+import com.intellij.openapi.diagnostic.Logger
 import com.intellij.openapi.progress.ProgressIndicator
 import com.intellij.openapi.progress.ProgressManager
 import com.intellij.openapi.progress.Task
 import com.intellij.openapi.project.ProjectManager
+import com.intellij.openapi.util.registry.Registry
 import org.jetbrains.astrid.enums.OSType
-import org.jetbrains.astrid.utils.FileUtils
-import java.io.BufferedInputStream
-import java.io.FileOutputStream
+import java.io.IOException
 import java.net.URL
 import java.nio.file.Files
 import java.nio.file.Path
@@ -15,6 +15,7 @@ import java.nio.file.Paths
 import java.util.*
 
 object Downloader {
+    private val log: Logger = Logger.getInstance(Downloader::class.java)
     private const val archiveName = "model.zip"
     private const val dirName = "org/jetbrains/astrid/model"
     private const val pluginName = "astrid_plugin"
@@ -23,9 +24,10 @@ object Downloader {
     const val beamSubDirMac = "/beam_search/mac/_beam_search_ops.so"
     const val dictSubDir = "/org/jetbrains/astrid/model/dict/targets.dict"
     const val modelLink = "https://www.dropbox.com/s/j2ydkxq3js33d93/model.zip?dl=1"
+    private const val checksumResource = "/org/jetbrains/astrid/model.zip.sha256"
     private val tmp: String = System.getProperty("java.io.tmpdir")
 
-    fun getArchivePath(): Path = Paths.get(tmp, pluginName, archiveName)
+    fun getArchivePath(): Path = Paths.get(tmp, pluginName, "$archiveName.part")
     fun getPluginPath(): Path = Paths.get(tmp, pluginName)
     fun getModelPath(): Path = Paths.get(tmp, pluginName, dirName)
 
@@ -34,43 +36,35 @@ object Downloader {
         progressManager.run(object : Task.Backgroundable(ProjectManager.getInstance().defaultProject,
                 "Generating suggestions", true) {
             override fun run(indicator: ProgressIndicator) {
-                if (!Files.exists(getModelPath())) {
-                    getPluginPath().toFile().mkdir()
-                    downloadArchive(URL(modelLink), getArchivePath(),
-                            ProgressManager.getInstance().progressIndicator)
-                    if (indicator.isCanceled) return
-                    ProgressManager.getInstance().progressIndicator.text = "Extracting archive"
-                    FileUtils.unzip(getArchivePath().toString(), getModelPath().toString())
-                }
+                installModel(indicator)
             }
         })
     }
 
-    fun downloadArchive(url: URL, path: Path, indicator: ProgressIndicator) {
+    /**
+     * Downloads and extracts the model unless it is already installed.
+     * The model directory appears only after the archive checksum is verified. The checksum is generated
+     * by the build from the published archive, `astrid.model.sha256` overrides it, e.g. for another archive.
+     */
+    @Synchronized
+    fun installModel(indicator: ProgressIndicator) {
+        if (Files.exists(getModelPath())) return
+        val sha256 = Registry.stringValue("astrid.model.sha256").ifBlank { getBundledChecksum() }
+        if (sha256.isNullOrBlank()) {
+            log.warn("Model for suggesting methods' name isn't installed: the plugin was built without its checksum")
+            return
+        }
         indicator.text = "Downloading model for suggesting methods' name..."
-        path.toFile().parentFile.mkdirs()
-        val urlConnection = url.openConnection()
-        val contentLength = urlConnection.contentLength
-
-        BufferedInputStream(url.openStream()).use {
-            val out = FileOutputStream(path.toFile())
-            val data = ByteArray(1024)
-            var totalCount = 0
-            var count = it.read(data, 0, 1024)
-            while (count != -1 && !indicator.isCanceled) {
-                out.write(data, 0, count)
-                totalCount += count
-                if (contentLength == 0) {
-                    indicator.fraction = 0.0
-                } else {
-                    indicator.fraction = totalCount.toDouble() / contentLength
-                }
-                count = it.read(data, 0, 1024)
-            }
+        try {
+            ArchiveInstaller(URL(modelLink), sha256).install(getArchivePath(), getModelPath(), indicator)
+        } catch (e: IOException) {
+            log.warn("Cannot install model for suggesting methods' name", e)
         }
-        indicator.fraction = 1.0
     }
 
+    private fun getBundledChecksum(): String? =
+        Downloader::class.java.getResource(checksumResource)?.readText()?.trim()
+
     private fun getOperatingSystemType(): OSType {
         val OS = System.getProperty("os.name", "generic").toLowerCase(Locale.ENGLISH)
         if (OS.contains("mac") || OS.contains("darwin")) {
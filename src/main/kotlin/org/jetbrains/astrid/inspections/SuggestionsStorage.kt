@@ -3,10 +3,17 @@ package org.jetbrains.astrid.inspections
 import com.intellij.psi.PsiNameIdentifierOwner
 import com.intellij.psi.SmartPointerManager
 import com.intellij.psi.SmartPsiElementPointer
+import org.jetbrains.id.names.suggesting.MemoryBudgetManager
+import java.util.concurrent.ConcurrentHashMap
 
 class SuggestionsStorage {
     companion object {
-        private var map: HashMap<SmartPsiElementPointer<PsiNameIdentifierOwner>, Suggestion> = HashMap()
+        private const val BYTES_PER_ENTRY = 1024L
+        private val map = ConcurrentHashMap<SmartPsiElementPointer<PsiNameIdentifierOwner>, Suggestion>()
+
+        init {
+            MemoryBudgetManager.getInstance().registerCache("method name suggestions", map, BYTES_PER_ENTRY)
+        }
 
         fun getSuggestions(element: PsiNameIdentifierOwner): Suggestion? {
             val pointer = SmartPointerManager.getInstance(element.project).createSmartPsiElementPointer(element)
@@ -19,7 +26,7 @@ class SuggestionsStorage {
 
         fun put(element: PsiNameIdentifierOwner, suggestion: Suggestion) {
             val pointer = SmartPointerManager.getInstance(element.project).createSmartPsiElementPointer(element)
-            if (map.contains(pointer)) {
+            if (map.containsKey(pointer)) {
                 map.replace(pointer, suggestion)
             } else {
                 map.put(pointer, suggestion)
@@ -28,7 +35,7 @@ class SuggestionsStorage {
 
         fun contains(element: PsiNameIdentifierOwner): Boolean {
             val pointer = SmartPointerManager.getInstance(element.project).createSmartPsiElementPointer(element)
-            return map.contains(pointer)
+            return map.containsKey(pointer)
         }
 
         fun needRecalculate(element: PsiNameIdentifierOwner): Boolean {
@@ -1,28 +1,147 @@
 package org.jetbrains.astrid.model
 
+import com.intellij.openapi.application.ApplicationManager
 import com.intellij.openapi.diagnostic.Logger
+import com.intellij.openapi.progress.ProcessCanceledException
+import com.intellij.openapi.progress.ProgressManager
 import com.intellij.psi.PsiMethod
+import com.intellij.util.ConcurrencyUtil
 import net.razorvine.pickle.Unpickler
 import org.jetbrains.astrid.downloader.Downloader.dictSubDir
 import org.jetbrains.astrid.downloader.Downloader.getModelPath
 import org.jetbrains.astrid.downloader.Downloader.modelSubDir
-import org.jetbrains.astrid.helpers.TensorConverter.parsePredictions
-import org.jetbrains.astrid.helpers.TensorConverter.parseScores
+import org.jetbrains.astrid.helpers.TensorConverter
+import org.jetbrains.astrid.helpers.TensorConverter.BeamPredictions
 import org.jetbrains.astrid.inspections.Suggestion
 import org.jetbrains.astrid.utils.PathUtils.getCombinedPaths
 import org.jetbrains.astrid.utils.PsiUtils
+import org.jetbrains.id.names.suggesting.MemoryBudgetManager
 import org.tensorflow.SavedModelBundle
-import org.tensorflow.Session
 import org.tensorflow.Tensor
+import java.io.File
 import java.io.FileInputStream
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Future
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
 
 class ModelFacade {
 
     companion object {
         private val log: Logger = Logger.getInstance(ModelFacade::class.java)
+        private const val INFERENCE_POLL_MS = 10L
         private val beamSearchModule = PredictionModel.buildModel()
+        private val tensorConverter: ThreadLocal<TensorConverter> = ThreadLocal.withInitial { TensorConverter() }
+        private val subtokens: Map<Int, String> by lazy {
+            FileInputStream(getModelPath().toString() + dictSubDir).use {
+                @Suppress("UNCHECKED_CAST")
+                Unpickler().load(it) as Map<Int, String>
+            }
+        }
+        @Volatile
+        private var sessionConfig: SessionConfig = SessionConfig.fromRegistry()
+        @Volatile
+        private var inferenceSession: InferenceSession? = null
+        private val modelSize: Long by lazy {
+            File(getModelPath().toString() + modelSubDir).walkTopDown().filter { it.isFile }.map { it.length() }.sum()
+        }
+
+        init {
+            // The model is held in native memory mostly, its size on disk stands for the footprint
+            MemoryBudgetManager.getInstance().register(
+                "method names model", MemoryBudgetManager.INFERENCE_MODEL,
+                object : MemoryBudgetManager.Component {
+                    override fun estimateSize(): Long = if (inferenceSession == null) 0 else modelSize
+
+                    override fun evict(): Boolean = unload()
+                })
+        }
+
+        /**
+         * Changes session settings, e.g. after registry values were changed. The next prediction loads the model
+         * with them, inference which was already submitted finishes on the old session before it's closed.
+         */
+        @Synchronized
+        fun configure(config: SessionConfig) {
+            if (config == sessionConfig) return
+            val oldSession = inferenceSession
+            inferenceSession = null
+            sessionConfig = config
+            oldSession?.closeWhenIdle()
+        }
+
+        /**
+         * Releases the model, it's loaded again by the next prediction. Inference which was already submitted
+         * finishes before the model is closed.
+         */
+        @Synchronized
+        fun unload(): Boolean {
+            val oldSession = inferenceSession ?: return false
+            inferenceSession = null
+            oldSession.closeWhenIdle()
+            return true
+        }
+
+        @Synchronized
+        private fun getInferenceSession(): InferenceSession =
+            inferenceSession ?: InferenceSession(sessionConfig).also { inferenceSession = it }
+
+        /**
+         * Submits the task to the current session, a session which was closed meanwhile is replaced.
+         */
+        private fun <T> submitInference(task: (SavedModelBundle) -> T): Future<T> {
+            while (true) {
+                getInferenceSession().submit(task)?.let { return it }
+            }
+        }
+
+        fun getSessionConfig(): SessionConfig = sessionConfig
+    }
+
+    /**
+     * Loaded model together with the executor that is allowed to run it.
+     * The model is closed only after all submitted tasks have finished.
+     */
+    private class InferenceSession(config: SessionConfig) {
 //        SavedModelBundle.load doesn't work on windows.
-        private val tfModel: SavedModelBundle = SavedModelBundle.load(getModelPath().toString() + modelSubDir, "serve")
+        private val model: SavedModelBundle = SavedModelBundle.loader(getModelPath().toString() + modelSubDir)
+                .withTags("serve")
+                .withConfigProto(config.toConfigProto())
+                .load()
+        private val executor: ExecutorService = createExecutor(Math.max(1, config.inferenceThreads))
+
+        /**
+         * @return `null` if the session is closed.
+         */
+        @Synchronized
+        fun <T> submit(task: (SavedModelBundle) -> T): Future<T>? =
+            if (executor.isShutdown) null else executor.submit(Callable { task(model) })
+
+        /**
+         * Stops accepting tasks and closes the model on a pooled thread once the submitted ones have finished,
+         * tasks cancelled in the queue are just skipped by the executor.
+         */
+        fun closeWhenIdle() {
+            synchronized(this) {
+                executor.shutdown()
+            }
+            ApplicationManager.getApplication().executeOnPooledThread {
+                while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                    log.info("Waiting for inference to finish before closing the model")
+                }
+                model.close()
+            }
+        }
+
+        private fun createExecutor(threads: Int): ExecutorService {
+            val executor = ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, LinkedBlockingQueue(),
+                    ConcurrencyUtil.newNamedThreadFactory("Astrid Inference", true, Thread.NORM_PRIORITY))
+            executor.allowCoreThreadTimeOut(true)
+            return executor
+        }
     }
 
     fun getSuggestions(method: PsiMethod): Suggestion {
@@ -39,19 +158,8 @@ class ModelFacade {
         try {
             val paths = getCombinedPaths(methodBody)
             if (paths.isEmpty()) return arrayListOf()
-            val session: Session = tfModel.session()
-            val runnerForNames = session.runner()
-            val runnerForScores = session.runner()
-            val inputTensor = Tensor.create(paths.toByteArray(Charsets.UTF_8), String::class.java)
-
-            val outputTensorForNames: Tensor<*> = runnerForNames.feed("Placeholder:0", inputTensor)
-                .fetch("org/jetbrains/astrid/model/decoder/transpose:0").run()[0]
-            val predictions: List<List<Any>> = parsePredictions(outputTensorForNames) as List<List<Any>>
-            val parsedPredictions: List<String> = parseResults(predictions)
-
-            val outputTensorScores: Tensor<*> = runnerForScores.feed("Placeholder:0", inputTensor)
-                .fetch("org/jetbrains/astrid/model/decoder/transpose_1:0").run()[0]
-            val scores: List<Double> = parseScores(outputTensorScores) as List<Double>
+            val future = submitInference { runInference(it, paths) }
+            val (parsedPredictions, scores) = awaitInference(future)
 
             for (i in 0 until parsedPredictions.size) {
                 val currentPrediction: String = parsedPredictions[i]
@@ -61,8 +169,8 @@ class ModelFacade {
                     resultPairs.add(Pair(currentPrediction, scores[i]))
                 }
             }
-            outputTensorForNames.close()
-            outputTensorScores.close()
+        } catch (e: ProcessCanceledException) {
+            throw e
         } catch (e: Exception) {
             log.info("Error was occurred while handling result tensor.")
         }
@@ -70,21 +178,57 @@ class ModelFacade {
         return resultPairs
     }
 
-    private fun parseResults(listOfIndexes: List<List<Any>>): List<String> {
-        var predictions = ArrayList<String>()
-        val stream = FileInputStream(getModelPath().toString() + dictSubDir)
-        val unpickler = Unpickler()
-        val dictionary = unpickler.load(stream)
-        val mapOfSubtokens = dictionary as HashMap<Int, String>
-        for (indexes in listOfIndexes) {
-            var name = mapOfSubtokens.get(indexes[0]) ?: ""
-            for (i in indexes.subList(1, indexes.size)) {
-                var subtoken: String? = mapOfSubtokens.get(i)
-                if (subtoken != null && !subtoken.equals("<PAD>") && !subtoken.equals("<UNK>"))
-                    name += subtoken.substring(0, 1).toUpperCase() + subtoken.substring(1)
+    /**
+     * Runs the session on the inference executor, so TensorFlow never works on more threads
+     * than [SessionConfig.inferenceThreads] callers at once. Names and scores are fetched in a single run.
+     */
+    private fun runInference(model: SavedModelBundle, paths: String): Pair<List<String>, List<Double>> {
+        Tensor.create(paths.toByteArray(Charsets.UTF_8), String::class.java).use { inputTensor ->
+            val outputs = model.session().runner()
+                .feed("Placeholder:0", inputTensor)
+                .fetch("org/jetbrains/astrid/model/decoder/transpose:0")
+                .fetch("org/jetbrains/astrid/model/decoder/transpose_1:0")
+                .run()
+            try {
+                val predictions = tensorConverter.get().decode(outputs[0], outputs[1])
+                val scores = (0 until predictions.beamWidth).map { predictions.getScore(it) }
+                return Pair(parseResults(predictions), scores)
+            } finally {
+                outputs.forEach { it.close() }
+            }
+        }
+    }
+
+    private fun <T> awaitInference(future: Future<T>): T {
+        while (true) {
+            try {
+                ProgressManager.checkCanceled()
+                return future.get(INFERENCE_POLL_MS, TimeUnit.MILLISECONDS)
+            } catch (e: TimeoutException) {
+                // keep waiting, but stay responsive to cancellation
+            } catch (e: ProcessCanceledException) {
+                future.cancel(false)
+                throw e
+            }
+        }
+    }
+
+    private fun parseResults(predictions: BeamPredictions): List<String> {
+        val names = ArrayList<String>(predictions.beamWidth)
+        val name = StringBuilder()
+        for (beam in 0 until predictions.beamWidth) {
+            name.setLength(0)
+            if (predictions.subtokenCount > 0) {
+                name.append(subtokens[predictions.getSubtoken(beam, 0)] ?: "")
+            }
+            for (position in 1 until predictions.subtokenCount) {
+                val subtoken: String? = subtokens[predictions.getSubtoken(beam, position)]
+                if (subtoken != null && subtoken.isNotEmpty() && subtoken != "<PAD>" && subtoken != "<UNK>") {
+                    name.append(subtoken.substring(0, 1).toUpperCase()).append(subtoken, 1, subtoken.length)
+                }
             }
-            predictions.add(name)
+            names.add(name.toString())
         }
-        return predictions
+        return names
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,59 @@
+package org.jetbrains.astrid.model
+
+import com.intellij.openapi.util.registry.Registry
+import java.io.ByteArrayOutputStream
+
+/**
+ * Thread sizing for the TensorFlow session and for the executor which runs inference.
+ * Zero (or a negative value) for a TensorFlow pool means that TensorFlow picks the size itself.
+ */
+data class SessionConfig(val intraOpThreads: Int, val interOpThreads: Int, val inferenceThreads: Int) {
+
+    /**
+     * Serializes thread settings as a `tensorflow.ConfigProto` message.
+     * Only two varint fields are needed, so they are encoded by hand instead of depending on protobuf classes.
+     */
+    fun toConfigProto(): ByteArray {
+        val out = ByteArrayOutputStream()
+        writeVarintField(out, INTRA_OP_PARALLELISM_FIELD, intraOpThreads)
+        writeVarintField(out, INTER_OP_PARALLELISM_FIELD, interOpThreads)
+        return out.toByteArray()
+    }
+
+    override fun toString(): String = "intra=$intraOpThreads,inter=$interOpThreads,inference=$inferenceThreads"
+
+    companion object {
+        private const val INTRA_OP_PARALLELISM_FIELD = 2
+        private const val INTER_OP_PARALLELISM_FIELD = 5
+
+        fun fromRegistry(): SessionConfig = SessionConfig(
+                Registry.intValue("astrid.tf.intra.op.threads"),
+                Registry.intValue("astrid.tf.inter.op.threads"),
+                Registry.intValue("astrid.inference.threads")
+        )
+
+        /**
+         * Parses configs written as `intra:inter:inference`, e.g. `2:1:1`.
+         */
+        fun parse(value: String): SessionConfig {
+            val parts = value.split(':').map { it.trim().toInt() }
+            require(parts.size == 3) { "Session config has to be written as intra:inter:inference, got \"$value\"" }
+            return SessionConfig(parts[0], parts[1], parts[2])
+        }
+
+        private fun writeVarintField(out: ByteArrayOutputStream, field: Int, value: Int) {
+            if (value <= 0) return
+            writeVarint(out, field shl 3) // wire type 0 (varint)
+            writeVarint(out, value)
+        }
+
+        private fun writeVarint(out: ByteArrayOutputStream, value: Int) {
+            var rest = value
+            while (rest and 0x7F.inv() != 0) {
+                out.write((rest and 0x7F) or 0x80)
+                rest = rest ushr 7
+            }
+            out.write(rest)
+        }
+    }
+}
@@ -1,52 +0,0 @@
-package org.jetbrains.astrid.utils
-
-import java.io.BufferedOutputStream
-import java.io.File
-import java.io.FileInputStream
-import java.io.FileOutputStream
-import java.util.zip.ZipEntry
-import java.util.zip.ZipInputStream
-
-object FileUtils {
-
-    private const val BUFFER_SIZE = 4096
-
-    /**
-     * Extracts a zip file specified by the zipFilePath to a directory specified by
-     * destDirectory (will be created if does not exists)
-     */
-    fun unzip(zipFilePath: String, destDirectory: String) {
-        val destDir = File(destDirectory)
-        if (!destDir.exists()) {
-            destDir.mkdir()
-        }
-        val zipIn = ZipInputStream(FileInputStream(zipFilePath))
-        var entry: ZipEntry? = zipIn.nextEntry
-        while (entry != null) {
-            val filePath = destDirectory + File.separator + entry.name
-            if (!entry.isDirectory) {
-                extractFile(zipIn, filePath)
-            } else {
-                val dir = File(filePath)
-                dir.mkdir()
-            }
-            zipIn.closeEntry()
-            entry = zipIn.nextEntry
-        }
-        zipIn.close()
-    }
-
-    /**
-     * Extracts a zip entry (file entry)
-     */
-    private fun extractFile(zipIn: ZipInputStream, filePath: String) {
-        val bos = BufferedOutputStream(FileOutputStream(filePath))
-        val bytesIn = ByteArray(BUFFER_SIZE)
-        var read = 0
-        while (read != -1) {
-            bos.write(bytesIn, 0, read)
-            read = zipIn.read(bytesIn)
-        }
-        bos.close()
-    }
-}
\ No newline at end of file
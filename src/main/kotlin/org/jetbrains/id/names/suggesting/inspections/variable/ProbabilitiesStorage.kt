@@ -3,10 +3,17 @@ package org.jetbrains.id.names.suggesting.inspections.variable
 import com.intellij.psi.PsiNameIdentifierOwner
 import com.intellij.psi.SmartPointerManager
 import com.intellij.psi.SmartPsiElementPointer
+import org.jetbrains.id.names.suggesting.MemoryBudgetManager
+import java.util.concurrent.ConcurrentHashMap
 
 class ProbabilitiesStorage {
     companion object {
-        private var map: HashMap<SmartPsiElementPointer<PsiNameIdentifierOwner>, Probability> = HashMap()
+        private const val BYTES_PER_ENTRY = 256L
+        private val map = ConcurrentHashMap<SmartPsiElementPointer<PsiNameIdentifierOwner>, Probability>()
+
+        init {
+            MemoryBudgetManager.getInstance().registerCache("variable probabilities", map, BYTES_PER_ENTRY)
+        }
 
         fun getProbability(element: PsiNameIdentifierOwner): Probability? {
             val pointer = SmartPointerManager.getInstance(element.project).createSmartPsiElementPointer(element)
@@ -19,7 +26,7 @@ class ProbabilitiesStorage {
 
         fun put(element: PsiNameIdentifierOwner, probability: Probability) {
             val pointer = SmartPointerManager.getInstance(element.project).createSmartPsiElementPointer(element)
-            if (map.contains(pointer)) {
+            if (map.containsKey(pointer)) {
                 map.replace(pointer, probability)
             } else {
                 map.put(pointer, probability)
@@ -28,7 +35,7 @@ class ProbabilitiesStorage {
 
         fun contains(element: PsiNameIdentifierOwner): Boolean {
             val pointer = SmartPointerManager.getInstance(element.project).createSmartPsiElementPointer(element)
-            return map.contains(pointer)
+            return map.containsKey(pointer)
         }
 
         fun needRecalculate(element: PsiNameIdentifierOwner): Boolean {
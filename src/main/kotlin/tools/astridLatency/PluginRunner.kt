@@ -0,0 +1,112 @@
+package tools.astridLatency
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.intellij.ide.highlighter.JavaFileType
+import com.intellij.ide.impl.ProjectUtil
+import com.intellij.openapi.application.ApplicationStarter
+import com.intellij.openapi.project.Project
+import com.intellij.psi.PsiManager
+import com.intellij.psi.PsiMethod
+import com.intellij.psi.SyntaxTraverser
+import com.intellij.psi.search.FileTypeIndex
+import com.intellij.psi.search.GlobalSearchScope
+import org.jetbrains.astrid.model.ModelFacade
+import org.jetbrains.astrid.model.SessionConfig
+import org.jetbrains.astrid.utils.PsiUtils
+import java.io.File
+import java.nio.file.Path
+import java.nio.file.Paths
+import kotlin.system.exitProcess
+
+/**
+ * Measures latency of method names inspection at different TensorFlow session settings.
+ * Usage: `astridLatency <dataset> <saveDir> [intra:inter:inference,...]`.
+ * Every setting is measured on the same corpus of methods: the first [maxMethods] method bodies
+ * of the dataset projects, files taken in path order.
+ */
+class PluginRunner : ApplicationStarter {
+    private val maxMethods = 500
+    private val warmUpMethods = 20
+    private val defaultConfigs = listOf("1:1:1", "2:1:1", "4:2:1", "4:2:2", "0:0:1")
+
+    override fun getCommandName(): String = "astridLatency"
+
+    override fun main(args: Array<out String>) {
+        try {
+            val dataset = File(args[1])
+            val saveDir = Paths.get(args[2])
+            val configs = (if (args.size > 3) args[3].split(',') else defaultConfigs).map(SessionConfig::parse)
+            val corpus = collectCorpus(dataset)
+            println("Corpus size: ${corpus.size} methods")
+            benchmark(corpus, configs, saveDir)
+        } catch (e: OutOfMemoryError) {
+            println("Not enough memory!")
+            e.printStackTrace()
+        } catch (e: Exception) {
+            e.printStackTrace()
+        } finally {
+            exitProcess(0)
+        }
+    }
+
+    private fun collectCorpus(dataset: File): List<String> {
+        val corpus = ArrayList<String>()
+        var projectToClose: Project? = null
+        val projectList = dataset.list { dir, _ -> dir.isDirectory }?.sorted() ?: return corpus
+        for (projectDir in projectList) {
+            if (corpus.size >= maxMethods) break
+            println("Opening project $projectDir...")
+            val project = ProjectUtil.openOrImport(dataset.resolve(projectDir).path, projectToClose, true) ?: continue
+            val psiManager = PsiManager.getInstance(project)
+            val files = FileTypeIndex.getFiles(JavaFileType.INSTANCE, GlobalSearchScope.projectScope(project))
+                .sortedBy { it.path }
+            for (file in files) {
+                if (corpus.size >= maxMethods) break
+                val psiFile = psiManager.findFile(file) ?: continue
+                SyntaxTraverser.psiTraverser()
+                    .withRoot(psiFile)
+                    .filter(PsiMethod::class.java)
+                    .filter { method -> method.body != null && !method.isConstructor }
+                    .forEach { method -> if (corpus.size < maxMethods) corpus.add(PsiUtils.getMethodBody(method)) }
+            }
+            projectToClose = project
+        }
+        if (projectToClose != null) {
+            ProjectUtil.closeAndDispose(projectToClose)
+        }
+        return corpus
+    }
+
+    private fun benchmark(corpus: List<String>, configs: List<SessionConfig>, dir: Path) {
+        val results = LinkedHashMap<String, Map<String, Double>>()
+        for (config in configs) {
+            println("Measuring $config...")
+            ModelFacade.configure(config)
+            corpus.take(warmUpMethods).forEach { ModelFacade().getSuggestions(it) }
+            val latencies = DoubleArray(corpus.size)
+            for ((i, methodBody) in corpus.withIndex()) {
+                val start = System.nanoTime()
+                ModelFacade().getSuggestions(methodBody)
+                latencies[i] = (System.nanoTime() - start) / 1e6
+            }
+            results[config.toString()] = summarize(latencies)
+            println("${config}: ${results[config.toString()]}")
+        }
+        val resultFile = dir.resolve("astrid_latency.json").toFile()
+        resultFile.parentFile.mkdirs()
+        resultFile.writeText(ObjectMapper().writerWithDefaultPrettyPrinter().writeValueAsString(results))
+    }
+
+    private fun summarize(latencies: DoubleArray): Map<String, Double> {
+        val sorted = latencies.sortedArray()
+        fun percentile(p: Double): Double =
+            if (sorted.isEmpty()) 0.0 else sorted[Math.min(sorted.size - 1, (p * sorted.size).toInt())]
+        return linkedMapOf(
+            "mean (ms)" to (if (sorted.isEmpty()) 0.0 else sorted.average()),
+            "p50 (ms)" to percentile(0.5),
+            "p90 (ms)" to percentile(0.9),
+            "p99 (ms)" to percentile(0.99),
+            "max (ms)" to (sorted.lastOrNull() ?: 0.0)
+        )
+    }
+}
@@ -0,0 +1,81 @@
+package tools.evaluation
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import java.io.File
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.DoubleAdder
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * Exact-match top-1, top-5 accuracy and MRR of the models, overall and by PSI interface of the variable,
+ * accumulated as predictions are made. Only counters are kept, so memory does not grow with the evaluation.
+ */
+class AccuracyMetrics {
+    private val counters = ConcurrentHashMap<String, ConcurrentHashMap<String, Counters>>()
+
+    /**
+     * @param names predicted names from the most to the least probable.
+     */
+    fun record(model: String, psiInterface: String, groundTruth: String, names: List<Any>) {
+        val rank = names.indexOf(groundTruth) + 1
+        val byInterface = counters.computeIfAbsent(model) { ConcurrentHashMap() }
+        byInterface.computeIfAbsent(ALL) { Counters() }.add(rank)
+        byInterface.computeIfAbsent(psiInterface) { Counters() }.add(rank)
+    }
+
+    /**
+     * Writes `{model: {count, top1, top5, mrr, byPsiInterface: {interface: {count, top1, top5, mrr}}}}`.
+     */
+    fun write(file: File) {
+        val metrics = counters.toSortedMap().mapValues { (_, byInterface) ->
+            val modelMetrics = byInterface[ALL]?.summary() ?: linkedMapOf()
+            modelMetrics["byPsiInterface"] = byInterface.filterKeys { it != ALL }
+                .toSortedMap()
+                .mapValues { (_, counters) -> counters.summary() }
+            modelMetrics
+        }
+        ObjectMapper().writerWithDefaultPrettyPrinter().writeValue(file, metrics)
+    }
+
+    fun printSummary() {
+        for ((model, byInterface) in counters.toSortedMap()) {
+            val all = byInterface[ALL] ?: continue
+            System.out.printf(
+                "%s: top1 %.4f;\ttop5 %.4f;\tMRR %.4f;\tvariables %d\n",
+                model, all.top1(), all.top5(), all.mrr(), all.count.sum()
+            )
+        }
+    }
+
+    private class Counters {
+        val count = LongAdder()
+        val top1 = LongAdder()
+        val top5 = LongAdder()
+        val reciprocalRanks = DoubleAdder()
+
+        fun add(rank: Int) {
+            count.increment()
+            if (rank == 0) return
+            if (rank == 1) top1.increment()
+            if (rank <= 5) top5.increment()
+            reciprocalRanks.add(1.0 / rank)
+        }
+
+        fun top1(): Double = ratio(top1.sum().toDouble())
+        fun top5(): Double = ratio(top5.sum().toDouble())
+        fun mrr(): Double = ratio(reciprocalRanks.sum())
+
+        private fun ratio(value: Double): Double = count.sum().let { if (it == 0L) 0.0 else value / it }
+
+        fun summary(): MutableMap<String, Any> = linkedMapOf(
+            "count" to count.sum(),
+            "top1" to top1(),
+            "top5" to top5(),
+            "mrr" to mrr()
+        )
+    }
+
+    companion object {
+        private const val ALL = ""
+    }
+}
@@ -0,0 +1,116 @@
+package tools.evaluation
+
+import com.intellij.ide.impl.ProjectUtil
+import com.intellij.openapi.application.ReadAction
+import com.intellij.openapi.project.Project
+import com.intellij.openapi.vfs.VirtualFile
+import com.intellij.psi.PsiFile
+import com.intellij.psi.PsiManager
+import com.intellij.util.ConcurrencyUtil
+import com.jetbrains.rd.util.string.printToString
+import java.io.File
+import java.time.Duration
+import java.time.Instant
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Evaluates projects of a dataset. A project is evaluated on a background thread while the next one is opened,
+ * so at most two projects are open at once. Files of a project are evaluated by a pool of workers,
+ * every file is read in its own read action.
+ */
+class EvaluationScheduler(private val threads: Int = Runtime.getRuntime().availableProcessors()) {
+    fun evaluate(dataset: File, projectList: List<String>, evaluateProject: (Project) -> Unit) {
+        val projectExecutor = Executors.newSingleThreadExecutor(ConcurrencyUtil.newNamedThreadFactory("Project Evaluator"))
+        try {
+            var current: Pair<Project, Future<*>>? = null
+            for (projectDir in projectList) {
+                println("Opening project $projectDir...")
+                val project = ProjectUtil.openOrImport(dataset.resolve(projectDir).path, null, true)
+                current?.let { finish(it.first, it.second) }
+                current = if (project != null) project to projectExecutor.submit { evaluateProject(project) } else null
+            }
+            current?.let { finish(it.first, it.second) }
+        } finally {
+            projectExecutor.shutdownNow()
+        }
+    }
+
+    private fun finish(project: Project, evaluation: Future<*>) {
+        try {
+            evaluation.get()
+        } catch (e: ExecutionException) {
+            println("Evaluation of ${project.name} failed")
+            e.cause?.printStackTrace()
+        }
+        ProjectUtil.closeAndDispose(project)
+    }
+
+    /**
+     * Evaluates the files on the pool of workers and passes non-null results to the consumer
+     * in the order they are ready, the consumer must be thread-safe.
+     * <p>
+     * Only [extract] runs in a read action. The read action is non-blocking, so a write action, e.g. opening
+     * of the next project, cancels it instead of waiting for it, and [extract] is restarted afterwards. So [extract]
+     * must only read the PSI, a model it changes must be restored also when it is cancelled, see [LocalModels],
+     * and anything recorded goes to [evaluate]. Its result is passed to [evaluate] after the read action ends,
+     * so [evaluate] may block, e.g. while requests to a model server are in flight.
+     */
+    fun <S, T> evaluateFiles(
+        project: Project,
+        files: List<VirtualFile>,
+        extract: (PsiFile) -> S?,
+        evaluate: (S) -> T?,
+        consumer: (VirtualFile, T) -> Unit
+    ) {
+        val psiManager = PsiManager.getInstance(project)
+        val total = files.size
+        val progress = AtomicInteger()
+        val nextFile = AtomicInteger()
+        val start = Instant.now()
+        println("Number of files to parse: $total")
+        val executor = Executors.newFixedThreadPool(threads, ConcurrencyUtil.newNamedThreadFactory("File Evaluator"))
+        try {
+            val workers = (0 until threads).map {
+                executor.submit {
+                    var i = nextFile.getAndIncrement()
+                    while (i < total) {
+                        val file = files[i]
+                        val extracted = ReadAction.nonBlocking(Callable { psiManager.findFile(file)?.let(extract) })
+                            .expireWith(project)
+                            .executeSynchronously()
+                        val result = extracted?.let(evaluate)
+                        if (result != null) consumer(file, result)
+                        printProgress(progress.incrementAndGet(), total, start)
+                        i = nextFile.getAndIncrement()
+                    }
+                }
+            }
+            workers.forEach { it.get() }
+        } finally {
+            executor.shutdownNow()
+        }
+        System.out.printf(
+            "Done in %s\n",
+            Duration.between(start, Instant.now()).printToString()
+        )
+    }
+
+    @Synchronized
+    private fun printProgress(progress: Int, total: Int, start: Instant) {
+        val fraction = progress / total.toDouble()
+        if (total < 100 || progress % (total / 100) == 0) {
+            val timeSpent = Duration.between(start, Instant.now())
+            val timeLeft = Duration.ofSeconds((timeSpent.toSeconds() * (1 / fraction - 1)).toLong())
+            System.out.printf(
+                "Status: %.0f%%;\tTime spent: %s;\tTime left: %s\r",
+                fraction * 100.0,
+                timeSpent.printToString(),
+                timeLeft.printToString()
+            )
+        }
+    }
+}
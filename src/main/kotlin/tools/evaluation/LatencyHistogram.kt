@@ -0,0 +1,77 @@
+package tools.evaluation
+
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * Histogram of latencies in microseconds with log-linear buckets like in HdrHistogram: values below 128 µs are counted
+ * exactly, every larger power of two is split into 64 buckets, so a reported percentile exceeds the real one
+ * by less than 2%. Recording is lock-free, memory is fixed.
+ */
+class LatencyHistogram {
+    private val counts = AtomicLongArray(BUCKET_COUNT)
+    private val totalCount = AtomicLong()
+    private val maxValue = AtomicLong()
+
+    fun record(seconds: Double) {
+        val micros = (seconds * 1e6).toLong().coerceIn(0, MAX_VALUE)
+        counts.incrementAndGet(bucketOf(micros))
+        totalCount.incrementAndGet()
+        maxValue.accumulateAndGet(micros) { a, b -> Math.max(a, b) }
+    }
+
+    val count: Long
+        get() = totalCount.get()
+
+    /**
+     * @return upper bound of the bucket which contains the percentile, in milliseconds.
+     */
+    fun percentile(percentile: Double): Double {
+        val total = totalCount.get()
+        if (total == 0L) return 0.0
+        val target = Math.max(1, Math.ceil(percentile / 100 * total).toLong())
+        var seen = 0L
+        for (bucket in 0 until BUCKET_COUNT) {
+            seen += counts.get(bucket)
+            if (seen >= target) return Math.min(highestValueOf(bucket), maxValue.get()) / 1e3
+        }
+        return maxValue.get() / 1e3
+    }
+
+    fun summary(): Map<String, Any> = linkedMapOf(
+        "count" to count,
+        "p50" to percentile(50.0),
+        "p90" to percentile(90.0),
+        "p99" to percentile(99.0),
+        "max" to maxValue.get() / 1e3
+    )
+
+    companion object {
+        private const val SUB_BUCKET_BITS = 7
+        private const val SUB_BUCKET_COUNT = 1 shl SUB_BUCKET_BITS
+        private const val SUB_BUCKET_HALF = SUB_BUCKET_COUNT / 2
+        private const val MAX_VALUE = (1L shl 40) - 1 // about 12 days
+        private const val BUCKET_COUNT = SUB_BUCKET_COUNT + (40 - SUB_BUCKET_BITS + 1) * SUB_BUCKET_HALF
+
+        /**
+         * @return index of the bucket which counts [value] in microseconds.
+         */
+        @JvmStatic
+        fun bucketOf(value: Long): Int {
+            if (value < SUB_BUCKET_COUNT) return value.toInt()
+            val shift = 63 - java.lang.Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1)
+            return SUB_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_HALF + (value shr shift).toInt() - SUB_BUCKET_HALF
+        }
+
+        /**
+         * @return the largest value in microseconds which [bucket] counts.
+         */
+        @JvmStatic
+        fun highestValueOf(bucket: Int): Long {
+            if (bucket < SUB_BUCKET_COUNT) return bucket.toLong()
+            val shift = (bucket - SUB_BUCKET_COUNT) / SUB_BUCKET_HALF + 1
+            val subBucket = (bucket - SUB_BUCKET_COUNT) % SUB_BUCKET_HALF + SUB_BUCKET_HALF
+            return ((subBucket + 1L) shl shift) - 1
+        }
+    }
+}
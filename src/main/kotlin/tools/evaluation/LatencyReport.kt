@@ -0,0 +1,77 @@
+package tools.evaluation
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import java.io.File
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Latencies of the models of an evaluation: a [LatencyHistogram] per model over all variables, by size of the file
+ * and by number of usages of the variable. Workers record concurrently.
+ */
+class LatencyReport {
+    private val histograms = ConcurrentHashMap<String, ConcurrentHashMap<String, LatencyHistogram>>()
+
+    fun record(model: String, seconds: Double, fileLength: Long, usageCount: Int) {
+        histogram(model, ALL).record(seconds)
+        histogram(model, FILE_SIZE + fileSizeBucket(fileLength)).record(seconds)
+        histogram(model, USAGES + usageBucket(usageCount)).record(seconds)
+    }
+
+    private fun histogram(model: String, key: String): LatencyHistogram =
+        histograms.computeIfAbsent(model) { ConcurrentHashMap() }.computeIfAbsent(key) { LatencyHistogram() }
+
+    /**
+     * Writes `{model: {all: summary, fileSize: {bucket: summary}, usages: {bucket: summary}}}`,
+     * latencies are in milliseconds.
+     */
+    fun write(file: File) {
+        val report = histograms.toSortedMap().mapValues { (_, byKey) ->
+            linkedMapOf(
+                "all" to byKey[ALL]?.summary(),
+                "fileSize" to bucketSummaries(byKey, FILE_SIZE, FILE_SIZE_BUCKETS),
+                "usages" to bucketSummaries(byKey, USAGES, USAGE_BUCKETS)
+            )
+        }
+        ObjectMapper().writerWithDefaultPrettyPrinter().writeValue(file, report)
+    }
+
+    private fun bucketSummaries(
+        byKey: Map<String, LatencyHistogram>,
+        prefix: String,
+        buckets: List<String>
+    ): Map<String, Any> = buckets
+        .mapNotNull { bucket -> byKey[prefix + bucket]?.let { bucket to it.summary() } }
+        .toMap(linkedMapOf())
+
+    fun printSummary() {
+        for ((model, byKey) in histograms.toSortedMap()) {
+            val all = byKey[ALL] ?: continue
+            System.out.printf(
+                "%s latency: p50 %.2f ms;\tp90 %.2f ms;\tp99 %.2f ms;\tmax %.2f ms\n",
+                model, all.percentile(50.0), all.percentile(90.0), all.percentile(99.0), all.percentile(100.0)
+            )
+        }
+    }
+
+    companion object {
+        private const val ALL = "all"
+        private const val FILE_SIZE = "fileSize:"
+        private const val USAGES = "usages:"
+
+        private val FILE_SIZE_BUCKETS = listOf("0-1KB", "1-4KB", "4-16KB", "16-64KB", "64KB+")
+        private val USAGE_BUCKETS = listOf("0", "1", "2-3", "4-7", "8-15", "16+")
+
+        private fun fileSizeBucket(length: Long): String = FILE_SIZE_BUCKETS[
+            when {
+                length < 1024 -> 0
+                length < 4 * 1024 -> 1
+                length < 16 * 1024 -> 2
+                length < 64 * 1024 -> 3
+                else -> 4
+            }
+        ]
+
+        private fun usageBucket(count: Int): String =
+            USAGE_BUCKETS[if (count < 2) count else Math.min(32 - Integer.numberOfLeadingZeros(count), 5)]
+    }
+}
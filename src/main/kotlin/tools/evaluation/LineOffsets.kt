@@ -0,0 +1,35 @@
+package tools.evaluation
+
+import com.intellij.psi.PsiFile
+
+/**
+ * Start offsets of the lines of a text, computed once per file so that line positions of its identifiers
+ * are found by a binary search without creating a document or an editor.
+ */
+class LineOffsets(text: CharSequence) {
+    private val lineStarts: IntArray
+
+    init {
+        var lines = 1
+        for (i in text.indices) {
+            if (text[i] == '\n') lines++
+        }
+        lineStarts = IntArray(lines)
+        var line = 1
+        for (i in text.indices) {
+            if (text[i] == '\n') lineStarts[line++] = i + 1
+        }
+    }
+
+    /**
+     * @return zero-based line which contains the offset, the same as [com.intellij.openapi.editor.Document.getLineNumber].
+     */
+    fun getLineNumber(offset: Int): Int {
+        val index = lineStarts.binarySearch(offset)
+        return if (index >= 0) index else -index - 2
+    }
+
+    companion object {
+        fun of(file: PsiFile): LineOffsets = LineOffsets(file.viewProvider.contents)
+    }
+}
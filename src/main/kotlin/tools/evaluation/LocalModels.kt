@@ -0,0 +1,42 @@
+package tools.evaluation
+
+import com.intellij.psi.PsiFile
+import org.jetbrains.id.names.suggesting.ProjectModelStore
+import org.jetbrains.id.names.suggesting.api.VariableNamesContributor
+import org.jetbrains.id.names.suggesting.contributors.ProjectVariableNamesContributor
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+
+/**
+ * Access of the evaluators to the local models. Predictions of the global models only read them, so workers
+ * make them at once. The project model forgets the file while its variables are predicted, so files are predicted
+ * with it one at a time.
+ */
+object LocalModels {
+    private val projectModelLock = ReentrantLock()
+
+    /**
+     * Fails if the project model isn't available, e.g. while it is loaded again, so the file isn't evaluated
+     * without it and the next run picks it up. The file is forgotten and learned back by the indices of its tokens,
+     * so the model is restored without reading the PSI, also if the read action is cancelled meanwhile.
+     */
+    fun <T> withLocalModels(
+        file: PsiFile,
+        ngramContributorClass: Class<out VariableNamesContributor>,
+        predict: () -> T
+    ): T {
+        if (ngramContributorClass != ProjectVariableNamesContributor::class.java) return predict()
+        // The same runner learns the file back even if the store replaces its model meanwhile
+        val modelRunner = ProjectModelStore.getInstance(file.project).getModelRunner()
+            ?: throw IllegalStateException("Project model of ${file.project.name} isn't loaded")
+        return projectModelLock.withLock {
+            val tokens = modelRunner.lexToIndices(file)
+            modelRunner.forgetTokens(tokens)
+            try {
+                predict()
+            } finally {
+                modelRunner.learnTokens(tokens)
+            }
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package tools.evaluation
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.intellij.openapi.diagnostic.logger
+import com.intellij.util.ConcurrencyUtil
+import com.intellij.util.io.HttpRequests
+import java.io.Closeable
+import java.io.IOException
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.Executors
+import java.util.concurrent.Semaphore
+import java.util.concurrent.TimeUnit
+
+/**
+ * Client of a model server which predicts batches of samples: a request is a JSON array of samples,
+ * the response is a JSON array of predictions in the same order. Samples of all workers are collected into batches
+ * of [batchSize] and at most [maxRequestsInFlight] batches are sent at once, [predict] blocks while all of them
+ * are in flight, so it must not be called in a read action. A prediction is null if its request failed.
+ */
+class ModelServerClient<T>(
+    private val url: String,
+    private val encode: (List<T>) -> String,
+    private val batchSize: Int = 64,
+    private val maxRequestsInFlight: Int = 4
+) : Closeable {
+    private val mapper = ObjectMapper()
+    private val requestsInFlight = Semaphore(maxRequestsInFlight)
+    private val executor = Executors.newFixedThreadPool(
+        maxRequestsInFlight,
+        ConcurrencyUtil.newNamedThreadFactory("Model Server Client")
+    )
+    private var batch = ArrayList<PendingSample<T>>(batchSize)
+
+    fun predict(sample: T): CompletableFuture<ServerPrediction> {
+        val pending = PendingSample(sample, System.nanoTime())
+        val fullBatch = synchronized(this) {
+            batch.add(pending)
+            if (batch.size < batchSize) null else takeBatch()
+        }
+        if (fullBatch != null) send(fullBatch)
+        return pending.future
+    }
+
+    /**
+     * Sends the samples which wait for their batch to fill, must be called when no more samples are coming.
+     */
+    fun flush() {
+        val rest = synchronized(this) { if (batch.isEmpty()) null else takeBatch() }
+        if (rest != null) send(rest)
+    }
+
+    private fun takeBatch(): List<PendingSample<T>> {
+        val taken = batch
+        batch = ArrayList(batchSize)
+        return taken
+    }
+
+    private fun send(samples: List<PendingSample<T>>) {
+        requestsInFlight.acquire()
+        executor.execute {
+            try {
+                val predictions = try {
+                    request(samples.map { it.sample })
+                } catch (e: IOException) {
+                    LOG.warn("Request to $url failed", e)
+                    null
+                }
+                val end = System.nanoTime()
+                samples.forEachIndexed { i, sample ->
+                    sample.future.complete(ServerPrediction(predictions?.getOrNull(i), (end - sample.start) / 1e9))
+                }
+            } catch (e: Throwable) {
+                samples.forEach { it.future.completeExceptionally(e) }
+            } finally {
+                requestsInFlight.release()
+            }
+        }
+    }
+
+    private fun request(samples: List<T>): List<*> {
+        val body = encode(samples)
+        return HttpRequests.post(url, HttpRequests.JSON_CONTENT_TYPE)
+            .connect(HttpRequests.RequestProcessor {
+                it.write(body)
+                mapper.readValue(it.readString(), List::class.java)
+            })
+    }
+
+    override fun close() {
+        flush()
+        executor.shutdown()
+        executor.awaitTermination(1, TimeUnit.MINUTES)
+    }
+
+    companion object {
+        private val LOG = logger<ModelServerClient<*>>()
+    }
+}
+
+/**
+ * @param responseTime seconds from the submission of the sample to the response, i.e. including the time
+ * the sample waited for its batch.
+ */
+class ServerPrediction(val prediction: Any?, val responseTime: Double)
+
+private class PendingSample<T>(val sample: T, val start: Long) {
+    val future = CompletableFuture<ServerPrediction>()
+}
@@ -0,0 +1,83 @@
+package tools.evaluation
+
+import com.fasterxml.jackson.core.JsonProcessingException
+import com.fasterxml.jackson.databind.JsonNode
+import com.fasterxml.jackson.databind.ObjectMapper
+import java.io.BufferedWriter
+import java.io.Closeable
+import java.io.File
+import java.io.FileOutputStream
+import java.io.RandomAccessFile
+
+/**
+ * Appends predictions of files as JSON lines `{"<path>": predictions}` through one buffered writer
+ * which is shared by the workers. The file is its own checkpoint: files which already have a line
+ * are [predictedPaths] and their predictions are passed to [onPredicted], so aggregates over the predictions
+ * can be restored, an incomplete last line of an interrupted evaluation is truncated.
+ */
+class PredictionWriter(
+    file: File,
+    private val flushEvery: Int = 64,
+    onPredicted: (path: String, predictions: JsonNode) -> Unit = { _, _ -> }
+) : Closeable {
+    private val mapper = ObjectMapper()
+    val predictedPaths = HashSet<String>()
+    private val writer: BufferedWriter
+    private var unflushed = 0
+
+    init {
+        file.parentFile.mkdirs()
+        if (file.exists()) {
+            RandomAccessFile(file, "rw").use { it.setLength(findEndOfLastLine(it)) }
+            file.bufferedReader().useLines { lines ->
+                for (line in lines) {
+                    if (line.isEmpty()) continue
+                    val entry = try {
+                        mapper.readTree(line).fields().next()
+                    } catch (e: JsonProcessingException) {
+                        continue
+                    }
+                    predictedPaths.add(entry.key)
+                    onPredicted(entry.key, entry.value)
+                }
+            }
+        }
+        writer = FileOutputStream(file, true).bufferedWriter()
+    }
+
+    /**
+     * Scans back from the end of the file, so the file isn't read as a whole.
+     */
+    private fun findEndOfLastLine(file: RandomAccessFile): Long {
+        val buffer = ByteArray(64 * 1024)
+        var end = file.length()
+        while (end > 0) {
+            val start = maxOf(0, end - buffer.size)
+            val length = (end - start).toInt()
+            file.seek(start)
+            file.readFully(buffer, 0, length)
+            for (i in length - 1 downTo 0) {
+                if (buffer[i] == '\n'.toByte()) return start + i + 1
+            }
+            end = start
+        }
+        return 0
+    }
+
+    fun write(path: String, predictions: Any) {
+        val line = mapper.writeValueAsString(mapOf(path to predictions))
+        synchronized(this) {
+            writer.write(line)
+            writer.newLine()
+            if (++unflushed >= flushEvery) {
+                writer.flush()
+                unflushed = 0
+            }
+        }
+    }
+
+    @Synchronized
+    override fun close() {
+        writer.close()
+    }
+}
@@ -0,0 +1,54 @@
+package tools.evaluation
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.sun.net.httpserver.HttpServer
+import java.io.Closeable
+import java.net.InetSocketAddress
+import java.util.concurrent.Executors
+
+/**
+ * Local stand-in for the transformer and GNN servers which speaks the batch protocol of [ModelServerClient]:
+ * every sample of a request gets the same prediction after [delayMillis], so the evaluation pipeline
+ * runs without the models. Port 0 picks a free port, see [url].
+ */
+class StubModelServer(port: Int = 5000, private val delayMillis: Long = 0) : Closeable {
+    private val mapper = ObjectMapper()
+    private val server = HttpServer.create(InetSocketAddress("127.0.0.1", port), 0)
+    private val executor = Executors.newCachedThreadPool()
+    val url: String
+        get() = "http://127.0.0.1:${server.address.port}/"
+
+    init {
+        server.executor = executor
+        server.createContext("/") { exchange ->
+            try {
+                val samples = mapper.readValue(exchange.requestBody, List::class.java)
+                if (delayMillis > 0) Thread.sleep(delayMillis)
+                val response = mapper.writeValueAsBytes(samples.map { STUB_PREDICTION })
+                exchange.responseHeaders.add("Content-Type", "application/json")
+                exchange.sendResponseHeaders(200, response.size.toLong())
+                exchange.responseBody.write(response)
+            } finally {
+                exchange.close()
+            }
+        }
+        server.start()
+    }
+
+    override fun close() {
+        server.stop(0)
+        executor.shutdown()
+    }
+
+    companion object {
+        private val STUB_PREDICTION = listOf(mapOf("name" to "stub", "p" to 1.0))
+
+        @JvmStatic
+        fun main(args: Array<String>) {
+            val port = args.getOrNull(0)?.toInt() ?: 5000
+            val delayMillis = args.getOrNull(1)?.toLong() ?: 0
+            StubModelServer(port, delayMillis)
+            println("Stub model server is listening on 127.0.0.1:$port")
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package tools.evaluation
+
+import com.intellij.psi.PsiFile
+import com.intellij.psi.PsiVariable
+import org.jetbrains.id.names.suggesting.utils.ResolvedIdentifiers
+
+/**
+ * Numbers of references to the variables of a file, counted in one pass over its identifiers.
+ */
+class UsageCounts(file: PsiFile) {
+    private val resolvedIdentifiers = ResolvedIdentifiers.getInstance(file)
+    private val counts = HashMap<Int, Int>()
+
+    init {
+        resolvedIdentifiers.resolveAll { identifier, id ->
+            val parent = identifier.parent
+            val isDeclaration = parent is PsiVariable && parent.nameIdentifier == identifier
+            if (!isDeclaration && id != ResolvedIdentifiers.NO_DECLARATION) counts.merge(id, 1, Int::plus)
+        }
+    }
+
+    fun of(variable: PsiVariable): Int = counts[resolvedIdentifiers.getVariableId(variable)] ?: 0
+}
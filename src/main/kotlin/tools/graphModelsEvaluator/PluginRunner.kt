@@ -4,6 +4,8 @@ import com.intellij.ide.impl.ProjectUtil
 import com.intellij.openapi.application.ApplicationStarter
 import com.intellij.openapi.project.Project
 import org.jetbrains.id.names.suggesting.IdNamesSuggestingModelManager
+import tools.evaluation.EvaluationScheduler
+import tools.evaluation.StubModelServer
 import java.io.File
 import java.nio.file.Path
 import java.nio.file.Paths
@@ -25,8 +27,14 @@ class PluginRunner : ApplicationStarter {
             val dataset = File(args[1])
             val saveDir = args[2]
             val ngramContributorType = args[3]
-            if (ngramContributorType == "global") trainGlobalNGramModelOn(dataset, javaSmallTrain)
-            evaluateOn(dataset, javaSmallTest, Paths.get(saveDir), ngramContributorType)
+            val scheduler = EvaluationScheduler(args.getOrNull(4)?.toInt() ?: Runtime.getRuntime().availableProcessors())
+            // Evaluates the pipeline offline, the model server answers every sample with the same name
+            val stubServer = if (args.getOrNull(5) == "stub") StubModelServer(0) else null
+            stubServer.use {
+                val serverUrl = stubServer?.url ?: GraphVarNamer.GNN_SERVER_URL
+                if (ngramContributorType == "global") trainGlobalNGramModelOn(dataset, javaSmallTrain)
+                evaluateOn(dataset, javaSmallTest, Paths.get(saveDir), ngramContributorType, scheduler, serverUrl)
+            }
         } catch (e: OutOfMemoryError) {
             println("Not enough memory!")
             e.printStackTrace()
@@ -58,24 +66,17 @@ class PluginRunner : ApplicationStarter {
         dataset: File,
         projectList: List<String>,
         dir: Path,
-        ngramContributorType: String
+        ngramContributorType: String,
+        scheduler: EvaluationScheduler,
+        serverUrl: String
     ) {
         println("Evaluating models...")
-        var projectToClose: Project? = null
-        for (projectDir in projectList) {
-            val projectPath = dataset.resolve(projectDir)
-            println("Opening project $projectDir...")
-            val project = ProjectUtil.openOrImport(projectPath.path, projectToClose, true) ?: continue
-
+        scheduler.evaluate(dataset, projectList) { project ->
             if (ngramContributorType == "project") {
-                IdNamesSuggestingModelManager.getInstance().trainProjectNGramModel(project, null)
+                // Training reads the index in short read actions itself, so the next project opens meanwhile
+                IdNamesSuggestingModelManager.getInstance().trainProjectNGramModel(project, null, false)
             }
-            GraphVarNamer.predict(project, dir, ngramContributorType)
-
-            projectToClose = project
-        }
-        if (projectToClose != null) {
-            ProjectUtil.closeAndDispose(projectToClose)
+            GraphVarNamer.predict(project, dir, ngramContributorType, scheduler, serverUrl)
         }
     }
 }
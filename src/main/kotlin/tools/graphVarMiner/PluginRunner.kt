@@ -3,6 +3,8 @@ package tools.graphVarMiner
 import com.intellij.ide.impl.ProjectUtil
 import com.intellij.openapi.application.ApplicationStarter
 import com.intellij.openapi.project.Project
+import com.intellij.openapi.util.LowMemoryWatcher
+import com.intellij.psi.impl.source.resolve.ResolveCache
 import java.io.File
 import kotlin.system.exitProcess
 
@@ -14,6 +16,8 @@ class PluginRunner : ApplicationStarter {
         try {
             val dataset = File(args[1])
             val prefix = args[2]
+            val threads = args.getOrNull(3)?.toInt() ?: Runtime.getRuntime().availableProcessors()
+            val binary = args.getOrNull(4) == "binary"
             var projectToClose: Project? = null
             val projectList = dataset.list { dir, _ ->
                 return@list dir.isDirectory
@@ -28,13 +32,13 @@ class PluginRunner : ApplicationStarter {
                 val project = ProjectUtil.openOrImport(projectPath.path, projectToClose, true) ?: continue
                 println("Project is opened.")
 
-//                Clear cache if there is not enough RAM
-//                val memoryWathcer = LowMemoryWatcher.register {
-//                    println("Clear cache for $projectDir")
-//                    ResolveCache.getInstance(project).clearCache(true)
-//                }
-                GraphDatasetExtractor.build(project, prefix + "_$projectDir")
-//                memoryWathcer.stop()
+//                Workers share the resolve cache, so it is cleared only if there is not enough RAM
+                val memoryWatcher = LowMemoryWatcher.register {
+                    println("Clear cache for $projectDir")
+                    ResolveCache.getInstance(project).clearCache(true)
+                }
+                GraphDatasetExtractor.build(project, prefix + "_$projectDir", threads, binary)
+                memoryWatcher.stop()
 
                 println("Dataset for $projectDir is built.")
                 projectToClose = project
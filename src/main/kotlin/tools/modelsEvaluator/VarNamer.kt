@@ -1,20 +1,14 @@
 package tools.modelsEvaluator
 
-import com.fasterxml.jackson.core.JsonProcessingException
 import com.fasterxml.jackson.databind.ObjectMapper
 import com.intellij.ide.highlighter.JavaFileType
-import com.intellij.openapi.diagnostic.logger
-import com.intellij.openapi.editor.Editor
-import com.intellij.openapi.fileEditor.FileEditorManager
-import com.intellij.openapi.fileEditor.OpenFileDescriptor
+import com.intellij.openapi.application.runReadAction
+import com.intellij.openapi.progress.ProcessCanceledException
 import com.intellij.openapi.project.Project
 import com.intellij.openapi.util.TextRange
 import com.intellij.psi.*
 import com.intellij.psi.search.FileTypeIndex
 import com.intellij.psi.search.GlobalSearchScope
-import com.intellij.util.io.HttpRequests
-import com.jetbrains.rd.util.string.printToString
-import org.jetbrains.id.names.suggesting.IdNamesSuggestingModelManager
 import org.jetbrains.id.names.suggesting.VarNamePrediction
 import org.jetbrains.id.names.suggesting.api.VariableNamesContributor
 import org.jetbrains.id.names.suggesting.contributors.GlobalVariableNamesContributor
@@ -22,189 +16,194 @@ import org.jetbrains.id.names.suggesting.contributors.NGramVariableNamesContribu
 import org.jetbrains.id.names.suggesting.contributors.ProjectVariableNamesContributor
 import org.jetbrains.id.names.suggesting.naturalize.GlobalNaturalizeContributor
 import org.jetbrains.id.names.suggesting.naturalize.ProjectNaturalizeContributor
+import tools.evaluation.EvaluationScheduler
+import tools.evaluation.LatencyReport
+import tools.evaluation.LineOffsets
+import tools.evaluation.LocalModels.withLocalModels
+import tools.evaluation.ModelServerClient
+import tools.evaluation.PredictionWriter
+import tools.evaluation.UsageCounts
 import tools.varMiner.DatasetExtractor
+import tools.varMiner.VariableFeatures
 import java.io.File
-import java.io.FileOutputStream
+import java.io.IOException
 import java.nio.file.Path
-import java.time.Duration
-import java.time.Instant
-import kotlin.streams.asSequence
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentLinkedQueue
 
-class VarNamer {
+/**
+ * Evaluates the local models and the transformer on the files of a project,
+ * [predict] creates an evaluator with the client of the transformer server for every project.
+ */
+class VarNamer(
+    private val ngramContributorClass: Class<out NGramVariableNamesContributor>,
+    private val naturalizeContributorClass: Class<out VariableNamesContributor>,
+    private val transformerClient: ModelServerClient<VariableFeatures>,
+    private val latencies: LatencyReport
+) {
     companion object {
-        private val LOG = logger<VarNamer>()
-        private const val TRANSFORMER_SERVER_URL = "http://127.0.0.1:5000/"
-        private var ngramContributorClass: Class<out NGramVariableNamesContributor>? = null
-        private var naturalizeContributorClass: Class<out VariableNamesContributor>? = null
+        const val TRANSFORMER_SERVER_URL = "http://127.0.0.1:5000/"
+        private const val BATCH_SIZE = 64
+        private const val MAX_REQUESTS_IN_FLIGHT = 4
 
-        fun predict(project: Project, dir: Path, ngramContributorType: String) {
-            ngramContributorClass = when (ngramContributorType) {
+        fun predict(
+            project: Project,
+            dir: Path,
+            ngramContributorType: String,
+            scheduler: EvaluationScheduler,
+            serverUrl: String
+        ) {
+            val ngramContributorClass = when (ngramContributorType) {
                 "global" -> GlobalVariableNamesContributor::class.java
                 "project" -> ProjectVariableNamesContributor::class.java
                 else -> throw NotImplementedError("ngramContributorType has to be \"global\" or \"project\"!")
             }
-            naturalizeContributorClass = when (ngramContributorType) {
+            val naturalizeContributorClass = when (ngramContributorType) {
                 "global" -> GlobalNaturalizeContributor::class.java
                 "project" -> ProjectNaturalizeContributor::class.java
                 else -> throw NotImplementedError("ngramContributorType has to be \"global\" or \"project\"!")
             }
-            val mapper = ObjectMapper()
             val predictionsFile: File = dir.resolve("${project.name}_${ngramContributorType}_predictions.txt").toFile()
-            predictionsFile.parentFile.mkdir()
-            predictionsFile.createNewFile()
-            val predictedFilePaths = predictionsFile.bufferedReader().lines().asSequence()
-                .map { line ->
-                    try {
-                        mapper.readValue(line, Map::class.java).keys.first()
-                    } catch (e: JsonProcessingException) {
-                        null
+            val latencies = LatencyReport()
+            val mapper = ObjectMapper()
+            PredictionWriter(predictionsFile).use { writer ->
+                ModelServerClient<VariableFeatures>(
+                    serverUrl,
+                    { samples -> mapper.writeValueAsString(samples) },
+                    BATCH_SIZE,
+                    MAX_REQUESTS_IN_FLIGHT
+                ).use { client ->
+                    val evaluator = VarNamer(ngramContributorClass, naturalizeContributorClass, client, latencies)
+                    val files = runReadAction {
+                        FileTypeIndex.getFiles(
+                            JavaFileType.INSTANCE,
+                            GlobalSearchScope.projectScope(project)
+                        )
+                    }.filter { file -> file.path !in writer.predictedPaths }
+                    val writes = ConcurrentLinkedQueue<CompletableFuture<*>>()
+                    scheduler.evaluateFiles(
+                        project, files, evaluator::extractVariables, evaluator::predictVariables
+                    ) { file, predictions ->
+                        writes.add(predictions.thenAccept { writer.write(file.path, it) })
                     }
-                }.filterNotNull()
-                .toHashSet()
-            val files = FileTypeIndex.getFiles(
-                JavaFileType.INSTANCE,
-                GlobalSearchScope.projectScope(project)
-            ).filter { file -> file.path !in predictedFilePaths }
-            var progress = 0
-            val total = files.size
-            val start = Instant.now()
-            val psiManager = PsiManager.getInstance(project)
-            println("Number of files to parse: $total")
-            for (file in files) {
-                val psiFile = psiManager.findFile(file)
-                if (psiFile === null) continue
-                val filePath = file.path
-                val filePredictions = HashMap<String, List<VarNamePredictions>>()
-                val preds = predictPsiFile(psiFile)
-                if (preds === null) continue
-                filePredictions[filePath] = preds
-                FileOutputStream(predictionsFile, true).bufferedWriter().use {
-                    it.write(mapper.writeValueAsString(filePredictions))
-                    it.newLine()
-                }
-                val fraction = ++progress / total.toDouble()
-                if (total < 100 || progress % (total / 100) == 0) {
-                    val timeSpent = Duration.between(start, Instant.now())
-                    val timeLeft = Duration.ofSeconds((timeSpent.toSeconds() * (1 / fraction - 1)).toLong())
-                    System.out.printf(
-                        "Status: %.0f%%;\tTime spent: %s;\tTime left: %s\r",
-                        fraction * 100.0,
-                        timeSpent.printToString(),
-                        timeLeft.printToString()
-                    )
+                    client.flush()
+                    // Files whose transformer predictions failed are not written and are predicted again by the next run
+                    CompletableFuture.allOf(*writes.toTypedArray()).exceptionally { null }.join()
                 }
             }
-            val end = Instant.now()
-            val timeSpent = Duration.between(start, end)
-            System.out.printf(
-                "Done in %s\n",
-                timeSpent.printToString()
-            )
+            latencies.printSummary()
+            latencies.write(dir.resolve("${project.name}_${ngramContributorType}_latency.json").toFile())
         }
+    }
 
-        private fun predictPsiFile(file: PsiFile): List<VarNamePredictions>? {
-            val fileEditorManager = FileEditorManager.getInstance(file.project)
-            try {
-                val editor = fileEditorManager.openTextEditor(
-                    OpenFileDescriptor(
-                        file.project,
-                        file.virtualFile
-                    ), true
-                )!!
-                if (ngramContributorClass == ProjectVariableNamesContributor::class.java) {
-                    IdNamesSuggestingModelManager.getInstance()
-                        .getModelRunner(ProjectVariableNamesContributor::class.java, file.project)
-                        .forgetPsiFile(file)
-                }
-                val predictionsList = SyntaxTraverser.psiTraverser()
-                    .withRoot(file)
-                    .onRange(TextRange(0, 64 * 1024)) // first 128 KB of chars
-                    .filter { element: PsiElement? -> element is PsiVariable }
-                    .toList()
-                    .asSequence()
-                    .filterNotNull()
-                    .map { e -> e as PsiVariable }
-                    .map { v -> predictVarName(v, editor) }
-                    .filterNotNull()
-                    .toList()
-                return predictionsList
-            } catch (e: Exception) {
-                return null
-            } finally {
-                if (ngramContributorClass == ProjectVariableNamesContributor::class.java) {
-                    IdNamesSuggestingModelManager.getInstance()
-                        .getModelRunner(ProjectVariableNamesContributor::class.java, file.project)
-                        .learnPsiFile(file)
-                }
-                fileEditorManager.closeFile(file.virtualFile)
+    /**
+     * Predictions of the local models and features of the variables are computed in the read action,
+     * the transformer is queried by [predictVariables] after it.
+     */
+    private fun extractVariables(file: PsiFile): List<VariableSample>? {
+        try {
+            val lineOffsets = LineOffsets.of(file)
+            val usageCounts = UsageCounts(file)
+            val variables = SyntaxTraverser.psiTraverser()
+                .withRoot(file)
+                .onRange(TextRange(0, 64 * 1024)) // first 128 KB of chars
+                .filter { element: PsiElement? -> element is PsiVariable }
+                .toList()
+                .asSequence()
+                .filterNotNull()
+                .map { e -> e as PsiVariable }
+                .filter { v -> v.nameIdentifier.let { it !== null && it.text != "" } }
+                .toList()
+            val localPredictions = withLocalModels(file, ngramContributorClass) {
+                variables.map { v -> predictWithLocalModels(v) }
+            }
+            val fileLength = file.virtualFile.length
+            return variables.zip(localPredictions) { v, p ->
+                VariableSample(
+                    v.nameIdentifier!!.text,
+                    getLinePosition(v.nameIdentifier!!, lineOffsets),
+                    v.javaClass.interfaces[0].simpleName,
+                    fileLength,
+                    usageCounts.of(v),
+                    p,
+                    DatasetExtractor.getVariableFeatures(v, file)
+                )
             }
+        } catch (e: ProcessCanceledException) {
+            throw e
+        } catch (e: Exception) {
+            return null
         }
+    }
 
-        private fun predictVarName(variable: PsiVariable, editor: Editor): VarNamePredictions? {
-            val nameIdentifier = variable.nameIdentifier
-            if (nameIdentifier === null || nameIdentifier.text == "") return null
-
-            var startTime = System.nanoTime()
-            val nGramPredictions = predictWithNGram(variable)
-            val nGramEvaluationTime = (System.nanoTime() - startTime) / 1.0e9
-
-            startTime = System.nanoTime()
-            val naturalizePredictions = predictWithNaturalize(variable)
-            val naturalizeEvaluationTime = (System.nanoTime() - startTime) / 1e9
-
-            startTime = System.nanoTime()
-            val transformerPredictions = predictWithTransformer(variable)
-            val transformerEvaluationTime = (System.nanoTime() - startTime) / 1e9
-
-            return VarNamePredictions(
-                nameIdentifier.text,
-                nGramPredictions,
-                nGramEvaluationTime,
-                naturalizePredictions,
-                naturalizeEvaluationTime,
-                transformerPredictions,
-                transformerEvaluationTime,
-                getLinePosition(nameIdentifier, editor),
-                variable.javaClass.interfaces[0].simpleName
-            )
-        }
+    /**
+     * The transformer predictions complete the returned future when the batches of their samples return
+     * from the server.
+     */
+    private fun predictVariables(samples: List<VariableSample>): CompletableFuture<List<VarNamePredictions>> {
+        val predictions = samples.map { predictVarName(it) }
+        return CompletableFuture.allOf(*predictions.toTypedArray())
+            .thenApply { predictions.map { it.join() } }
+    }
 
-        private fun predictWithNGram(variable: PsiVariable): List<ModelPrediction> {
-            val nameSuggestions: List<VarNamePrediction> = ArrayList()
-            val contributor = VariableNamesContributor.EP_NAME.findExtension(ngramContributorClass!!)
-            contributor!!.contribute(
-                variable,
-                nameSuggestions,
-                false
-            )
-            return nameSuggestions.map { x: VarNamePrediction -> ModelPrediction(x.name, x.probability) }
-        }
+    private fun predictWithLocalModels(variable: PsiVariable): LocalPredictions {
+        var startTime = System.nanoTime()
+        val nGramPredictions = predictWithNGram(variable)
+        val nGramEvaluationTime = (System.nanoTime() - startTime) / 1.0e9
+
+        startTime = System.nanoTime()
+        val naturalizePredictions = predictWithNaturalize(variable)
+        val naturalizeEvaluationTime = (System.nanoTime() - startTime) / 1e9
+        return LocalPredictions(nGramPredictions, nGramEvaluationTime, naturalizePredictions, naturalizeEvaluationTime)
+    }
+
+    private fun predictVarName(sample: VariableSample): CompletableFuture<VarNamePredictions> {
+        val localPredictions = sample.localPredictions
+        latencies.record("nGram", localPredictions.nGramEvaluationTime, sample.fileLength, sample.usageCount)
+        latencies.record(
+            "naturalize", localPredictions.naturalizeEvaluationTime, sample.fileLength, sample.usageCount
+        )
 
-        private fun predictWithNaturalize(variable: PsiVariable): List<NaturalizePrediction> {
-            val nameSuggestions: List<VarNamePrediction> = ArrayList()
-            val contributor = VariableNamesContributor.EP_NAME.findExtension(naturalizeContributorClass!!)
-            contributor!!.contribute(
-                variable,
-                nameSuggestions,
-                false
+        return transformerClient.predict(sample.features).thenApply { transformer ->
+            latencies.record("transformer", transformer.responseTime, sample.fileLength, sample.usageCount)
+            VarNamePredictions(
+                sample.groundTruth,
+                localPredictions.nGramPredictions,
+                localPredictions.nGramEvaluationTime,
+                localPredictions.naturalizePredictions,
+                localPredictions.naturalizeEvaluationTime,
+                transformer.prediction ?: throw IOException("Transformer did not predict ${sample.groundTruth}"),
+                transformer.responseTime,
+                sample.linePosition,
+                sample.psiInterface
             )
-            return nameSuggestions.map { x: VarNamePrediction -> NaturalizePrediction(x.name, x.probability) }
         }
+    }
 
-        private fun predictWithTransformer(variable: PsiVariable): Any {
-            val variableFeatures = DatasetExtractor.getVariableFeatures(variable, variable.containingFile)
-            return HttpRequests.post(TRANSFORMER_SERVER_URL, HttpRequests.JSON_CONTENT_TYPE)
-                .connect(HttpRequests.RequestProcessor {
-                    val objectMapper = ObjectMapper()
-                    it.write(objectMapper.writeValueAsBytes(variableFeatures))
-                    val str = it.readString()
-                    objectMapper.readValue(str, Any::class.java)
-                }, null, LOG)
-        }
+    private fun predictWithNGram(variable: PsiVariable): List<ModelPrediction> {
+        val nameSuggestions: List<VarNamePrediction> = ArrayList()
+        val contributor = VariableNamesContributor.EP_NAME.findExtension(ngramContributorClass)
+        contributor!!.contribute(
+            variable,
+            nameSuggestions,
+            false
+        )
+        return nameSuggestions.map { x: VarNamePrediction -> ModelPrediction(x.name, x.probability) }
+    }
 
-        private fun getLinePosition(identifier: PsiElement, editor: Editor): Int {
-            return editor.offsetToLogicalPosition(identifier.textOffset).line
-        }
+    private fun predictWithNaturalize(variable: PsiVariable): List<NaturalizePrediction> {
+        val nameSuggestions: List<VarNamePrediction> = ArrayList()
+        val contributor = VariableNamesContributor.EP_NAME.findExtension(naturalizeContributorClass)
+        contributor!!.contribute(
+            variable,
+            nameSuggestions,
+            false
+        )
+        return nameSuggestions.map { x: VarNamePrediction -> NaturalizePrediction(x.name, x.probability) }
+    }
+
+    private fun getLinePosition(identifier: PsiElement, lineOffsets: LineOffsets): Int {
+        return lineOffsets.getLineNumber(identifier.textOffset)
     }
 }
 
@@ -220,5 +219,22 @@ class VarNamePredictions(
     val psiInterface: String
 )
 
+private class VariableSample(
+    val groundTruth: String,
+    val linePosition: Int,
+    val psiInterface: String,
+    val fileLength: Long,
+    val usageCount: Int,
+    val localPredictions: LocalPredictions,
+    val features: VariableFeatures
+)
+
+private class LocalPredictions(
+    val nGramPredictions: List<ModelPrediction>,
+    val nGramEvaluationTime: Double,
+    val naturalizePredictions: List<NaturalizePrediction>,
+    val naturalizeEvaluationTime: Double
+)
+
 class ModelPrediction(val name: Any, val p: Double)
 class NaturalizePrediction(val name: Any, val logit: Double)
\ No newline at end of file
@@ -4,6 +4,7 @@ import com.intellij.ide.impl.ProjectUtil
 import com.intellij.openapi.application.ApplicationStarter
 import com.intellij.openapi.project.Project
 import org.jetbrains.id.names.suggesting.IdNamesSuggestingModelManager
+import tools.evaluation.EvaluationScheduler
 import java.io.File
 import java.nio.file.Path
 import java.nio.file.Paths
@@ -26,9 +27,10 @@ class PluginRunner : ApplicationStarter {
             val dataset = File(args[1])
             val saveDir = args[2]
             val ngramContributorType = args[3]
+            val scheduler = EvaluationScheduler(args.getOrNull(4)?.toInt() ?: Runtime.getRuntime().availableProcessors())
             if (ngramContributorType == "global") trainGlobalNGramModelOn(dataset, javaSmallTrain)
-//            evaluateOn(dataset, javaSmallTest, Paths.get(saveDir), ngramContributorType)
-            evaluateOn(dataset, javaSmallTrain, Paths.get(saveDir), ngramContributorType)
+//            evaluateOn(dataset, javaSmallTest, Paths.get(saveDir), ngramContributorType, scheduler)
+            evaluateOn(dataset, javaSmallTrain, Paths.get(saveDir), ngramContributorType, scheduler)
         } catch (e: IllegalArgumentException) {
             e.printStackTrace()
         } catch (e: OutOfMemoryError) {
@@ -62,24 +64,16 @@ class PluginRunner : ApplicationStarter {
         dataset: File,
         projectList: List<String>,
         dir: Path,
-        ngramContributorType: String
+        ngramContributorType: String,
+        scheduler: EvaluationScheduler
     ) {
         println("Evaluating models...")
-        var projectToClose: Project? = null
-        for (projectDir in projectList) {
-            val projectPath = dataset.resolve(projectDir)
-            println("Opening project $projectDir...")
-            val project = ProjectUtil.openOrImport(projectPath.path, projectToClose, true) ?: continue
-
+        scheduler.evaluate(dataset, projectList) { project ->
             if (ngramContributorType == "project") {
-                IdNamesSuggestingModelManager.getInstance().trainProjectNGramModel(project, null)
+                // Training reads the index in short read actions itself, so the next project opens meanwhile
+                IdNamesSuggestingModelManager.getInstance().trainProjectNGramModel(project, null, false)
             }
-            VarNamer.predict(project, dir, ngramContributorType)
-
-            projectToClose = project
-        }
-        if (projectToClose != null) {
-            ProjectUtil.closeAndDispose(projectToClose)
+            VarNamer.predict(project, dir, ngramContributorType, scheduler)
         }
     }
 }
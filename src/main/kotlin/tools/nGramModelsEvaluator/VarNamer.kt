@@ -1,187 +1,194 @@
 package tools.nGramModelsEvaluator
 
-import com.fasterxml.jackson.core.JsonProcessingException
-import com.fasterxml.jackson.databind.ObjectMapper
+import com.fasterxml.jackson.databind.JsonNode
 import com.intellij.ide.highlighter.JavaFileType
-import com.intellij.openapi.editor.Editor
-import com.intellij.openapi.fileEditor.FileEditorManager
-import com.intellij.openapi.fileEditor.OpenFileDescriptor
+import com.intellij.openapi.application.runReadAction
+import com.intellij.openapi.progress.ProcessCanceledException
 import com.intellij.openapi.project.Project
 import com.intellij.openapi.util.TextRange
 import com.intellij.psi.*
 import com.intellij.psi.search.FileTypeIndex
 import com.intellij.psi.search.GlobalSearchScope
-import com.jetbrains.rd.util.string.printToString
-import org.jetbrains.id.names.suggesting.IdNamesSuggestingModelManager
 import org.jetbrains.id.names.suggesting.VarNamePrediction
 import org.jetbrains.id.names.suggesting.api.VariableNamesContributor
 import org.jetbrains.id.names.suggesting.contributors.GlobalVariableNamesContributor
 import org.jetbrains.id.names.suggesting.contributors.ProjectVariableNamesContributor
 import org.jetbrains.id.names.suggesting.naturalize.GlobalNaturalizeContributor
 import org.jetbrains.id.names.suggesting.naturalize.ProjectNaturalizeContributor
+import tools.evaluation.AccuracyMetrics
+import tools.evaluation.EvaluationScheduler
+import tools.evaluation.LatencyReport
+import tools.evaluation.LineOffsets
+import tools.evaluation.LocalModels.withLocalModels
+import tools.evaluation.PredictionWriter
+import tools.evaluation.UsageCounts
 import java.io.File
-import java.io.FileOutputStream
 import java.nio.file.Path
-import java.time.Duration
-import java.time.Instant
-import kotlin.streams.asSequence
 
-class VarNamer {
+/**
+ * Evaluates the local models on the files of a project, [predict] creates an evaluator for every project.
+ * Accuracy is recorded for the files which are written and for the files written by an earlier run.
+ */
+class VarNamer(
+    private val ngramContributorClass: Class<out VariableNamesContributor>,
+    private val naturalizeContributorClass: Class<out VariableNamesContributor>,
+    private val latencies: LatencyReport,
+    private val projectMetrics: AccuracyMetrics
+) {
     companion object {
-        private var ngramContributorClass: Class<out VariableNamesContributor>? = null
-        private var naturalizeContributorClass: Class<out VariableNamesContributor>? = null
+        private val runMetrics = AccuracyMetrics()
 
-        fun predict(project: Project, dir: Path, ngramContributorType: String) {
-            ngramContributorClass = when (ngramContributorType) {
+        fun predict(project: Project, dir: Path, ngramContributorType: String, scheduler: EvaluationScheduler) {
+            val ngramContributorClass = when (ngramContributorType) {
                 "global" -> GlobalVariableNamesContributor::class.java
                 "project" -> ProjectVariableNamesContributor::class.java
                 else -> throw NotImplementedError("ngramContributorType has to be \"global\" or \"project\"!")
             }
-            naturalizeContributorClass = when (ngramContributorType) {
+            val naturalizeContributorClass = when (ngramContributorType) {
                 "global" -> GlobalNaturalizeContributor::class.java
                 "project" -> ProjectNaturalizeContributor::class.java
                 else -> throw NotImplementedError("ngramContributorType has to be \"global\" or \"project\"!")
             }
-            val mapper = ObjectMapper()
             val predictionsFile: File = dir.resolve("${project.name}_${ngramContributorType}_predictions.txt").toFile()
-            predictionsFile.parentFile.mkdir()
-            predictionsFile.createNewFile()
-            val predictedFilePaths = predictionsFile.bufferedReader().lines().asSequence()
-                .map { line ->
-                    try {
-                        mapper.readValue(line, Map::class.java).keys.first()
-                    } catch (e: JsonProcessingException) {
-                        null
-                    }
-                }.filterNotNull()
-                .toHashSet()
-            val files = FileTypeIndex.getFiles(
-                JavaFileType.INSTANCE,
-                GlobalSearchScope.projectScope(project)
-            ).filter { file -> file.path !in predictedFilePaths && file.length < 125 * 1024 }
-            var progress = 0
-            val total = files.size
-            val start = Instant.now()
-            val psiManager = PsiManager.getInstance(project)
-            println("Number of files to parse: $total")
-            for (file in files) {
-                val psiFile = psiManager.findFile(file)
-                if (psiFile === null) continue
-                val filePath = file.path
-                val filePredictions = HashMap<String, List<NGramPredictions>>()
-                val preds = predictPsiFile(psiFile)
-                if (preds === null) continue
-                filePredictions[filePath] = preds
-                FileOutputStream(predictionsFile, true).bufferedWriter().use {
-                    it.write(mapper.writeValueAsString(filePredictions))
-                    it.newLine()
-                }
-                val fraction = ++progress / total.toDouble()
-                if (total < 100 || progress % (total / 100) == 0) {
-                    val timeSpent = Duration.between(start, Instant.now())
-                    val timeLeft = Duration.ofSeconds((timeSpent.toSeconds() * (1 / fraction - 1)).toLong())
-                    System.out.printf(
-                        "Status: %.0f%%;\tTime spent: %s;\tTime left: %s\r",
-                        fraction * 100.0,
-                        timeSpent.printToString(),
-                        timeLeft.printToString()
+            val latencies = LatencyReport()
+            val metrics = AccuracyMetrics()
+            val evaluator = VarNamer(ngramContributorClass, naturalizeContributorClass, latencies, metrics)
+            // Files predicted by an earlier run are counted from their lines, so the metrics cover the whole project
+            PredictionWriter(predictionsFile) { _, predictions ->
+                evaluator.recordAccuracy(predictions)
+            }.use { writer ->
+                val files = runReadAction {
+                    FileTypeIndex.getFiles(
+                        JavaFileType.INSTANCE,
+                        GlobalSearchScope.projectScope(project)
                     )
+                }.filter { file -> file.path !in writer.predictedPaths && file.length < 125 * 1024 }
+                scheduler.evaluateFiles(
+                    project, files, evaluator::extractVariables, evaluator::recordLatencies
+                ) { file, predictions ->
+                    writer.write(file.path, predictions)
+                    predictions.forEach { evaluator.recordAccuracy(it) }
                 }
             }
-            val end = Instant.now()
-            val timeSpent = Duration.between(start, end)
-            System.out.printf(
-                "Done in %s\n",
-                timeSpent.printToString()
-            )
+            latencies.printSummary()
+            latencies.write(dir.resolve("${project.name}_${ngramContributorType}_latency.json").toFile())
+            metrics.printSummary()
+            metrics.write(dir.resolve("${project.name}_${ngramContributorType}_metrics.json").toFile())
+            runMetrics.write(dir.resolve("${ngramContributorType}_metrics.json").toFile())
         }
+    }
 
-        private fun predictPsiFile(file: PsiFile): List<NGramPredictions>? {
-            val fileEditorManager = FileEditorManager.getInstance(file.project)
-            try {
-                val editor = fileEditorManager.openTextEditor(
-                    OpenFileDescriptor(
-                        file.project,
-                        file.virtualFile
-                    ), true
-                )!!
-                if (ngramContributorClass == ProjectVariableNamesContributor::class.java) {
-                    IdNamesSuggestingModelManager.getInstance()
-                        .getModelRunner(ProjectVariableNamesContributor::class.java, file.project)
-                        .forgetPsiFile(file)
-                }
-                val predictionsList = SyntaxTraverser.psiTraverser()
-                    .withRoot(file)
-                    .onRange(TextRange(0, 64 * 1024)) // first 128 KB of chars
-                    .filter { element: PsiElement? -> element is PsiVariable }
-                    .toList()
-                    .asSequence()
-                    .filterNotNull()
-                    .map { e -> e as PsiVariable }
-                    .map { v -> predictVarName(v, editor) }
-                    .filterNotNull()
-                    .toList()
-                return predictionsList
-            } catch (e: Exception) {
-                return null
-            } finally {
-                if (ngramContributorClass == ProjectVariableNamesContributor::class.java) {
-                    IdNamesSuggestingModelManager.getInstance()
-                        .getModelRunner(ProjectVariableNamesContributor::class.java, file.project)
-                        .learnPsiFile(file)
-                }
-                fileEditorManager.closeFile(file.virtualFile)
+    /**
+     * Predicts names of the variables of the file in the read action, the latencies are recorded
+     * by [recordLatencies] after it.
+     */
+    private fun extractVariables(file: PsiFile): List<VariableSample>? {
+        try {
+            val lineOffsets = LineOffsets.of(file)
+            val usageCounts = UsageCounts(file)
+            val variables = SyntaxTraverser.psiTraverser()
+                .withRoot(file)
+                .onRange(TextRange(0, 64 * 1024)) // first 128 KB of chars
+                .filter { element: PsiElement? -> element is PsiVariable }
+                .toList()
+                .asSequence()
+                .filterNotNull()
+                .map { e -> e as PsiVariable }
+                .toList()
+            return withLocalModels(file, ngramContributorClass) {
+                variables.mapNotNull { v -> predictVarName(v, lineOffsets, usageCounts.of(v)) }
             }
+        } catch (e: ProcessCanceledException) {
+            throw e
+        } catch (e: Exception) {
+            return null
         }
+    }
 
-        private fun predictVarName(variable: PsiVariable, editor: Editor): NGramPredictions? {
-            val nameIdentifier = variable.nameIdentifier
-            if (nameIdentifier === null || nameIdentifier.text == "") return null
-
-            var startTime = System.nanoTime()
-            val nGramPredictions = predictWithNGram(variable)
-            val nGramEvaluationTime = (System.nanoTime() - startTime) / 1.0e9
-
-            startTime = System.nanoTime()
-            val naturalizePredictions = predictWithNaturalize(variable)
-            val naturalizeEvaluationTime = (System.nanoTime() - startTime) / 1e9
-
-            return NGramPredictions(
-                nameIdentifier.text,
-                nGramPredictions,
-                nGramEvaluationTime,
-                naturalizePredictions,
-                naturalizeEvaluationTime,
-                getLinePosition(nameIdentifier, editor),
-                variable.javaClass.interfaces[0].simpleName
-            )
+    private fun recordLatencies(samples: List<VariableSample>): List<NGramPredictions> {
+        for (sample in samples) {
+            val predictions = sample.predictions
+            latencies.record("nGram", predictions.nGramEvaluationTime, sample.fileLength, sample.usageCount)
+            latencies.record("naturalize", predictions.naturalizeEvaluationTime, sample.fileLength, sample.usageCount)
         }
+        return samples.map { it.predictions }
+    }
 
-        private fun predictWithNGram(variable: PsiVariable): List<NGramPrediction> {
-            val nameSuggestions: List<VarNamePrediction> = ArrayList()
-            val contributor = VariableNamesContributor.EP_NAME.findExtension(ngramContributorClass!!)
-            contributor!!.contribute(
-                variable,
-                nameSuggestions,
-                false
-            )
-            return nameSuggestions.map { x: VarNamePrediction -> NGramPrediction(x.name, x.probability) }
-        }
+    private fun recordAccuracy(predictions: NGramPredictions) {
+        val nGramNames = predictions.nGramPrediction.sortedByDescending { it.p }.map { it.name }
+        val naturalizeNames = predictions.naturalizePrediction.sortedByDescending { it.logit }.map { it.name }
+        recordAccuracy("nGram", predictions.psiInterface, predictions.groundTruth, nGramNames)
+        recordAccuracy("naturalize", predictions.psiInterface, predictions.groundTruth, naturalizeNames)
+    }
 
-        private fun predictWithNaturalize(variable: PsiVariable): List<NaturalizePrediction> {
-            val nameSuggestions: List<VarNamePrediction> = ArrayList()
-            val contributor = VariableNamesContributor.EP_NAME.findExtension(naturalizeContributorClass!!)
-            contributor!!.contribute(
-                variable,
-                nameSuggestions,
-                false
-            )
-            return nameSuggestions.map { x: VarNamePrediction -> NaturalizePrediction(x.name, x.probability) }
+    private fun recordAccuracy(predictions: JsonNode) {
+        for (variable in predictions) {
+            val groundTruth = variable["groundTruth"].asText()
+            val psiInterface = variable["psiInterface"].asText()
+            val nGramNames = variable["nGramPrediction"]
+                .sortedByDescending { it["p"].asDouble() }
+                .map { it["name"].asText() }
+            val naturalizeNames = variable["naturalizePrediction"]
+                .sortedByDescending { it["logit"].asDouble() }
+                .map { it["name"].asText() }
+            recordAccuracy("nGram", psiInterface, groundTruth, nGramNames)
+            recordAccuracy("naturalize", psiInterface, groundTruth, naturalizeNames)
         }
+    }
 
-        private fun getLinePosition(identifier: PsiElement, editor: Editor): Int {
-            return editor.offsetToLogicalPosition(identifier.textOffset).line
-        }
+    private fun recordAccuracy(model: String, psiInterface: String, groundTruth: String, names: List<Any>) {
+        projectMetrics.record(model, psiInterface, groundTruth, names)
+        runMetrics.record(model, psiInterface, groundTruth, names)
+    }
+
+    private fun predictVarName(variable: PsiVariable, lineOffsets: LineOffsets, usageCount: Int): VariableSample? {
+        val nameIdentifier = variable.nameIdentifier
+        if (nameIdentifier === null || nameIdentifier.text == "") return null
+
+        var startTime = System.nanoTime()
+        val nGramPredictions = predictWithNGram(variable)
+        val nGramEvaluationTime = (System.nanoTime() - startTime) / 1.0e9
+
+        startTime = System.nanoTime()
+        val naturalizePredictions = predictWithNaturalize(variable)
+        val naturalizeEvaluationTime = (System.nanoTime() - startTime) / 1e9
+
+        val predictions = NGramPredictions(
+            nameIdentifier.text,
+            nGramPredictions,
+            nGramEvaluationTime,
+            naturalizePredictions,
+            naturalizeEvaluationTime,
+            getLinePosition(nameIdentifier, lineOffsets),
+            variable.javaClass.interfaces[0].simpleName
+        )
+        return VariableSample(predictions, variable.containingFile.virtualFile.length, usageCount)
+    }
+
+    private fun predictWithNGram(variable: PsiVariable): List<NGramPrediction> {
+        val nameSuggestions: List<VarNamePrediction> = ArrayList()
+        val contributor = VariableNamesContributor.EP_NAME.findExtension(ngramContributorClass)
+        contributor!!.contribute(
+            variable,
+            nameSuggestions,
+            false
+        )
+        return nameSuggestions.map { x: VarNamePrediction -> NGramPrediction(x.name, x.probability) }
+    }
+
+    private fun predictWithNaturalize(variable: PsiVariable): List<NaturalizePrediction> {
+        val nameSuggestions: List<VarNamePrediction> = ArrayList()
+        val contributor = VariableNamesContributor.EP_NAME.findExtension(naturalizeContributorClass)
+        contributor!!.contribute(
+            variable,
+            nameSuggestions,
+            false
+        )
+        return nameSuggestions.map { x: VarNamePrediction -> NaturalizePrediction(x.name, x.probability) }
+    }
+
+    private fun getLinePosition(identifier: PsiElement, lineOffsets: LineOffsets): Int {
+        return lineOffsets.getLineNumber(identifier.textOffset)
     }
 }
 
@@ -195,6 +202,8 @@ class NGramPredictions(
     val psiInterface: String
 )
 
+private class VariableSample(val predictions: NGramPredictions, val fileLength: Long, val usageCount: Int)
+
 class NGramPrediction(val name: Any, val p: Double)
 
 class NaturalizePrediction(val name: Any, val logit: Double)
\ No newline at end of file
@@ -1,18 +1,28 @@
 package tools.nGramTrainingTime
 
 import com.fasterxml.jackson.databind.ObjectMapper
+import com.intellij.ide.highlighter.JavaFileType
 import com.intellij.ide.impl.ProjectUtil
 import com.intellij.openapi.application.ApplicationStarter
+import com.intellij.openapi.application.runReadAction
 import com.intellij.openapi.project.Project
+import com.intellij.openapi.util.io.FileUtil
+import com.intellij.psi.search.FileTypeIndex
+import com.intellij.psi.search.GlobalSearchScope
 import org.jetbrains.id.names.suggesting.contributors.NGramVariableNamesContributor
 import org.jetbrains.id.names.suggesting.impl.IdNamesNGramModelRunner
 import java.io.File
+import java.lang.management.ManagementFactory
+import java.lang.management.MemoryType
 import java.nio.file.Path
 import java.nio.file.Paths
-import java.time.Duration
-import java.time.Instant
 import kotlin.system.exitProcess
 
+/**
+ * Benchmark of the n-gram model training: every project is learned [RUNS] times by every combination
+ * of counter implementation ("giga" or "trie"), number of lexing threads and lexing mode ("psi", "lexer"
+ * or "index", which reads token streams of [org.jetbrains.id.names.suggesting.impl.JavaTokensIndex]).
+ */
 class PluginRunner : ApplicationStarter {
     private val javaSmallTrain = listOf(
         "cassandra",
@@ -28,7 +38,14 @@ class PluginRunner : ApplicationStarter {
         try {
             val dataset = File(args[1])
             val saveDir = args[2]
-            trainOn(dataset, javaSmallTrain, Paths.get(saveDir))
+            val threadCounts = args.getOrNull(3)?.split(",")?.map { it.toInt() } ?: listOf(1)
+            val counters = args.getOrNull(4)?.split(",") ?: listOf("giga")
+            val modes = args.getOrNull(5)?.split(",") ?: listOf("psi")
+            require(counters.all { it == "giga" || it == "trie" }) { "Counters have to be \"giga\" or \"trie\"!" }
+            require(modes.all { it in listOf("psi", "lexer", "index") }) {
+                "Modes have to be \"psi\", \"lexer\" or \"index\"!"
+            }
+            benchmarkOn(dataset, javaSmallTrain, Paths.get(saveDir), threadCounts, counters, modes)
         } catch (e: IllegalArgumentException) {
             e.printStackTrace()
         } catch (e: OutOfMemoryError) {
@@ -41,35 +58,115 @@ class PluginRunner : ApplicationStarter {
         }
     }
 
-    private fun trainOn(
+    private fun benchmarkOn(
         dataset: File,
         projectList: List<String>,
-        dir: Path
+        dir: Path,
+        threadCounts: List<Int>,
+        counters: List<String>,
+        modes: List<String>
     ) {
-        println("Evaluating models...")
+        println("Benchmarking training...")
         var projectToClose: Project? = null
-        val timeFile: File = dir.resolve("train_time.json").toFile()
-        timeFile.parentFile.mkdir()
-        timeFile.createNewFile()
-        val projectTime = HashMap<String, List<Long>>()
+        val resultsFile: File = dir.resolve("train_benchmark.json").toFile()
+        resultsFile.parentFile.mkdirs()
+        val results = ArrayList<TrainingRun>()
         for (projectDir in projectList) {
             val projectPath = dataset.resolve(projectDir)
             println("Opening project $projectDir...")
             val project = ProjectUtil.openOrImport(projectPath.path, projectToClose, true) ?: continue
 
-            val trainingTime = ArrayList<Long>()
-            for (i in 1..5) {
-                val start = Instant.now()
-                IdNamesNGramModelRunner(NGramVariableNamesContributor.SUPPORTED_TYPES, true)
-                    .learnProject(project, null)
-                trainingTime.add(Duration.between(start, Instant.now()).seconds)
+            val files = runReadAction {
+                FileTypeIndex.getFiles(JavaFileType.INSTANCE, GlobalSearchScope.projectScope(project)).size
+            }
+            for (mode in modes) {
+                for (counter in counters) {
+                    for (threads in threadCounts) {
+                        for (run in 1..RUNS) {
+                            val result = benchmark(project, files, dir, mode, counter, threads, run)
+                            println(result)
+                            results.add(result)
+                            // Rewritten after every run, so an interrupted benchmark keeps its results
+                            ObjectMapper().writerWithDefaultPrettyPrinter().writeValue(resultsFile, results)
+                        }
+                    }
+                }
             }
-            projectTime.put(projectDir, trainingTime)
             if (projectToClose != null) {
                 ProjectUtil.closeAndDispose(projectToClose)
             }
             projectToClose = project
         }
-        timeFile.writeText(ObjectMapper().writeValueAsString(projectTime))
     }
+
+    private fun benchmark(
+        project: Project,
+        files: Int,
+        dir: Path,
+        mode: String,
+        counter: String,
+        threads: Int,
+        run: Int
+    ): TrainingRun {
+        val isLargeCorpora = counter == "giga"
+        val heapPools = ManagementFactory.getMemoryPoolMXBeans().filter { it.type == MemoryType.HEAP }
+        System.gc()
+        heapPools.forEach { it.resetPeakUsage() }
+
+        val runner = IdNamesNGramModelRunner(NGramVariableNamesContributor.SUPPORTED_TYPES, isLargeCorpora)
+        var start = System.nanoTime()
+        val tokens = when (mode) {
+            "lexer" -> runner.learnProjectByLexer(project, null, threads)
+            "index" -> runner.learnProjectFromIndex(project, null)
+            else -> runner.learnProject(project, null, threads)
+        }
+        val trainingMillis = (System.nanoTime() - start) / 1e6
+        val peakHeapMb = heapPools.map { it.peakUsage.used }.sum() / (1024.0 * 1024)
+
+        val modelDir = dir.resolve("model")
+        start = System.nanoTime()
+        val modelSizeMb = runner.save(modelDir, null)
+        val saveMillis = (System.nanoTime() - start) / 1e6
+        start = System.nanoTime()
+        IdNamesNGramModelRunner(NGramVariableNamesContributor.SUPPORTED_TYPES, isLargeCorpora).load(modelDir, null)
+        val loadMillis = (System.nanoTime() - start) / 1e6
+        FileUtil.delete(modelDir.toFile())
+
+        return TrainingRun(
+            project.name, mode, counter, threads, run, files, tokens, trainingMillis,
+            files / trainingMillis * 1e3, tokens / trainingMillis * 1e3,
+            peakHeapMb, modelSizeMb, saveMillis, loadMillis
+        )
+    }
+
+    companion object {
+        private const val RUNS = 5
+    }
+}
+
+/**
+ * @param peakHeapMb sum of peak usages of the heap memory pools during training, an upper bound of the peak heap.
+ */
+class TrainingRun(
+    val project: String,
+    val mode: String,
+    val counter: String,
+    val threads: Int,
+    val run: Int,
+    val files: Int,
+    val tokens: Long,
+    val trainingMillis: Double,
+    val filesPerSecond: Double,
+    val tokensPerSecond: Double,
+    val peakHeapMb: Double,
+    val modelSizeMb: Double,
+    val saveMillis: Double,
+    val loadMillis: Double
+) {
+    override fun toString(): String = String.format(
+        "%s, %s lexing, %s counter, %d threads, run %d: %.0f ms;\t%.1f files/s;\t%.0f tokens/s;\t" +
+                "peak heap %.0f MB;\tmodel %.1f MB;\tsave %.0f ms;\tload %.0f ms",
+        project, mode, counter, threads, run, trainingMillis, filesPerSecond, tokensPerSecond,
+        peakHeapMb, modelSizeMb, saveMillis, loadMillis
+    )
 }
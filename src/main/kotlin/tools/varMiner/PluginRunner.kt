@@ -15,6 +15,7 @@ class PluginRunner : ApplicationStarter {
         try {
             val dataset = File(args[1])
             val saveDir = Paths.get(args[2])
+            val tokenIds = args.getOrNull(3) == "ids"
             var projectToClose: Project? = null
             val projectList = dataset.list { dir, _ ->
                 return@list dir.isDirectory
@@ -28,7 +29,7 @@ class PluginRunner : ApplicationStarter {
                 val project = ProjectUtil.openOrImport(projectPath.path, projectToClose, true) ?: continue
                 println("Project is opened.")
 
-                DatasetExtractor.build(project, saveDir)
+                DatasetExtractor.build(project, saveDir, null, tokenIds)
 
                 println("Dataset for $projectDir is built.")
                 projectToClose = project
@@ -0,0 +1,120 @@
+package org.jetbrains.astrid.test;
+
+import com.intellij.openapi.progress.EmptyProgressIndicator;
+import com.intellij.testFramework.fixtures.BasePlatformTestCase;
+import com.intellij.testFramework.fixtures.TempDirTestFixture;
+import com.intellij.testFramework.fixtures.impl.TempDirTestFixtureImpl;
+import org.jetbrains.astrid.downloader.ArchiveInstaller;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class ArchiveInstallerTest extends BasePlatformTestCase {
+    private Path myArchive;
+    private Path myPartFile;
+    private Path myDestination;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        Path dir = Paths.get(myFixture.getTempDirPath());
+        myArchive = dir.resolve("model.zip");
+        myPartFile = dir.resolve("download").resolve("model.zip.part");
+        myDestination = dir.resolve("model");
+        Files.write(myArchive, createArchive());
+    }
+
+    /**
+     * The archive is downloaded and extracted on disk, in a directory which the fixture deletes.
+     */
+    @Override
+    protected TempDirTestFixture createTempDirTestFixture() {
+        return new TempDirTestFixtureImpl();
+    }
+
+    public void testInstall() throws Exception {
+        new ArchiveInstaller(myArchive.toUri().toURL(), sha256(myArchive))
+                .install(myPartFile, myDestination, new EmptyProgressIndicator());
+        assertExtracted();
+        assertFalse(Files.exists(myPartFile));
+    }
+
+    public void testResume() throws Exception {
+        byte[] bytes = Files.readAllBytes(myArchive);
+        Files.createDirectories(myPartFile.getParent());
+        Files.write(myPartFile, Arrays.copyOf(bytes, bytes.length / 2));
+        new ArchiveInstaller(myArchive.toUri().toURL(), sha256(myArchive))
+                .install(myPartFile, myDestination, new EmptyProgressIndicator());
+        assertExtracted();
+    }
+
+    public void testChecksumMismatch() throws Exception {
+        try {
+            new ArchiveInstaller(myArchive.toUri().toURL(), "00")
+                    .install(myPartFile, myDestination, new EmptyProgressIndicator());
+            fail("Archive with wrong checksum was installed");
+        } catch (IOException e) {
+            assertFalse(Files.exists(myDestination));
+            assertFalse(Files.exists(myPartFile));
+        }
+    }
+
+    public void testBrokenArchive() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+            zip.putNextEntry(new ZipEntry("../outside.txt"));
+            zip.write("outside".getBytes(StandardCharsets.UTF_8));
+            zip.closeEntry();
+        }
+        Files.write(myArchive, bytes.toByteArray());
+        try {
+            new ArchiveInstaller(myArchive.toUri().toURL(), sha256(myArchive))
+                    .install(myPartFile, myDestination, new EmptyProgressIndicator());
+            fail("Archive with an entry outside of the destination was installed");
+        } catch (IOException e) {
+            assertFalse(Files.exists(myDestination));
+            assertFalse(Files.exists(myDestination.resolveSibling("model.staging")));
+            assertFalse(Files.exists(myPartFile));
+        }
+    }
+
+    private void assertExtracted() throws IOException {
+        assertEquals("first", new String(Files.readAllBytes(myDestination.resolve("dict/first.txt")), StandardCharsets.UTF_8));
+        assertEquals(64 * 1024, Files.size(myDestination.resolve("variables/second.bin")));
+    }
+
+    private static byte[] createArchive() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+            zip.putNextEntry(new ZipEntry("dict/"));
+            zip.closeEntry();
+            zip.putNextEntry(new ZipEntry("dict/first.txt"));
+            zip.write("first".getBytes(StandardCharsets.UTF_8));
+            zip.closeEntry();
+            zip.putNextEntry(new ZipEntry("variables/second.bin"));
+            byte[] data = new byte[64 * 1024];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = (byte) (i * 31);
+            }
+            zip.write(data);
+            zip.closeEntry();
+        }
+        return bytes.toByteArray();
+    }
+
+    private static String sha256(Path file) throws Exception {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("SHA-256").digest(Files.readAllBytes(file))) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,59 @@
+package org.jetbrains.id.names.suggesting.test;
+
+import com.intellij.openapi.roots.LanguageLevelProjectExtension;
+import com.intellij.pom.java.LanguageLevel;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiIdentifier;
+import com.intellij.psi.PsiVariable;
+import com.intellij.psi.impl.source.tree.TreeBackedLighterAST;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.id.names.suggesting.impl.IdNamesNGramModelRunner;
+import org.jetbrains.id.names.suggesting.utils.JavaTokens;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+public class JavaTokensTest extends IdNamesSuggestingTestCase {
+    public void testIntentionData() {
+        String[] names = Objects.requireNonNull(new File(getTestDataPath(), "intention").list());
+        assertNotEmpty(Arrays.asList(names));
+        for (String name : names) {
+            assertSameAsPsiLexing("intention/" + name);
+        }
+    }
+
+    public void testRecordsAndPatterns() {
+        LanguageLevelProjectExtension extension = LanguageLevelProjectExtension.getInstance(getProject());
+        LanguageLevel languageLevel = extension.getLanguageLevel();
+        extension.setLanguageLevel(LanguageLevel.JDK_14_PREVIEW);
+        try {
+            JavaTokens tokens = assertSameAsPsiLexing("tokens/recordsAndPatterns.java");
+            assertEquals(Arrays.asList("x", "y", "other", "point"), tokens.getVariableDeclarations());
+        } finally {
+            extension.setLanguageLevel(languageLevel);
+        }
+    }
+
+    /**
+     * Tokens and declarations of the index have to be the ones the models learn from PSI.
+     */
+    private @NotNull JavaTokens assertSameAsPsiLexing(@NotNull String path) {
+        PsiFile file = myFixture.configureByFile(path);
+        JavaTokens tokens = JavaTokens.fromLighterAST(new TreeBackedLighterAST(file.getNode()), file.getText());
+        List<String> psiTokens = new ArrayList<>();
+        List<String> psiDeclarations = new ArrayList<>();
+        for (PsiElement token : IdNamesNGramModelRunner.lexTokens(file)) {
+            psiTokens.add(token.getText());
+            if (token instanceof PsiIdentifier && token.getParent() instanceof PsiVariable) {
+                psiDeclarations.add(token.getText());
+            }
+        }
+        assertEquals(path, psiTokens, tokens.getTokens());
+        assertEquals(path, psiDeclarations, tokens.getVariableDeclarations());
+        return tokens;
+    }
+}
@@ -0,0 +1,79 @@
+package tools.evaluation;
+
+import junit.framework.TestCase;
+
+import java.util.Map;
+import java.util.Random;
+
+import static tools.evaluation.LatencyHistogram.bucketOf;
+import static tools.evaluation.LatencyHistogram.highestValueOf;
+
+public class LatencyHistogramTest extends TestCase {
+    private static final long MAX_VALUE = (1L << 40) - 1;
+
+    public void testExactBelow128() {
+        for (long value = 0; value < 128; value++) {
+            assertEquals(value, bucketOf(value));
+            assertEquals(value, highestValueOf((int) value));
+        }
+    }
+
+    public void testBoundaries() {
+        // 128 starts the buckets of two values, 256 the ones of four
+        assertEquals(128, bucketOf(128));
+        assertEquals(128, bucketOf(129));
+        assertEquals(129, highestValueOf(128));
+        assertEquals(191, bucketOf(255));
+        assertEquals(255, highestValueOf(191));
+        assertEquals(192, bucketOf(256));
+        assertEquals(259, highestValueOf(192));
+        assertEquals(MAX_VALUE, highestValueOf(bucketOf(MAX_VALUE)));
+    }
+
+    public void testErrorBound() {
+        Random random = new Random(239);
+        for (int bits = 7; bits < 40; bits++) {
+            long power = 1L << bits;
+            assertBounded(power - 1);
+            assertBounded(power);
+            assertBounded(power + 1);
+            for (int i = 0; i < 100; i++) {
+                assertBounded(power + (random.nextLong() & (power - 1)));
+            }
+        }
+    }
+
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0.0, histogram.percentile(50.0), 0.0);
+        // 1, 2, ..., 100 ms
+        for (int i = 100; i >= 1; i--) {
+            histogram.record(i / 1e3);
+        }
+        assertEquals(100, histogram.getCount());
+        assertPercentile(1.0, histogram.percentile(1.0));
+        assertPercentile(50.0, histogram.percentile(50.0));
+        assertPercentile(90.0, histogram.percentile(90.0));
+        assertPercentile(99.0, histogram.percentile(99.0));
+        // The bucket of the largest value is bounded by the maximum
+        assertEquals(100.0, histogram.percentile(100.0), 1e-3);
+        Map<String, Object> summary = histogram.summary();
+        assertEquals(100L, summary.get("count"));
+        assertEquals(100.0, (Double) summary.get("max"), 1e-3);
+    }
+
+    private static void assertBounded(long value) {
+        long highest = highestValueOf(bucketOf(value));
+        assertTrue(String.valueOf(value), highest >= value);
+        assertTrue(String.valueOf(value), highest - value < 0.02 * value);
+        assertTrue(String.valueOf(value), bucketOf(value - 1) <= bucketOf(value));
+    }
+
+    /**
+     * @param expected recorded value in milliseconds, which may have lost a microsecond when it was converted.
+     */
+    private static void assertPercentile(double expected, double actual) {
+        assertTrue(expected + " <= " + actual, actual >= expected - 1e-3);
+        assertTrue(expected + " ~ " + actual, actual < expected * 1.02);
+    }
+}
@@ -0,0 +1,130 @@
+package tools.graphVarMiner;
+
+import com.intellij.testFramework.fixtures.BasePlatformTestCase;
+import com.intellij.testFramework.fixtures.TempDirTestFixture;
+import com.intellij.testFramework.fixtures.impl.TempDirTestFixtureImpl;
+import tools.graphVarMiner.GraphDatasetExtractor.SerializableVarData;
+
+import java.nio.file.Paths;
+import java.util.*;
+
+import static tools.graphVarMiner.BinarySampleFormat.EXTENSION;
+
+public class BinarySampleTest extends BasePlatformTestCase {
+    /**
+     * Chunks are written to a directory on disk, which the fixture deletes.
+     */
+    @Override
+    protected TempDirTestFixture createTempDirTestFixture() {
+        return new TempDirTestFixtureImpl();
+    }
+
+    public void testRoundTrip() throws Exception {
+        List<SerializableVarData> samples = new ArrayList<>();
+        // Empty strings, a null span, no types and no graph
+        samples.add(createSample("", "", null, Collections.emptyList(), 0));
+        // Hundreds of nodes and distinct labels need multi-byte varints for ids, counts and deltas
+        samples.add(createSample("Foo.java", "count", "3:12", Arrays.asList("int", ""), 300));
+        samples.add(createSample("Foo.java", "i", "", Collections.singletonList("int"), 1000));
+        assertSameSamples(samples, writeAndRead(samples, Long.MAX_VALUE, 1));
+    }
+
+    public void testChunks() throws Exception {
+        List<SerializableVarData> samples = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            samples.add(createSample("File" + i % 3 + ".java", "name" + i, i + ":" + i,
+                    Collections.singletonList("Type" + i % 2), 10 + 5 * i));
+        }
+        // The string table of every chunk holds only its own strings
+        assertSameSamples(samples, writeAndRead(samples, 1024, -1));
+    }
+
+    /**
+     * @param chunkCount expected number of chunks, -1 for more than one.
+     */
+    private List<SerializableVarData> writeAndRead(List<SerializableVarData> samples,
+                                                   long maxChunkBytes,
+                                                   int chunkCount) throws Exception {
+        String pathPrefix = Paths.get(myFixture.getTempDirPath(), "samples").toString();
+        BinaryChunkWriter writer = new BinaryChunkWriter(pathPrefix, maxChunkBytes);
+        samples.forEach(writer::add);
+        writer.close();
+        List<Integer> chunkSizes = writer.getChunkSizes();
+        if (chunkCount < 0) {
+            assertTrue(chunkSizes.size() > 1);
+        } else {
+            assertEquals(chunkCount, chunkSizes.size());
+        }
+        assertEquals(samples.size(), writer.getElementCount());
+
+        List<SerializableVarData> read = new ArrayList<>();
+        for (int chunk = 0; chunk < chunkSizes.size(); chunk++) {
+            try (BinarySampleReader reader = new BinarySampleReader(Paths.get(pathPrefix + '.' + chunk + EXTENSION))) {
+                assertEquals((int) chunkSizes.get(chunk), reader.size());
+                // Samples are read backwards, each one from its own offset
+                SerializableVarData[] chunkSamples = new SerializableVarData[reader.size()];
+                for (int i = chunkSamples.length - 1; i >= 0; i--) {
+                    chunkSamples[i] = reader.read(i);
+                }
+                read.addAll(Arrays.asList(chunkSamples));
+            }
+        }
+        return read;
+    }
+
+    /**
+     * Nodes are labeled with distinct labels, except every seventh one which has no label. Edges go forwards
+     * and backwards, so deltas of both signs are written.
+     */
+    private static SerializableVarData createSample(String filename,
+                                                    String name,
+                                                    String span,
+                                                    List<String> types,
+                                                    int nodeCount) {
+        SerializableVarData varData = new SerializableVarData();
+        varData.filename = filename;
+        varData.name = name;
+        varData.span = span;
+        varData.types = types;
+        Graph.JsonSerializableGraph graph = new Graph.JsonSerializableGraph();
+        for (int node = 0; node < nodeCount; node++) {
+            if (node % 7 != 3) graph.NodeLabels.put(node, name + "#" + node);
+        }
+        if (nodeCount > 0) {
+            List<Integer[]> next = new ArrayList<>();
+            List<Integer[]> far = new ArrayList<>();
+            for (int node = 0; node + 1 < nodeCount; node++) {
+                next.add(new Integer[]{node, node + 1});
+                if (node % 2 == 0) {
+                    far.add(new Integer[]{node, nodeCount - 1 - node});
+                    far.add(new Integer[]{node, 0});
+                }
+            }
+            graph.Edges.put("NEXT", next);
+            graph.Edges.put("FAR", far);
+            graph.Edges.put("", Collections.emptyList());
+        }
+        varData.ContextGraph = graph;
+        return varData;
+    }
+
+    private static void assertSameSamples(List<SerializableVarData> expected, List<SerializableVarData> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            SerializableVarData expectedSample = expected.get(i);
+            SerializableVarData actualSample = actual.get(i);
+            assertEquals(expectedSample.filename, actualSample.filename);
+            assertEquals(expectedSample.name, actualSample.name);
+            assertEquals(expectedSample.span, actualSample.span);
+            assertEquals(expectedSample.types, actualSample.types);
+            assertEquals(expectedSample.ContextGraph.NodeLabels, actualSample.ContextGraph.NodeLabels);
+            Map<String, List<Integer[]>> expectedEdges = expectedSample.ContextGraph.Edges;
+            Map<String, List<Integer[]>> actualEdges = actualSample.ContextGraph.Edges;
+            assertEquals(expectedEdges.keySet(), actualEdges.keySet());
+            for (String edgeType : expectedEdges.keySet()) {
+                assertTrue(edgeType, Arrays.deepEquals(expectedEdges.get(edgeType).toArray(),
+                        actualEdges.get(edgeType).toArray()));
+            }
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package tools.test;
+
+import com.intellij.testFramework.fixtures.BasePlatformTestCase;
+import tools.evaluation.ModelServerClient;
+import tools.evaluation.ServerPrediction;
+import tools.evaluation.StubModelServer;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+public class ModelServerClientTest extends BasePlatformTestCase {
+    private static final List<Map<String, Object>> STUB_PREDICTION = Collections.singletonList(stubName());
+
+    private StubModelServer myServer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        myServer = new StubModelServer(0, 10);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        try {
+            myServer.close();
+        } finally {
+            super.tearDown();
+        }
+    }
+
+    public void testBatches() throws Exception {
+        List<CompletableFuture<ServerPrediction>> futures = new ArrayList<>();
+        try (ModelServerClient<String> client = createClient(myServer.getUrl())) {
+            for (int i = 0; i < 10; i++) {
+                futures.add(client.predict("sample" + i));
+            }
+            // 10 samples in batches of 4, the last two wait for the flush
+            assertFalse(futures.get(9).isDone());
+            client.flush();
+            for (CompletableFuture<ServerPrediction> future : futures) {
+                ServerPrediction prediction = future.get(10, TimeUnit.SECONDS);
+                assertEquals(STUB_PREDICTION, prediction.getPrediction());
+                assertTrue(prediction.getResponseTime() > 0);
+            }
+        }
+    }
+
+    public void testFailedRequest() throws Exception {
+        StubModelServer stoppedServer = new StubModelServer(0, 0);
+        String url = stoppedServer.getUrl();
+        stoppedServer.close();
+        try (ModelServerClient<String> client = createClient(url)) {
+            CompletableFuture<ServerPrediction> future = client.predict("sample");
+            client.flush();
+            assertNull(future.get(10, TimeUnit.SECONDS).getPrediction());
+        }
+    }
+
+    private static ModelServerClient<String> createClient(String url) {
+        return new ModelServerClient<>(url, samples -> samples.stream()
+                .map(sample -> '"' + sample + '"')
+                .collect(Collectors.joining(",", "[", "]")), 4, 2);
+    }
+
+    private static Map<String, Object> stubName() {
+        Map<String, Object> name = new HashMap<>();
+        name.put("name", "stub");
+        name.put("p", 1.0);
+        return name;
+    }
+}
@@ -0,0 +1,9 @@
+/**
+ * A point.
+ */
+public record Point(int x, int y) {
+    public boolean sameAs(Object other) {
+        // Pattern variables are declared in the condition
+        return other instanceof Point point && point.x == x && point.y == y;
+    }
+}